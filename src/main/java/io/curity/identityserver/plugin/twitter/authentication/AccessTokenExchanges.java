@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.model.OAuth1AccessToken;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The access token exchanges of recent callbacks on this node, so that a callback that is repeated, because the
+ * user submitted twice or the browser retried, gets the outcome of the first one instead of exchanging the same
+ * verifier at Twitter again, which would fail.
+ *
+ * <p>Exchanges are keyed by the request token and verifier in the callback URL, and registered before the request
+ * token secret is taken from the session or cookie, since the first callback uses that up. The verifier is only
+ * handed to the browser of the login, by Twitter's redirect. A successful exchange is shared while it is running and
+ * for {@link #KEEP_SECONDS} seconds after it has finished; a failed one is removed, so that its failure is not handed
+ * to anybody else.
+ */
+final class AccessTokenExchanges
+{
+    private static final long KEEP_SECONDS = 10;
+
+    /**
+     * Upper bound on the number of exchanges kept. If it is reached, finished exchanges are dropped first, and then
+     * all of them.
+     */
+    private static final int MAX_EXCHANGES = 10_000;
+
+    private static final long KEEP_NANOS = TimeUnit.SECONDS.toNanos(KEEP_SECONDS);
+
+    private static final ConcurrentMap<String, Exchange> _exchanges = new ConcurrentHashMap<>();
+
+    private AccessTokenExchanges() { }
+
+    /**
+     * Register an exchange of the given verifier, unless one is already running or has recently succeeded.
+     *
+     * @param oauthToken the request token in the callback
+     * @param exchange   to be completed by the caller with the outcome of its exchange, if it is registered
+     * @return the earlier exchange of the same verifier, or null if the given one was registered
+     */
+    @Nullable
+    static CompletableFuture<OAuth1AccessToken> register(String oauthToken, String oauthVerifier,
+                                                         CompletableFuture<OAuth1AccessToken> exchange)
+    {
+        long now = System.nanoTime();
+        String key = oauthToken + '&' + oauthVerifier;
+        Exchange candidate = new Exchange(exchange);
+        Exchange registered = _exchanges.compute(key, (it, current) ->
+                current == null || current.isExpired(now) ? candidate : current);
+
+        if (registered != candidate)
+        {
+            return registered._accessToken;
+        }
+
+        exchange.whenComplete((result, e) -> {
+            if (e == null)
+            {
+                candidate._finishedAt = System.nanoTime();
+            }
+            else
+            {
+                _exchanges.remove(key, candidate);
+            }
+        });
+        evictIfFull(now);
+
+        return null;
+    }
+
+    private static void evictIfFull(long now)
+    {
+        if (_exchanges.size() <= MAX_EXCHANGES)
+        {
+            return;
+        }
+
+        _exchanges.values().removeIf(exchange -> exchange.isExpired(now));
+
+        if (_exchanges.size() > MAX_EXCHANGES)
+        {
+            _exchanges.clear();
+        }
+    }
+
+    private static final class Exchange
+    {
+        private final CompletableFuture<OAuth1AccessToken> _accessToken;
+
+        /**
+         * When the exchange succeeded, or 0 while it is running.
+         */
+        private volatile long _finishedAt;
+
+        private Exchange(CompletableFuture<OAuth1AccessToken> accessToken)
+        {
+            _accessToken = accessToken;
+        }
+
+        private boolean isExpired(long now)
+        {
+            long finishedAt = _finishedAt;
+
+            return finishedAt != 0 && now - finishedAt >= KEEP_NANOS;
+        }
+    }
+}
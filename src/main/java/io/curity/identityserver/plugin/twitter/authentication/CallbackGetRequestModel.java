@@ -17,10 +17,12 @@
 package io.curity.identityserver.plugin.twitter.authentication;
 
 import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.http.Cookie;
 import se.curity.identityserver.sdk.web.Request;
 
 import java.util.function.Function;
 
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.OAUTH_TOKEN;
 import static io.curity.identityserver.plugin.twitter.authentication.Constants.OAUTH_VERIFIER;
 
 public final class CallbackGetRequestModel
@@ -33,6 +35,15 @@ public final class CallbackGetRequestModel
 
     private final String _oauthVerifier;
 
+    @Nullable
+    private final String _oauthToken;
+
+    @Nullable
+    private final String _deniedOAuthToken;
+
+    @Nullable
+    private final String _requestTokenState;
+
     CallbackGetRequestModel(Request request)
     {
         Function<String, ? extends RuntimeException> invalidParameter = (s) -> new RuntimeException(String.format(
@@ -41,6 +52,11 @@ public final class CallbackGetRequestModel
         _oauthVerifier = request.getParameterValueOrError(OAUTH_VERIFIER, invalidParameter);
         _error = request.getQueryParameterValueOrError("error", invalidParameter);
         _errorDescription = request.getQueryParameterValueOrError("error_description", invalidParameter);
+        _oauthToken = request.getQueryParameterValueOrError(OAUTH_TOKEN, invalidParameter);
+        _deniedOAuthToken = request.getQueryParameterValueOrError("denied", invalidParameter);
+        _requestTokenState = request.getCookies().getFirst(RequestTokenState.COOKIE_NAME)
+                .map(Cookie::getValue)
+                .orElse(null);
     }
 
     @Nullable
@@ -60,4 +76,28 @@ public final class CallbackGetRequestModel
     {
         return _oauthVerifier;
     }
+
+    @Nullable
+    public String getOAuthToken()
+    {
+        return _oauthToken;
+    }
+
+    /**
+     * @return the request token Twitter returns instead of a verifier when the user declines to log in
+     */
+    @Nullable
+    public String getDeniedOAuthToken()
+    {
+        return _deniedOAuthToken;
+    }
+
+    /**
+     * @return the request token state kept in a cookie, if any
+     */
+    @Nullable
+    public String getRequestTokenState()
+    {
+        return _requestTokenState;
+    }
 }
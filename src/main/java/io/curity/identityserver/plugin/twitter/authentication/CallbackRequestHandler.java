@@ -16,13 +16,13 @@
 
 package io.curity.identityserver.plugin.twitter.authentication;
 
-import com.github.scribejava.core.builder.ServiceBuilder;
 import com.github.scribejava.core.model.OAuth1AccessToken;
 import com.github.scribejava.core.model.OAuth1RequestToken;
-import com.github.scribejava.core.oauth.OAuth10aService;
 import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.twitter.metrics.TwitterMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
 import se.curity.identityserver.sdk.attribute.Attribute;
 import se.curity.identityserver.sdk.attribute.Attributes;
 import se.curity.identityserver.sdk.attribute.AuthenticationAttributes;
@@ -30,49 +30,53 @@ import se.curity.identityserver.sdk.attribute.ContextAttributes;
 import se.curity.identityserver.sdk.attribute.SubjectAttributes;
 import se.curity.identityserver.sdk.authentication.AuthenticationResult;
 import se.curity.identityserver.sdk.authentication.AuthenticatorRequestHandler;
-import se.curity.identityserver.sdk.errors.ErrorCode;
 import se.curity.identityserver.sdk.service.ExceptionFactory;
 import se.curity.identityserver.sdk.service.SessionManager;
 import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
 import se.curity.identityserver.sdk.web.Request;
 import se.curity.identityserver.sdk.web.Response;
 
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static io.curity.identityserver.plugin.twitter.authentication.Constants.OAUTH_TOKEN;
 import static io.curity.identityserver.plugin.twitter.authentication.Constants.OAUTH_TOKEN_SECRET;
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.PARTIAL_ATTRIBUTES;
 import static io.curity.identityserver.plugin.twitter.authentication.Constants.SCREEN_NAME;
 import static io.curity.identityserver.plugin.twitter.authentication.Constants.USER_ID;
-import static io.curity.identityserver.plugin.twitter.authentication.HttpClientUtil.getHttpClient;
-import static io.curity.identityserver.plugin.twitter.descriptor.TwitterAuthenticatorPluginDescriptor.CALLBACK;
 
 public final class CallbackRequestHandler
         implements AuthenticatorRequestHandler<CallbackGetRequestModel>
 {
     private static final Logger _logger = LoggerFactory.getLogger(CallbackRequestHandler.class);
+    private static final SampledLog _accessTokenFailures = new SampledLog(_logger);
+    private static final SampledLog _twitterErrors = new SampledLog(_logger);
 
+    private final TwitterMetrics _metrics = CompositeTwitterMetrics.instance();
+    private final TwitterAuthenticatorPluginConfig _config;
     private final ExceptionFactory _exceptionFactory;
-    private final OAuth10aService _service;
-    private final OAuth1RequestToken _requestToken;
+    private final SessionManager _sessionManager;
     private final AuthenticatorInformationProvider _authenticatorInformationProvider;
 
-    public CallbackRequestHandler(TwitterAuthenticatorPluginConfig _config)
+    /**
+     * Looked up only once a callback needs to call Twitter, so that rejected and failed callbacks cost next to
+     * nothing.
+     */
+    @Nullable
+    private TwitterService _service;
+
+    public CallbackRequestHandler(TwitterAuthenticatorPluginConfig config)
     {
-        SessionManager sessionManager = _config.getSessionManager();
-
-        _exceptionFactory = _config.getExceptionFactory();
-        _authenticatorInformationProvider = _config.getAuthenticatorInformationProvider();
-        _service = new ServiceBuilder(_config.getApiKey())
-                .apiSecret(_config.getApiSecretKey())
-                .callback(createRedirectUri())
-                .httpClient(getHttpClient(_config))
-                .build(TwitterApi.instance());
-        _requestToken = new OAuth1RequestToken(_config.getSessionManager().get(OAUTH_TOKEN).getValue().toString(),
-                sessionManager.get(OAUTH_TOKEN_SECRET).getValue().toString());
+        _config = config;
+        _exceptionFactory = config.getExceptionFactory();
+        _sessionManager = config.getSessionManager();
+        _authenticatorInformationProvider = config.getAuthenticatorInformationProvider();
     }
 
     @Override
@@ -80,7 +84,12 @@ public final class CallbackRequestHandler
     {
         if (request.isGetRequest())
         {
-            return new CallbackGetRequestModel(request);
+            long start = System.nanoTime();
+            CallbackGetRequestModel requestModel = new CallbackGetRequestModel(request);
+
+            _metrics.recordCallbackParse(System.nanoTime() - start);
+
+            return requestModel;
         }
         else
         {
@@ -92,25 +101,73 @@ public final class CallbackRequestHandler
     public Optional<AuthenticationResult> get(CallbackGetRequestModel requestModel,
                                               Response response)
     {
-        handleError(requestModel); // Side-effect: Throws if error
+        if (!_logger.isDebugEnabled())
+        {
+            return handleCallback(requestModel, response);
+        }
+
+        String oauthToken = requestModel.getOAuthToken();
 
-        OAuth1AccessToken accessToken;
+        LoginCorrelation.begin(oauthToken != null ? oauthToken : requestModel.getDeniedOAuthToken());
 
         try
         {
-            accessToken = _service.getAccessToken(_requestToken, requestModel.getOAuthVerifier());
+            return handleCallback(requestModel, response);
         }
-        catch (Exception ex)
+        finally
         {
-            _logger.info("Login failed with Twitter, reason : {}", ex.getMessage());
+            LoginCorrelation.end();
+        }
+    }
+
+    private Optional<AuthenticationResult> handleCallback(CallbackGetRequestModel requestModel, Response response)
+    {
+        handleError(requestModel, response); // Side-effect: Throws if error
+
+        OAuth1AccessToken accessToken = getAccessTokenOnce(requestModel, response);
+        TwitterService service = getService();
+
+        // Fetched while the rest of the attributes are put together, and only waited for up to the budget
+        long profileDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_config.getProfileBudget());
+        CompletableFuture<TwitterProfile> profile = service.getProfile(accessToken);
+
+        List<Attribute> subjectAttributeList = new ArrayList<>(5);
+        List<Attribute> contextAttributeList = new ArrayList<>(3);
+
+        subjectAttributeList.add(Attribute.of(USER_ID, accessToken.getParameter(USER_ID)));
+        subjectAttributeList.add(Attribute.of(SCREEN_NAME, accessToken.getParameter(SCREEN_NAME)));
+        contextAttributeList.add(Attribute.of(OAUTH_TOKEN, accessToken.getToken()));
+        contextAttributeList.add(Attribute.of(OAUTH_TOKEN_SECRET, accessToken.getTokenSecret()));
 
-            throw _exceptionFactory.externalServiceException("Login failed with Twitter, reason : " + ex.getMessage());
+        try
+        {
+            TwitterProfile arrivedProfile = profile.get(profileDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+            if (arrivedProfile != null)
+            {
+                arrivedProfile.addTo(subjectAttributeList);
+            }
+            else if (_config.isFetchProfile())
+            {
+                // Recently failed, or could not be fetched now
+                _logger.debug("Twitter profile is not available; logging in without it");
+                contextAttributeList.add(Attribute.of(PARTIAL_ATTRIBUTES, TwitterProfile.ATTRIBUTE_NAMES));
+            }
         }
+        catch (TimeoutException | InterruptedException | ExecutionException e)
+        {
+            if (e instanceof InterruptedException)
+            {
+                Thread.currentThread().interrupt();
+            }
 
-        Attributes subjectAttributes = Attributes.of(Attribute.of(USER_ID, accessToken.getParameter(USER_ID)),
-                                                     Attribute.of(SCREEN_NAME, accessToken.getParameter(SCREEN_NAME)));
-        Attributes contextAttributes = Attributes.of(Attribute.of(OAUTH_TOKEN, accessToken.getToken()),
-                                                     Attribute.of(OAUTH_TOKEN_SECRET, accessToken.getTokenSecret()));
+            _metrics.recordProfileBudgetExceeded();
+            _logger.debug("Twitter profile did not arrive in time; logging in without it");
+            contextAttributeList.add(Attribute.of(PARTIAL_ATTRIBUTES, TwitterProfile.ATTRIBUTE_NAMES));
+        }
+
+        Attributes subjectAttributes = Attributes.of(subjectAttributeList);
+        Attributes contextAttributes = Attributes.of(contextAttributeList);
 
         AuthenticationAttributes attributes = AuthenticationAttributes.of(
                 SubjectAttributes.of(accessToken.getParameter(USER_ID), subjectAttributes),
@@ -122,38 +179,197 @@ public final class CallbackRequestHandler
         return Optional.of(authenticationResult);
     }
 
-    private void handleError(CallbackGetRequestModel requestModel)
+    /**
+     * Exchange the verifier in the callback for an access token, or take the outcome of an exchange of the same
+     * verifier by an earlier callback with the same request token and verifier.
+     *
+     * <p>The exchange is registered before the request token is taken from the session or cookie, so that a repeated
+     * callback is matched with the earlier one although that has already used the request token up.
+     */
+    private OAuth1AccessToken getAccessTokenOnce(CallbackGetRequestModel requestModel, Response response)
     {
-        if (!Objects.isNull(requestModel.getError()))
+        String oauthToken = requestModel.getOAuthToken();
+        String oauthVerifier = requestModel.getOAuthVerifier();
+
+        if (_config.isStoreRequestTokenInCookie())
         {
-            if ("access_denied".equals(requestModel.getError()))
+            // Whatever the outcome of the callback
+            discardRequestTokenCookie(response);
+        }
+
+        if (oauthToken == null)
+        {
+            _logger.info("Request token in callback is missing; restarting login");
+
+            throw restartLogin();
+        }
+
+        CompletableFuture<OAuth1AccessToken> exchange = new CompletableFuture<>();
+        CompletableFuture<OAuth1AccessToken> earlierExchange = oauthVerifier == null
+                ? null
+                : AccessTokenExchanges.register(oauthToken, oauthVerifier, exchange);
+
+        if (earlierExchange != null)
+        {
+            _metrics.recordCallbackDeduplicated();
+            _logger.debug("Callback repeated; using the outcome of the earlier access token exchange");
+
+            return awaitEarlierExchange(earlierExchange);
+        }
+
+        try
+        {
+            OAuth1RequestToken requestToken = claimRequestToken(oauthToken, requestModel);
+
+            if (requestToken == null)
             {
-                _logger.debug("Got an error from Twitter: {} - {}", requestModel.getError(), requestModel
-                        .getErrorDescription());
+                _logger.info("Request token in callback is missing, altered, expired or already used; " +
+                        "restarting login");
 
-                throw _exceptionFactory.redirectException(
-                        _authenticatorInformationProvider.getAuthenticationBaseUri().toASCIIString());
+                throw restartLogin();
             }
 
-            _logger.warn("Got an error from Twitter: {} - {}", requestModel.getError(), requestModel
-                    .getErrorDescription());
+            // Only once, by the callback that uses the request token up
+            RequestTokenTracker.completed(requestToken.getToken());
 
-            throw _exceptionFactory.externalServiceException("Login with Twitter failed");
+            OAuth1AccessToken accessToken = getAccessToken(requestToken, oauthVerifier);
+
+            exchange.complete(accessToken);
+
+            return accessToken;
+        }
+        catch (RuntimeException e)
+        {
+            exchange.completeExceptionally(e);
+
+            throw e;
         }
     }
 
-    private String createRedirectUri()
+    private OAuth1AccessToken getAccessToken(OAuth1RequestToken requestToken, @Nullable String oauthVerifier)
     {
         try
         {
-            URI authUri = _authenticatorInformationProvider.getFullyQualifiedAuthenticationUri();
+            return getService().getAccessToken(requestToken, oauthVerifier);
+        }
+        catch (Exception ex)
+        {
+            _accessTokenFailures.info("Login failed with Twitter: {} - {}", ex.getClass().getSimpleName(),
+                    ex.getMessage());
 
-            return new URL(authUri.toURL(), authUri.getPath() + "/" + CALLBACK).toString();
+            throw _exceptionFactory.externalServiceException("Login failed with Twitter");
         }
-        catch (MalformedURLException e)
+    }
+
+    private OAuth1AccessToken awaitEarlierExchange(CompletableFuture<OAuth1AccessToken> earlierExchange)
+    {
+        try
+        {
+            return earlierExchange.get(_config.getAccessTokenTimeout(), TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException e)
+        {
+            // The failure belongs to the earlier callback, which has used up the request token
+            _logger.debug("Earlier access token exchange of a repeated callback failed; restarting login");
+
+            throw restartLogin();
+        }
+        catch (TimeoutException | InterruptedException e)
+        {
+            if (e instanceof InterruptedException)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            _logger.debug("Earlier access token exchange of a repeated callback did not finish in time");
+
+            throw _exceptionFactory.externalServiceException("Login failed with Twitter");
+        }
+    }
+
+    private RuntimeException restartLogin()
+    {
+        return _exceptionFactory.redirectException(
+                _authenticatorInformationProvider.getAuthenticationBaseUri().toASCIIString());
+    }
+
+    private TwitterService getService()
+    {
+        if (_service == null)
+        {
+            _service = OAuthServiceRegistry.getService(_config,
+                    CallbackUris.resolve(_authenticatorInformationProvider, _exceptionFactory));
+        }
+
+        return _service;
+    }
+
+    /**
+     * Take the request token of this login from where the redirect to Twitter left it, using it up, so that only one
+     * callback exchanges it. In the session, it is read and removed at once, whatever the outcome of the callback.
+     *
+     * @return the request token, or null if there is none for the token in the callback that can still be used
+     */
+    @Nullable
+    private OAuth1RequestToken claimRequestToken(String oauthToken, CallbackGetRequestModel requestModel)
+    {
+        if (!_config.isStoreRequestTokenInCookie())
+        {
+            OAuth1RequestToken requestToken = SessionRequestToken.remove(_sessionManager);
+
+            return requestToken != null && requestToken.getToken().equals(oauthToken) ? requestToken : null;
+        }
+
+        String sealedState = requestModel.getRequestTokenState();
+
+        if (sealedState == null)
+        {
+            return null;
+        }
+
+        RequestTokenState requestTokenState = Objects.requireNonNull(getService().getRequestTokenState());
+        OAuth1RequestToken requestToken = requestTokenState.read(oauthToken, sealedState);
+
+        return requestToken != null && requestTokenState.consume(oauthToken) ? requestToken : null;
+    }
+
+    private void discardRequestTokenCookie(Response response)
+    {
+        response.addCookie(RequestTokenState.createExpiredCookie(
+                _authenticatorInformationProvider.getFullyQualifiedAuthenticationUri().getPath()));
+    }
+
+    private void handleError(CallbackGetRequestModel requestModel, Response response)
+    {
+        String deniedOAuthToken = requestModel.getDeniedOAuthToken();
+
+        if (!Objects.isNull(requestModel.getError()) || deniedOAuthToken != null)
         {
-            throw _exceptionFactory.internalServerException(ErrorCode.INVALID_REDIRECT_URI,
-                    "Could not create redirect URI");
+            if (_config.isStoreRequestTokenInCookie())
+            {
+                discardRequestTokenCookie(response);
+            }
+            else
+            {
+                SessionRequestToken.remove(_sessionManager);
+            }
+
+            if (deniedOAuthToken != null || "access_denied".equals(requestModel.getError()))
+            {
+                RequestTokenTracker.denied(deniedOAuthToken != null ? deniedOAuthToken : requestModel.getOAuthToken());
+                _metrics.recordError(TwitterMetrics.ErrorType.ACCESS_DENIED);
+                _logger.debug("Got an error from Twitter: {} - {}", requestModel.getError(), requestModel
+                        .getErrorDescription());
+
+                throw _exceptionFactory.redirectException(
+                        _authenticatorInformationProvider.getAuthenticationBaseUri().toASCIIString());
+            }
+
+            _metrics.recordError(TwitterMetrics.ErrorType.OTHER);
+            _twitterErrors.warn("Got an error from Twitter: {} - {}", requestModel.getError(),
+                    requestModel.getErrorDescription());
+
+            throw _exceptionFactory.externalServiceException("Login with Twitter failed");
         }
     }
 
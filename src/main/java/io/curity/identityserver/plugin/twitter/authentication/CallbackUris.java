@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static io.curity.identityserver.plugin.twitter.descriptor.TwitterAuthenticatorPluginDescriptor.CALLBACK;
+
+/**
+ * Resolves the URI Twitter redirects back to after the user has logged in there.
+ *
+ * <p>The URI only depends on the authenticator's fully qualified URI, which is the same for every request served
+ * through the same host, so it is computed once per authenticator URI.
+ */
+final class CallbackUris
+{
+    /**
+     * Upper bound on the number of URIs kept. Each host the authenticator is reachable through needs one entry, so
+     * the cache is reset if it grows past this.
+     */
+    static final int MAX_URIS = 64;
+
+    private static final ConcurrentMap<URI, String> _callbackUriByAuthenticatorUri = new ConcurrentHashMap<>();
+
+    private CallbackUris() { }
+
+    static String resolve(AuthenticatorInformationProvider authenticatorInformationProvider,
+                          ExceptionFactory exceptionFactory)
+    {
+        URI authUri = authenticatorInformationProvider.getFullyQualifiedAuthenticationUri();
+        String callbackUri = _callbackUriByAuthenticatorUri.get(authUri);
+
+        if (callbackUri != null)
+        {
+            return callbackUri;
+        }
+
+        try
+        {
+            callbackUri = new URL(authUri.toURL(), authUri.getPath() + "/" + CALLBACK).toString();
+        }
+        catch (MalformedURLException e)
+        {
+            throw exceptionFactory.internalServerException(ErrorCode.INVALID_REDIRECT_URI,
+                    "Could not create redirect URI");
+        }
+
+        if (_callbackUriByAuthenticatorUri.size() >= MAX_URIS)
+        {
+            _callbackUriByAuthenticatorUri.clear();
+        }
+
+        _callbackUriByAuthenticatorUri.put(authUri, callbackUri);
+
+        return callbackUri;
+    }
+
+    static int getSize()
+    {
+        return _callbackUriByAuthenticatorUri.size();
+    }
+}
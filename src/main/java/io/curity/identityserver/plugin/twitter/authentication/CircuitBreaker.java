@@ -0,0 +1,145 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stops calls to Twitter for a while after it has failed a number of times in a row, or after it has asked to be
+ * called less often.
+ *
+ * <p>Once the open period has passed, a single call is let through. If it succeeds the breaker closes; if it fails
+ * the breaker opens again. The slot of that probing call is only taken right before a request is sent to Twitter,
+ * with at most a wait for a rate-limit permit in between, and is given back if the call ends without an outcome.
+ */
+final class CircuitBreaker
+{
+    private final int _failureThreshold;
+    private final long _openDurationMillis;
+    private final AtomicInteger _consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean _probing = new AtomicBoolean();
+    private volatile long _openUntil;
+
+    /**
+     * @param failureThreshold the number of consecutive failures after which the breaker opens, or 0 to only open
+     *                         it when Twitter asks for calls to be held off
+     * @param openDurationSeconds how long the breaker stays open after too many failures
+     */
+    CircuitBreaker(int failureThreshold, int openDurationSeconds)
+    {
+        _failureThreshold = failureThreshold;
+        _openDurationMillis = TimeUnit.SECONDS.toMillis(openDurationSeconds);
+    }
+
+    /**
+     * Fail fast while the breaker is open, without taking the slot of the probing call.
+     *
+     * @throws TwitterUnavailableException if the breaker is open
+     */
+    void checkNotOpen()
+    {
+        if (isOpen())
+        {
+            throw new TwitterUnavailableException();
+        }
+    }
+
+    /**
+     * Check that a request may be sent to Twitter now. Must be called right before the request is sent; if it
+     * returns true, {@link #releaseProbe()} must be called once the call has ended.
+     *
+     * @return true if the call is the probing call after the breaker was open
+     * @throws TwitterUnavailableException if the breaker is open, or another call is probing
+     */
+    boolean checkAllowed()
+    {
+        long openUntil = _openUntil;
+
+        if (openUntil == 0)
+        {
+            return false;
+        }
+
+        if (System.currentTimeMillis() >= openUntil && _probing.compareAndSet(false, true))
+        {
+            return true;
+        }
+
+        throw new TwitterUnavailableException();
+    }
+
+    /**
+     * Give back the slot of the probing call, if its outcome was not reported, so that the next call probes.
+     */
+    void releaseProbe()
+    {
+        _probing.set(false);
+    }
+
+    void onSuccess()
+    {
+        _consecutiveFailures.set(0);
+        _openUntil = 0;
+        _probing.set(false);
+    }
+
+    void onFailure()
+    {
+        if (_probing.getAndSet(false))
+        {
+            openFor(_openDurationMillis);
+        }
+        else if (_failureThreshold > 0 && _consecutiveFailures.incrementAndGet() >= _failureThreshold)
+        {
+            openFor(_openDurationMillis);
+        }
+    }
+
+    void openFor(long millis)
+    {
+        long openUntil = System.currentTimeMillis() + millis;
+
+        if (openUntil > _openUntil)
+        {
+            _openUntil = openUntil;
+        }
+
+        _probing.set(false);
+    }
+
+    boolean isOpen()
+    {
+        long openUntil = _openUntil;
+
+        return openUntil != 0 && System.currentTimeMillis() < openUntil;
+    }
+
+    /**
+     * @return true if the breaker has not opened since the last call that succeeded, so that no call is probing
+     */
+    boolean isClosed()
+    {
+        return _openUntil == 0;
+    }
+
+    int getConsecutiveFailures()
+    {
+        return _consecutiveFailures.get();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import io.curity.identityserver.plugin.twitter.metrics.TwitterMetrics;
+
+/**
+ * Passes everything recorded on to two {@link TwitterMetrics}, so that each site records once.
+ */
+final class CompositeTwitterMetrics implements TwitterMetrics
+{
+    private static final TwitterMetrics INSTANCE = new CompositeTwitterMetrics(TwitterMetrics.instance(),
+            TwitterCallStats.INSTANCE);
+
+    private final TwitterMetrics _first;
+    private final TwitterMetrics _second;
+
+    CompositeTwitterMetrics(TwitterMetrics first, TwitterMetrics second)
+    {
+        _first = first;
+        _second = second;
+    }
+
+    /**
+     * @return the implementation that is loaded, if any, together with the {@link TwitterCallStats} of the
+     * diagnostics endpoint
+     */
+    static TwitterMetrics instance()
+    {
+        return INSTANCE;
+    }
+
+    @Override
+    public void recordRequestTokenLatency(long nanos)
+    {
+        _first.recordRequestTokenLatency(nanos);
+        _second.recordRequestTokenLatency(nanos);
+    }
+
+    @Override
+    public void recordRequestTokenHedged(boolean won)
+    {
+        _first.recordRequestTokenHedged(won);
+        _second.recordRequestTokenHedged(won);
+    }
+
+    @Override
+    public void recordRequestTokenPoolHit()
+    {
+        _first.recordRequestTokenPoolHit();
+        _second.recordRequestTokenPoolHit();
+    }
+
+    @Override
+    public void recordRequestTokenPoolMiss()
+    {
+        _first.recordRequestTokenPoolMiss();
+        _second.recordRequestTokenPoolMiss();
+    }
+
+    @Override
+    public void recordRequestTokenPoolExpired()
+    {
+        _first.recordRequestTokenPoolExpired();
+        _second.recordRequestTokenPoolExpired();
+    }
+
+    @Override
+    public void recordRequestTokenPoolDepth(int depth)
+    {
+        _first.recordRequestTokenPoolDepth(depth);
+        _second.recordRequestTokenPoolDepth(depth);
+    }
+
+    @Override
+    public void recordAccessTokenLatency(long nanos)
+    {
+        _first.recordAccessTokenLatency(nanos);
+        _second.recordAccessTokenLatency(nanos);
+    }
+
+    @Override
+    public void recordRedirectConstruction(long nanos)
+    {
+        _first.recordRedirectConstruction(nanos);
+        _second.recordRedirectConstruction(nanos);
+    }
+
+    @Override
+    public void recordCallbackParse(long nanos)
+    {
+        _first.recordCallbackParse(nanos);
+        _second.recordCallbackParse(nanos);
+    }
+
+    @Override
+    public void recordCallbackDeduplicated()
+    {
+        _first.recordCallbackDeduplicated();
+        _second.recordCallbackDeduplicated();
+    }
+
+    @Override
+    public void recordProfileLatency(long nanos)
+    {
+        _first.recordProfileLatency(nanos);
+        _second.recordProfileLatency(nanos);
+    }
+
+    @Override
+    public void recordRequestTokenIssued()
+    {
+        _first.recordRequestTokenIssued();
+        _second.recordRequestTokenIssued();
+    }
+
+    @Override
+    public void recordLoginCompleted(long timeToCallbackNanos)
+    {
+        _first.recordLoginCompleted(timeToCallbackNanos);
+        _second.recordLoginCompleted(timeToCallbackNanos);
+    }
+
+    @Override
+    public void recordLoginDenied(long timeToCallbackNanos)
+    {
+        _first.recordLoginDenied(timeToCallbackNanos);
+        _second.recordLoginDenied(timeToCallbackNanos);
+    }
+
+    @Override
+    public void recordLoginAbandoned()
+    {
+        _first.recordLoginAbandoned();
+        _second.recordLoginAbandoned();
+    }
+
+    @Override
+    public void recordProfileCacheHit()
+    {
+        _first.recordProfileCacheHit();
+        _second.recordProfileCacheHit();
+    }
+
+    @Override
+    public void recordProfileCacheMiss()
+    {
+        _first.recordProfileCacheMiss();
+        _second.recordProfileCacheMiss();
+    }
+
+    @Override
+    public void recordProfileBudgetExceeded()
+    {
+        _first.recordProfileBudgetExceeded();
+        _second.recordProfileBudgetExceeded();
+    }
+
+    @Override
+    public void recordError(ErrorType errorType)
+    {
+        _first.recordError(errorType);
+        _second.recordError(errorType);
+    }
+
+    @Override
+    public void recordStatusCode(int statusCode)
+    {
+        _first.recordStatusCode(statusCode);
+        _second.recordStatusCode(statusCode);
+    }
+}
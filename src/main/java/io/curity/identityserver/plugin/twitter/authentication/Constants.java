@@ -11,4 +11,8 @@ final class Constants
     static final String OAUTH_VERIFIER = "oauth_verifier";
     static final String USER_ID = "user_id";
     static final String SCREEN_NAME = "screen_name";
+    static final String NAME = "name";
+    static final String EMAIL = "email";
+    static final String PROFILE_IMAGE_URL = "profile_image_url";
+    static final String PARTIAL_ATTRIBUTES = "partial_attributes";
 }
@@ -0,0 +1,279 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.authentication.AuthenticationResult;
+import se.curity.identityserver.sdk.authentication.AuthenticatorRequestHandler;
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
+import se.curity.identityserver.sdk.web.Request;
+import se.curity.identityserver.sdk.web.Response;
+import se.curity.identityserver.sdk.web.ResponseModel;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Returns live statistics of this node's logins with Twitter, for spotting a node that is degrading. Everything is
+ * read from counters that are kept anyway, so a request does not call Twitter or slow down logins.
+ *
+ * <p>The endpoint is only available when enabled and given an access token, which callers must send as a bearer
+ * token. The statistics are only returned as JSON, so callers must accept {@code application/json}. Statistics are
+ * per node; a dashboard of the cluster has to call each node.
+ *
+ * <p>Statistics of the {@link TwitterService} of the configuration are only included once a login has created it;
+ * a request for diagnostics does not create one.
+ */
+public final class DiagnosticsRequestHandler implements AuthenticatorRequestHandler<Request>
+{
+    private static final Logger _logger = LoggerFactory.getLogger(DiagnosticsRequestHandler.class);
+
+    private static final String BEARER_PREFIX = "Bearer ";
+    private static final String JSON_MEDIA_TYPE = "application/json";
+
+    private final TwitterAuthenticatorPluginConfig _config;
+    private final ExceptionFactory _exceptionFactory;
+    private final AuthenticatorInformationProvider _authenticatorInformationProvider;
+
+    public DiagnosticsRequestHandler(TwitterAuthenticatorPluginConfig config)
+    {
+        _config = config;
+        _exceptionFactory = config.getExceptionFactory();
+        _authenticatorInformationProvider = config.getAuthenticatorInformationProvider();
+    }
+
+    @Override
+    public Optional<AuthenticationResult> get(Request request, Response response)
+    {
+        Optional<String> accessToken = _config.getDiagnosticsAccessToken();
+
+        if (!_config.isDiagnosticsEnabled() || !accessToken.isPresent())
+        {
+            throw _exceptionFactory.notFoundException("Diagnostics are not enabled");
+        }
+
+        if (!isAuthorized(request, accessToken.get()))
+        {
+            _logger.debug("Diagnostics requested without a valid access token");
+
+            throw _exceptionFactory.forbiddenException(ErrorCode.ACCESS_DENIED);
+        }
+
+        // There is no template to render the statistics with
+        if (!acceptsJson(request))
+        {
+            throw _exceptionFactory.badRequestException(ErrorCode.INVALID_INPUT,
+                    "Diagnostics are only available as " + JSON_MEDIA_TYPE);
+        }
+
+        TwitterService service = OAuthServiceRegistry.findService(_config,
+                CallbackUris.resolve(_authenticatorInformationProvider, _exceptionFactory));
+
+        response.setResponseModel(ResponseModel.mapResponseModel(getStatistics(service)),
+                Response.ResponseModelScope.ANY);
+
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<AuthenticationResult> post(Request request, Response response)
+    {
+        throw _exceptionFactory.methodNotAllowed();
+    }
+
+    @Override
+    public Request preProcess(Request request, Response response)
+    {
+        return request;
+    }
+
+    private static boolean isAuthorized(Request request, String accessToken)
+    {
+        String authorization = request.getHeaders().firstValue("Authorization").orElse("");
+
+        if (!authorization.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length()))
+        {
+            return false;
+        }
+
+        return MessageDigest.isEqual(
+                authorization.substring(BEARER_PREFIX.length()).getBytes(StandardCharsets.UTF_8),
+                accessToken.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean acceptsJson(Request request)
+    {
+        return request.getHeaders().firstValue("Accept").orElse("").toLowerCase(Locale.ROOT)
+                .contains(JSON_MEDIA_TYPE);
+    }
+
+    private static Map<String, Object> getStatistics(@Nullable TwitterService service)
+    {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+
+        statistics.put("in_flight_calls", getInFlightStatistics(service));
+        statistics.put("latencies", TwitterCallStats.getLatencies());
+        statistics.put("errors", TwitterCallStats.getErrors());
+        statistics.put("logins", getLoginStatistics());
+        statistics.put("connections", getConnectionStatistics());
+
+        if (service == null)
+        {
+            return statistics;
+        }
+
+        statistics.put("circuit_breaker", getCircuitBreakerStatistics(service.getCircuitBreaker()));
+
+        RequestTokenRateLimiter rateLimiter = service.getRateLimiter();
+
+        if (rateLimiter != null)
+        {
+            statistics.put("rate_limiter", getRateLimiterStatistics(rateLimiter));
+        }
+
+        RequestTokenPool requestTokenPool = service.getRequestTokenPool();
+
+        if (requestTokenPool != null)
+        {
+            statistics.put("request_token_pool", getRequestTokenPoolStatistics(requestTokenPool));
+        }
+
+        RequestTokenHedge requestTokenHedge = service.getRequestTokenHedge();
+
+        if (requestTokenHedge != null)
+        {
+            statistics.put("request_token_hedge", getRequestTokenHedgeStatistics(requestTokenHedge));
+        }
+
+        UserProfileCache profileCache = service.getProfileCache();
+
+        if (profileCache != null)
+        {
+            statistics.put("profile_cache_size", profileCache.getSize());
+        }
+
+        return statistics;
+    }
+
+    /**
+     * @return the number of calls running or waiting to run on each executor: those of logins and of profile fetches of
+     * this configuration's service, and the one shared by HTTP clients created outside of a service
+     */
+    private static Map<String, Object> getInFlightStatistics(@Nullable TwitterService service)
+    {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+
+        if (service != null)
+        {
+            statistics.put("logins", service.getExecutor().getInFlight());
+
+            TwitterExecutor profileExecutor = service.getProfileExecutor();
+
+            if (profileExecutor != null)
+            {
+                statistics.put("profiles", profileExecutor.getInFlight());
+            }
+        }
+
+        statistics.put("shared", ScribeJavaHttpClientAdapter.getSharedInFlight());
+
+        return statistics;
+    }
+
+    private static Map<String, Object> getCircuitBreakerStatistics(CircuitBreaker circuitBreaker)
+    {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+
+        statistics.put("open", circuitBreaker.isOpen());
+        statistics.put("consecutive_failures", circuitBreaker.getConsecutiveFailures());
+
+        return statistics;
+    }
+
+    private static Map<String, Object> getLoginStatistics()
+    {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+
+        statistics.put("issued", RequestTokenTracker.getIssued());
+        statistics.put("completed", RequestTokenTracker.getCompleted());
+        statistics.put("denied", RequestTokenTracker.getDenied());
+        statistics.put("abandoned", RequestTokenTracker.getAbandoned());
+        statistics.put("outstanding", RequestTokenTracker.getOutstanding());
+
+        return statistics;
+    }
+
+    private static Map<String, Object> getConnectionStatistics()
+    {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+
+        statistics.put("requests", TwitterConnectionStats.getRequests());
+        statistics.put("failed_requests", TwitterConnectionStats.getFailedRequests());
+        statistics.put("average_request_ms", TwitterConnectionStats.getAverageRequestMillis());
+        statistics.put("max_request_ms", TwitterConnectionStats.getMaxRequestMillis());
+        statistics.put("keep_alives", TwitterConnectionStats.getKeepAlives());
+        statistics.put("failed_keep_alives", TwitterConnectionStats.getFailedKeepAlives());
+        statistics.put("unhealthy_endpoints", TwitterEndpoints.getUnhealthyBaseUrls());
+
+        return statistics;
+    }
+
+    private static Map<String, Object> getRateLimiterStatistics(RequestTokenRateLimiter rateLimiter)
+    {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+
+        statistics.put("permits_per_minute", rateLimiter.getPermitsPerMinute());
+        statistics.put("waiting", rateLimiter.getWaiting());
+        statistics.put("admitted", rateLimiter.getAdmitted());
+        statistics.put("queued", rateLimiter.getQueued());
+        statistics.put("shed", rateLimiter.getShed());
+
+        return statistics;
+    }
+
+    private static Map<String, Object> getRequestTokenPoolStatistics(RequestTokenPool requestTokenPool)
+    {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+
+        statistics.put("depth", requestTokenPool.getDepth());
+        statistics.put("hits", requestTokenPool.getHits());
+        statistics.put("misses", requestTokenPool.getMisses());
+        statistics.put("expiry_discards", requestTokenPool.getExpiryDiscards());
+
+        return statistics;
+    }
+
+    private static Map<String, Object> getRequestTokenHedgeStatistics(RequestTokenHedge requestTokenHedge)
+    {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+
+        statistics.put("delay_ms", requestTokenHedge.getDelayMillis());
+        statistics.put("hedges", requestTokenHedge.getHedges());
+        statistics.put("hedges_won", requestTokenHedge.getHedgesWon());
+
+        return statistics;
+    }
+}
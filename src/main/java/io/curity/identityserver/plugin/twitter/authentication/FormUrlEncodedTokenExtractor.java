@@ -0,0 +1,198 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.extractors.OAuth1AccessTokenExtractor;
+import com.github.scribejava.core.extractors.OAuth1RequestTokenExtractor;
+import com.github.scribejava.core.extractors.TokenExtractor;
+import com.github.scribejava.core.model.OAuth1AccessToken;
+import com.github.scribejava.core.model.OAuth1RequestToken;
+import com.github.scribejava.core.model.OAuth1Token;
+import com.github.scribejava.core.model.Response;
+import com.github.scribejava.core.utils.OAuthEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.OAUTH_TOKEN;
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.OAUTH_TOKEN_SECRET;
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.SCREEN_NAME;
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.USER_ID;
+
+/**
+ * Extracts tokens from the {@code application/x-www-form-urlencoded} bodies of Twitter's request token and access
+ * token responses in a single pass, picking out only the parameters this plugin uses.
+ *
+ * <p>An unsuccessful response is reported as a {@link TwitterResponseException}. A body that is not well-formed is
+ * handed to ScribeJava's generic extractor instead, so that it is reported the same way as before.
+ */
+final class FormUrlEncodedTokenExtractor<T extends OAuth1Token> implements TokenExtractor<T>
+{
+    private static final Logger _logger = LoggerFactory.getLogger(FormUrlEncodedTokenExtractor.class);
+
+    static final FormUrlEncodedTokenExtractor<OAuth1RequestToken> REQUEST_TOKEN = new FormUrlEncodedTokenExtractor<>(
+            OAuth1RequestTokenExtractor.instance(),
+            parameters -> new OAuth1RequestToken(parameters._token, parameters._tokenSecret, parameters._body));
+
+    static final FormUrlEncodedTokenExtractor<OAuth1AccessToken> ACCESS_TOKEN = new FormUrlEncodedTokenExtractor<>(
+            OAuth1AccessTokenExtractor.instance(),
+            parameters -> new TwitterAccessToken(parameters._token, parameters._tokenSecret, parameters._userId,
+                    parameters._screenName, parameters._body));
+
+    private final TokenExtractor<T> _fallback;
+    private final Function<TokenParameters, T> _tokenFactory;
+
+    private FormUrlEncodedTokenExtractor(TokenExtractor<T> fallback, Function<TokenParameters, T> tokenFactory)
+    {
+        _fallback = fallback;
+        _tokenFactory = tokenFactory;
+    }
+
+    @Override
+    public T extract(Response response) throws IOException
+    {
+        String body = response.getBody();
+
+        if (!response.isSuccessful())
+        {
+            throw TwitterResponseException.from(response, body);
+        }
+
+        TokenParameters parameters = body == null ? null : parse(body);
+
+        if (parameters == null)
+        {
+            _logger.debug("Token response from Twitter is not well-formed; using generic extractor");
+
+            return _fallback.extract(response);
+        }
+
+        return _tokenFactory.apply(parameters);
+    }
+
+    /**
+     * Parse a token response body.
+     *
+     * @return the parameters of the response, or null if it is not well-formed or lacks a token or token secret
+     */
+    @Nullable
+    static TokenParameters parse(String body)
+    {
+        String token = null;
+        String tokenSecret = null;
+        String userId = null;
+        String screenName = null;
+        int length = body.length();
+        int start = 0;
+
+        try
+        {
+            while (start < length)
+            {
+                int end = body.indexOf('&', start);
+
+                if (end == -1)
+                {
+                    end = length;
+                }
+
+                int separator = body.indexOf('=', start);
+
+                if (separator <= start || separator > end)
+                {
+                    // Missing or empty name, or a name without a value
+                    return null;
+                }
+
+                if (token == null && isNamed(body, start, separator, OAUTH_TOKEN))
+                {
+                    token = decode(body, separator + 1, end);
+                }
+                else if (tokenSecret == null && isNamed(body, start, separator, OAUTH_TOKEN_SECRET))
+                {
+                    tokenSecret = decode(body, separator + 1, end);
+                }
+                else if (userId == null && isNamed(body, start, separator, USER_ID))
+                {
+                    userId = decode(body, separator + 1, end);
+                }
+                else if (screenName == null && isNamed(body, start, separator, SCREEN_NAME))
+                {
+                    screenName = decode(body, separator + 1, end);
+                }
+
+                start = end + 1;
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Invalid percent-encoding
+            return null;
+        }
+
+        if (token == null || token.isEmpty() || tokenSecret == null)
+        {
+            return null;
+        }
+
+        return new TokenParameters(token, tokenSecret, userId, screenName, body);
+    }
+
+    private static boolean isNamed(String body, int start, int separator, String name)
+    {
+        return separator - start == name.length() && body.startsWith(name, start);
+    }
+
+    private static String decode(String body, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            char c = body.charAt(i);
+
+            if (c == '%' || c == '+')
+            {
+                return OAuthEncoder.decode(body.substring(start, end));
+            }
+        }
+
+        return body.substring(start, end);
+    }
+
+    static final class TokenParameters
+    {
+        private final String _token;
+        private final String _tokenSecret;
+        @Nullable
+        private final String _userId;
+        @Nullable
+        private final String _screenName;
+        private final String _body;
+
+        private TokenParameters(String token, String tokenSecret, @Nullable String userId,
+                                @Nullable String screenName, String body)
+        {
+            _token = token;
+            _tokenSecret = tokenSecret;
+            _userId = userId;
+            _screenName = screenName;
+            _body = body;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.exceptions.OAuthSignatureException;
+import com.github.scribejava.core.services.SignatureService;
+import com.github.scribejava.core.utils.OAuthEncoder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Signs requests with HMAC-SHA1 like ScribeJava's {@code HMACSha1SignatureService}, but without redoing the work
+ * that is the same for every request.
+ *
+ * <p>The encoded form of each API secret key, which starts every signing key made from it, is kept, so that only the
+ * token secret is encoded per request. Each thread keeps its own {@link Mac} instead of looking one up for every
+ * signature, and only initialises it again when the signing key changes, which it does not for requests without a
+ * token secret, such as those for request tokens.
+ */
+final class HmacSha1Signer implements SignatureService
+{
+    private static final String ALGORITHM = "HmacSHA1";
+
+    /**
+     * Upper bound on the number of API secret keys kept, which is the number of configurations and so usually one or
+     * two. If it is reached, all of them are dropped.
+     */
+    private static final int MAX_KEY_PREFIXES = 16;
+
+    private static final ThreadLocal<ThreadMac> _mac = ThreadLocal.withInitial(() -> {
+        try
+        {
+            return new ThreadMac(Mac.getInstance(ALGORITHM));
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("HMAC-SHA1 is not available", e);
+        }
+    });
+
+    private final ConcurrentMap<String, KeyPrefix> _keyPrefixes = new ConcurrentHashMap<>();
+
+    @Override
+    public String getSignature(String baseString, String apiSecret, String tokenSecret)
+    {
+        try
+        {
+            if (isEmpty(baseString))
+            {
+                throw new IllegalArgumentException("Base string can't be null or empty string");
+            }
+
+            if (isEmpty(apiSecret))
+            {
+                throw new IllegalArgumentException("Api secret can't be null or empty string");
+            }
+
+            Mac mac = init(keyPrefixOf(apiSecret), tokenSecret);
+
+            return Base64.getEncoder().encodeToString(mac.doFinal(baseString.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (GeneralSecurityException | RuntimeException e)
+        {
+            throw new OAuthSignatureException(baseString, e);
+        }
+    }
+
+    @Override
+    public String getSignatureMethod()
+    {
+        return "HMAC-SHA1";
+    }
+
+    private static boolean isEmpty(String value)
+    {
+        return value == null || value.trim().isEmpty();
+    }
+
+    private KeyPrefix keyPrefixOf(String apiSecret)
+    {
+        KeyPrefix keyPrefix = _keyPrefixes.get(apiSecret);
+
+        if (keyPrefix != null)
+        {
+            return keyPrefix;
+        }
+
+        if (_keyPrefixes.size() >= MAX_KEY_PREFIXES)
+        {
+            _keyPrefixes.clear();
+        }
+
+        return _keyPrefixes.computeIfAbsent(apiSecret, KeyPrefix::new);
+    }
+
+    /**
+     * @return the {@link Mac} of this thread, initialised with the bytes of
+     * {@code encode(apiSecret) + '&' + encode(tokenSecret)}
+     */
+    private static Mac init(KeyPrefix keyPrefix, String tokenSecret) throws GeneralSecurityException
+    {
+        ThreadMac threadMac = _mac.get();
+
+        if (tokenSecret == null || tokenSecret.isEmpty())
+        {
+            if (threadMac._initialisedWith != keyPrefix)
+            {
+                threadMac._mac.init(keyPrefix._key);
+                threadMac._initialisedWith = keyPrefix;
+            }
+
+            // Reset to the initialised state by the last doFinal
+            return threadMac._mac;
+        }
+
+        byte[] prefix = keyPrefix._bytes;
+        byte[] encodedTokenSecret = OAuthEncoder.encode(tokenSecret).getBytes(StandardCharsets.UTF_8);
+        byte[] key = Arrays.copyOf(prefix, prefix.length + encodedTokenSecret.length);
+
+        System.arraycopy(encodedTokenSecret, 0, key, prefix.length, encodedTokenSecret.length);
+        threadMac._initialisedWith = null;
+        threadMac._mac.init(new SecretKeySpec(key, ALGORITHM));
+
+        return threadMac._mac;
+    }
+
+    private static final class KeyPrefix
+    {
+        private final byte[] _bytes;
+
+        // The signing key when there is no token secret
+        private final SecretKeySpec _key;
+
+        private KeyPrefix(String apiSecret)
+        {
+            _bytes = (OAuthEncoder.encode(apiSecret) + '&').getBytes(StandardCharsets.UTF_8);
+            _key = new SecretKeySpec(_bytes, ALGORITHM);
+        }
+    }
+
+    private static final class ThreadMac
+    {
+        private final Mac _mac;
+
+        /**
+         * The key prefix the {@link Mac} was last initialised with on its own, or null if it was initialised with a
+         * key that has a token secret.
+         */
+        private KeyPrefix _initialisedWith;
+
+        private ThreadMac(Mac mac)
+        {
+            _mac = mac;
+        }
+    }
+}
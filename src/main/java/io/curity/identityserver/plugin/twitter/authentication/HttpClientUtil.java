@@ -20,19 +20,13 @@ import com.github.scribejava.core.httpclient.HttpClient;
 import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
 import se.curity.identityserver.sdk.Nullable;
 
-import java.util.Optional;
-
 final class HttpClientUtil
 {
     private HttpClientUtil() { }
 
-    @Nullable
-    static HttpClient getHttpClient(TwitterAuthenticatorPluginConfig config)
+    static HttpClient getHttpClient(TwitterAuthenticatorPluginConfig config,
+                                    @Nullable RequestTokenRateLimiter rateLimiter, TwitterExecutor executor)
     {
-        Optional<se.curity.identityserver.sdk.service.HttpClient> maybeHttpClient = config.getHttpClient();
-
-        return maybeHttpClient
-                .map(httpClient -> ScribeJavaHttpClientAdapter.from(config.getWebServiceClientFactory(), httpClient))
-                .orElseGet(() -> ScribeJavaHttpClientAdapter.from(config.getWebServiceClientFactory()));
+        return ScribeJavaHttpClientAdapter.from(TwitterEndpoints.from(config), rateLimiter, executor);
     }
 }
@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A histogram of recent latencies, with buckets that grow exponentially and are split linearly, like an HDR
+ * histogram with one significant digit, so that any latency is reported to within 12.5%.
+ *
+ * <p>Latencies are kept in microseconds, up to about 12 days.
+ */
+final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS * 38;
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    private static final String[] PERCENTILE_NAMES = { "p50_ms", "p90_ms", "p99_ms", "p999_ms" };
+
+    private final RecentCounts _counts = new RecentCounts(BUCKETS);
+
+    void record(long nanos)
+    {
+        _counts.increment(bucketOf(TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+    /**
+     * @return the number of latencies recorded over the last one to two minutes, their percentiles and the maximum,
+     * in milliseconds
+     */
+    Map<String, Object> snapshot()
+    {
+        long[] counts = _counts.snapshot();
+        long total = 0;
+
+        for (long count : counts)
+        {
+            total += count;
+        }
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+
+        snapshot.put("count", total);
+
+        if (total == 0)
+        {
+            return snapshot;
+        }
+
+        int bucket = 0;
+        long seen = counts[0];
+
+        for (int i = 0; i < PERCENTILES.length; i++)
+        {
+            long rank = (long) Math.ceil(total * PERCENTILES[i] / 100);
+
+            while (seen < rank)
+            {
+                seen += counts[++bucket];
+            }
+
+            snapshot.put(PERCENTILE_NAMES[i], toMillis(upperBoundMicros(bucket)));
+        }
+
+        int highest = counts.length - 1;
+
+        while (counts[highest] == 0)
+        {
+            highest--;
+        }
+
+        snapshot.put("max_ms", toMillis(upperBoundMicros(highest)));
+
+        return snapshot;
+    }
+
+    static int bucketOf(long micros)
+    {
+        if (micros < SUB_BUCKETS)
+        {
+            return (int) Math.max(0, micros);
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return Math.min(BUCKETS - 1, (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket);
+    }
+
+    /**
+     * @return the highest latency that falls in the given bucket
+     */
+    static long upperBoundMicros(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+
+    private static double toMillis(long micros)
+    {
+        return micros / 1000.0;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import org.slf4j.MDC;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Puts an ID of the current login in the logging context, under {@link #LOGIN_ID}, so that the messages logged when
+ * the user is redirected to Twitter and when they come back can be tied together, also across nodes.
+ *
+ * <p>The ID is derived from the request token, which both requests know, rather than being stored, and the token
+ * itself is not logged. The handlers only put it there when debug logging is enabled, so that hashing the token is
+ * not paid for on every login.
+ */
+final class LoginCorrelation
+{
+    static final String LOGIN_ID = "twitter.login_id";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int ID_BYTES = 8;
+
+    private LoginCorrelation() { }
+
+    /**
+     * Put the ID of the login with the given request token in the logging context of this thread, until
+     * {@link #end()} is called.
+     */
+    static void begin(@Nullable String oauthToken)
+    {
+        if (oauthToken != null)
+        {
+            MDC.put(LOGIN_ID, idOf(oauthToken));
+        }
+    }
+
+    static void end()
+    {
+        MDC.remove(LOGIN_ID);
+    }
+
+    static String idOf(String oauthToken)
+    {
+        byte[] digest;
+
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256").digest(oauthToken.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+
+        char[] id = new char[ID_BYTES * 2];
+
+        for (int i = 0; i < ID_BYTES; i++)
+        {
+            id[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            id[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+
+        return new String(id);
+    }
+}
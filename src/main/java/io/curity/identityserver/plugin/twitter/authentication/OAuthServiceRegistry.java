@@ -0,0 +1,336 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.oauth.OAuth10aService;
+import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.service.HttpClient;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static io.curity.identityserver.plugin.twitter.authentication.HttpClientUtil.getHttpClient;
+
+/**
+ * Keeps one {@link TwitterService} per distinct configuration and callback URI, so that the {@link OAuth10aService},
+ * its HTTP client adapter, the underlying web service client and any request token pool are created once and shared
+ * by all concurrent logins.
+ *
+ * <p>Services are keyed on configuration values only, so a configuration change results in a new key, and so in a
+ * new service being built on the next request. The one exception is the HTTP client, of which only the scheme is part
+ * of the key; the services of a configuration are closed when it is loaded with another HTTP client. The services of
+ * a configuration are also closed, which stops their threads, once no {@link TwitterConnectionKeeper} of it is left,
+ * which happens when the configuration is changed or removed.
+ *
+ * <p>A service that is closed or evicted is only closed after {@link #CLOSE_DELAY_MILLIS}, so that logins that got it
+ * before can finish with it.
+ */
+final class OAuthServiceRegistry
+{
+    /**
+     * Upper bound on the number of configurations services are kept for. Only configurations that are not in use, as
+     * noted by {@link #retain}, are evicted to stay within it, oldest first.
+     */
+    static final int MAX_CONFIGURATIONS = 16;
+
+    /**
+     * Upper bound on the number of services kept for one configuration. Every host the authenticator is reachable
+     * through has its own callback URI, so the oldest service of the configuration is evicted if it has more than
+     * this. Other configurations are not affected.
+     */
+    static final int MAX_SERVICES_PER_CONFIGURATION = 64;
+
+    /**
+     * How long a service is kept open after it has been evicted or its configuration released, which is well beyond
+     * the deadlines of the calls a login makes.
+     */
+    private static final long CLOSE_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final ConcurrentMap<List<Object>, ConfigurationServices> _services = new ConcurrentHashMap<>();
+
+    // Guards the following, and the keys of _services
+    private static final Object _lock = new Object();
+
+    // The keys of _services, oldest first
+    private static final Deque<List<Object>> _configKeys = new ArrayDeque<>();
+    private static final Map<List<Object>, Integer> _references = new HashMap<>();
+    private static final Map<List<Object>, HttpClient> _httpClients = new HashMap<>();
+
+    private OAuthServiceRegistry() { }
+
+    static TwitterService getService(TwitterAuthenticatorPluginConfig config, String callbackUri)
+    {
+        List<Object> configKey = keyOf(config);
+        ConfigurationServices services = _services.get(configKey);
+
+        if (services == null)
+        {
+            services = addConfiguration(configKey);
+        }
+
+        return services.get(config, callbackUri);
+    }
+
+    /**
+     * Look up the service of the given configuration and callback URI without creating one.
+     *
+     * @return the service, or null if none has been created
+     */
+    @Nullable
+    static TwitterService findService(TwitterAuthenticatorPluginConfig config, String callbackUri)
+    {
+        ConfigurationServices services = _services.get(keyOf(config));
+
+        return services != null ? services._byCallbackUri.get(callbackUri) : null;
+    }
+
+    /**
+     * Note that the given configuration is in use, so that its services are kept until {@link #release} is called.
+     */
+    static void retain(TwitterAuthenticatorPluginConfig config)
+    {
+        List<Object> configKey = keyOf(config);
+        HttpClient httpClient = config.getHttpClient().orElse(null);
+
+        synchronized (_lock)
+        {
+            _references.merge(configKey, 1, Integer::sum);
+
+            if (_httpClients.put(configKey, httpClient) != httpClient)
+            {
+                // The key only has the scheme of the HTTP client, so services built with the previous one are closed
+                removeConfiguration(configKey);
+            }
+        }
+    }
+
+    /**
+     * Note that the given configuration is no longer in use, and close its services if nothing else uses it.
+     */
+    static void release(TwitterAuthenticatorPluginConfig config)
+    {
+        List<Object> configKey = keyOf(config);
+
+        synchronized (_lock)
+        {
+            if (_references.computeIfPresent(configKey, (key, count) -> count > 1 ? count - 1 : null) != null)
+            {
+                return;
+            }
+
+            _httpClients.remove(configKey);
+            removeConfiguration(configKey);
+        }
+    }
+
+    private static ConfigurationServices addConfiguration(List<Object> configKey)
+    {
+        synchronized (_lock)
+        {
+            ConfigurationServices services = _services.get(configKey);
+
+            if (services != null)
+            {
+                return services;
+            }
+
+            if (_services.size() >= MAX_CONFIGURATIONS)
+            {
+                evictConfigurationNotInUse();
+            }
+
+            services = new ConfigurationServices();
+            _services.put(configKey, services);
+            _configKeys.add(configKey);
+
+            return services;
+        }
+    }
+
+    // Only called holding _lock
+    private static void evictConfigurationNotInUse()
+    {
+        for (Iterator<List<Object>> configKeys = _configKeys.iterator(); configKeys.hasNext(); )
+        {
+            List<Object> configKey = configKeys.next();
+
+            if (!_references.containsKey(configKey))
+            {
+                configKeys.remove();
+                _services.remove(configKey).closeAllLater();
+
+                return;
+            }
+        }
+    }
+
+    // Only called holding _lock
+    private static void removeConfiguration(List<Object> configKey)
+    {
+        ConfigurationServices services = _services.remove(configKey);
+
+        if (services != null)
+        {
+            _configKeys.remove(configKey);
+            services.closeAllLater();
+        }
+    }
+
+    private static void closeLater(TwitterService service)
+    {
+        TwitterExecutor.schedule(service::close, CLOSE_DELAY_MILLIS);
+    }
+
+    /**
+     * @return the values of everything a {@link TwitterService} is built from, other than the callback URI
+     */
+    private static List<Object> keyOf(TwitterAuthenticatorPluginConfig config)
+    {
+        return Arrays.asList(
+                config.id(),
+                config.getApiKey(),
+                config.getApiSecretKey(),
+                config.getHttpClient().map(HttpClient::getScheme).orElse(null),
+                config.getApiBaseUrl(),
+                config.getAuthorizeUrl(),
+                config.getApiEgressEndpoints(),
+                config.getRequestTokenPoolSize(),
+                config.getRequestTokenPoolMaxAge(),
+                config.getCallThreads(),
+                config.getMaxConcurrentCalls(),
+                config.getRequestTokenTimeout(),
+                config.getAccessTokenTimeout(),
+                config.getRequestTokenRetries(),
+                config.getRequestTokenHedgeBudget(),
+                config.getRequestTokenHedgePercentile(),
+                config.getCircuitBreakerFailureThreshold(),
+                config.getCircuitBreakerOpenDuration(),
+                config.getRateLimitMaxHoldOff(),
+                config.getRequestTokenRateLimit(),
+                config.getRequestTokenRateLimitMaxWait(),
+                config.getRequestTokenRateLimitMaxQueued(),
+                config.isStoreRequestTokenInCookie(),
+                config.getRequestTokenCookieMaxAge(),
+                config.isFetchProfile(),
+                config.getProfileCacheSize(),
+                config.getProfileCacheTtl(),
+                config.getProfileCacheNegativeTtl(),
+                config.getProfileTimeout(),
+                config.getMaxConcurrentProfileFetches());
+    }
+
+    private static TwitterService createService(TwitterAuthenticatorPluginConfig config, String callbackUri)
+    {
+        int rateLimit = config.getRequestTokenRateLimit();
+        RequestTokenRateLimiter rateLimiter = rateLimit > 0
+                ? RequestTokenRateLimiter.forApiKey(config.getApiKey(), rateLimit,
+                        config.getRequestTokenRateLimitMaxWait(), config.getRequestTokenRateLimitMaxQueued())
+                : null;
+        TwitterExecutor executor = new TwitterExecutor("twitter-" + config.id(), config.getCallThreads(),
+                config.getMaxConcurrentCalls());
+        OAuth10aService service = new ServiceBuilder(config.getApiKey())
+                .apiSecret(config.getApiSecretKey())
+                .callback(callbackUri)
+                .httpClient(getHttpClient(config, rateLimiter, executor))
+                .build(TwitterApi.from(config));
+        UserProfileCache profileCache = config.isFetchProfile()
+                ? new UserProfileCache(config.getProfileCacheSize(), config.getProfileCacheTtl(),
+                        config.getProfileCacheNegativeTtl())
+                : null;
+
+        RequestTokenState requestTokenState = config.isStoreRequestTokenInCookie()
+                ? new RequestTokenState(config.getApiSecretKey(), config.getRequestTokenCookieMaxAge())
+                : null;
+
+        TwitterService twitterService = new TwitterService(service, executor, rateLimiter, profileCache,
+                requestTokenState, config);
+
+        twitterService.start();
+
+        return twitterService;
+    }
+
+    /**
+     * The services of one configuration, by callback URI.
+     */
+    private static final class ConfigurationServices
+    {
+        private final ConcurrentMap<String, TwitterService> _byCallbackUri = new ConcurrentHashMap<>();
+
+        // Guarded by this; the keys of _byCallbackUri, oldest first
+        private final Deque<String> _callbackUris = new ArrayDeque<>();
+        private boolean _closed;
+
+        private TwitterService get(TwitterAuthenticatorPluginConfig config, String callbackUri)
+        {
+            TwitterService service = _byCallbackUri.get(callbackUri);
+
+            if (service != null)
+            {
+                return service;
+            }
+
+            synchronized (this)
+            {
+                service = _byCallbackUri.get(callbackUri);
+
+                if (service != null)
+                {
+                    return service;
+                }
+
+                service = createService(config, callbackUri);
+
+                if (_closed)
+                {
+                    // Removed from the registry after the caller looked it up
+                    closeLater(service);
+
+                    return service;
+                }
+
+                if (_callbackUris.size() >= MAX_SERVICES_PER_CONFIGURATION)
+                {
+                    closeLater(_byCallbackUri.remove(_callbackUris.poll()));
+                }
+
+                _byCallbackUri.put(callbackUri, service);
+                _callbackUris.add(callbackUri);
+
+                return service;
+            }
+        }
+
+        private synchronized void closeAllLater()
+        {
+            _closed = true;
+            _byCallbackUri.values().forEach(OAuthServiceRegistry::closeLater);
+            _byCallbackUri.clear();
+            _callbackUris.clear();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed number of counters over the last one to two minutes, updated without locking.
+ *
+ * <p>Counts go to the slot of the current minute, which is cleared by the first count in a new minute, and a
+ * snapshot adds up the current and the previous minute. A count made while its slot is being cleared may be lost,
+ * which is acceptable for diagnostics.
+ */
+final class RecentCounts
+{
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final int _size;
+    private final AtomicLongArray[] _slots = new AtomicLongArray[2];
+
+    /**
+     * The minute each slot counts, in units of {@link #WINDOW_NANOS} of {@link System#nanoTime()}.
+     */
+    private final AtomicLongArray _windows = new AtomicLongArray(2);
+
+    RecentCounts(int size)
+    {
+        _size = size;
+
+        for (int slot = 0; slot < _slots.length; slot++)
+        {
+            _slots[slot] = new AtomicLongArray(size);
+            _windows.set(slot, Long.MIN_VALUE);
+        }
+    }
+
+    void increment(int index)
+    {
+        long window = Math.floorDiv(System.nanoTime(), WINDOW_NANOS);
+        int slot = (int) Math.floorMod(window, 2L);
+        long slotWindow = _windows.get(slot);
+
+        if (slotWindow != window && _windows.compareAndSet(slot, slotWindow, window))
+        {
+            AtomicLongArray counts = _slots[slot];
+
+            for (int i = 0; i < _size; i++)
+            {
+                counts.set(i, 0);
+            }
+        }
+
+        _slots[slot].incrementAndGet(index);
+    }
+
+    /**
+     * @return the counts of the current and the previous minute
+     */
+    long[] snapshot()
+    {
+        long window = Math.floorDiv(System.nanoTime(), WINDOW_NANOS);
+        long[] counts = new long[_size];
+
+        for (int slot = 0; slot < _slots.length; slot++)
+        {
+            long slotWindow = _windows.get(slot);
+
+            if (slotWindow == window || slotWindow == window - 1)
+            {
+                for (int i = 0; i < _size; i++)
+                {
+                    counts[i] += _slots[slot].get(i);
+                }
+            }
+        }
+
+        return counts;
+    }
+}
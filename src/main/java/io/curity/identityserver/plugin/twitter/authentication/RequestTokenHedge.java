@@ -0,0 +1,244 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.model.OAuth1RequestToken;
+import com.github.scribejava.core.model.OAuthAsyncRequestCallback;
+import com.github.scribejava.core.oauth.OAuth10aService;
+import io.curity.identityserver.plugin.twitter.metrics.TwitterMetrics;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hedges request token calls: when a call has not been answered within the configured percentile of recent call
+ * times, a second one is made, and whichever is answered first is used. Request tokens that are not used simply
+ * expire at Twitter, so the extra call does no harm other than the load it adds.
+ *
+ * <p>That load is bounded by a budget: every call earns a percentage of a hedge, and a hedge is only made when a
+ * whole one has been earned. A hedge also needs a permit from the rate limiter, if there is one, but does not wait
+ * for it. Until enough call times have been seen, calls are not hedged.
+ */
+final class RequestTokenHedge
+{
+    private static final int SAMPLES = 256;
+    private static final int MIN_SAMPLES = 32;
+    private static final int SAMPLES_PER_UPDATE = 32;
+    private static final long MIN_DELAY_MILLIS = 20;
+
+    /**
+     * Upper bound on the hedges that can be earned while calls are fast, in hundredths of a hedge, so that a slow
+     * spell after a long quiet one does not double the load on Twitter.
+     */
+    private static final long MAX_CREDIT = 10 * 100;
+
+    private final TwitterMetrics _metrics = CompositeTwitterMetrics.instance();
+    private final OAuth10aService _service;
+    private final int _budgetPercent;
+    private final int _percentile;
+
+    @Nullable
+    private final RequestTokenRateLimiter _rateLimiter;
+
+    /**
+     * The most recent call times, as a ring indexed by the number of times recorded.
+     */
+    private final AtomicLongArray _samples = new AtomicLongArray(SAMPLES);
+    private final AtomicLong _sampleCount = new AtomicLong();
+
+    /**
+     * The hedges earned, in hundredths of a hedge.
+     */
+    private final AtomicLong _credit = new AtomicLong();
+
+    private final LongAdder _hedges = new LongAdder();
+    private final LongAdder _hedgesWon = new LongAdder();
+
+    /**
+     * How long to wait for a call before hedging it, or -1 while there are not enough samples.
+     */
+    private volatile long _delayMillis = -1;
+
+    RequestTokenHedge(OAuth10aService service, @Nullable RequestTokenRateLimiter rateLimiter, int budgetPercent,
+                      int percentile)
+    {
+        _service = service;
+        _rateLimiter = rateLimiter;
+        _budgetPercent = budgetPercent;
+        _percentile = Math.max(1, Math.min(100, percentile));
+    }
+
+    /**
+     * Get a request token, hedging the call if it is slow. Once the returned future completes, or is cancelled, the
+     * calls that are still waiting for a thread are dropped and those that are running are interrupted; a request
+     * that has already been sent may still reach Twitter.
+     */
+    Future<OAuth1RequestToken> getRequestTokenAsync()
+    {
+        _credit.accumulateAndGet(_budgetPercent, (credit, earned) -> Math.min(MAX_CREDIT, credit + earned));
+
+        CompletableFuture<OAuth1RequestToken> result = new CompletableFuture<>();
+        AtomicInteger running = new AtomicInteger(1);
+        Future<OAuth1RequestToken> first = start(result, running, false);
+        long delayMillis = _delayMillis;
+
+        if (delayMillis < 0)
+        {
+            result.whenComplete((token, e) -> first.cancel(true));
+
+            return result;
+        }
+
+        ScheduledFuture<?> hedge = TwitterExecutor.schedule(() -> {
+            if (result.isDone() || !takeCredit() || (_rateLimiter != null && !_rateLimiter.tryAcquire()))
+            {
+                return;
+            }
+
+            running.incrementAndGet();
+            _hedges.increment();
+
+            Future<OAuth1RequestToken> second = start(result, running, true);
+
+            result.whenComplete((token, e) -> second.cancel(true));
+        }, delayMillis);
+
+        result.whenComplete((token, e) -> {
+            hedge.cancel(false);
+            first.cancel(true);
+        });
+
+        return result;
+    }
+
+    long getHedges()
+    {
+        return _hedges.sum();
+    }
+
+    long getHedgesWon()
+    {
+        return _hedgesWon.sum();
+    }
+
+    /**
+     * @return how long a call is waited for before it is hedged, or -1 if calls are not hedged yet
+     */
+    long getDelayMillis()
+    {
+        return _delayMillis;
+    }
+
+    /**
+     * Start a call that completes the given result if it is the first to succeed, or fails it if it is the last of
+     * the running calls to fail.
+     */
+    private Future<OAuth1RequestToken> start(CompletableFuture<OAuth1RequestToken> result, AtomicInteger running,
+                                             boolean hedged)
+    {
+        long start = System.nanoTime();
+
+        return _service.getRequestTokenAsync(new OAuthAsyncRequestCallback<OAuth1RequestToken>()
+        {
+            @Override
+            public void onCompleted(OAuth1RequestToken requestToken)
+            {
+                recordSample(System.nanoTime() - start);
+
+                boolean won = result.complete(requestToken);
+
+                if (hedged)
+                {
+                    if (won)
+                    {
+                        _hedgesWon.increment();
+                    }
+
+                    _metrics.recordRequestTokenHedged(won);
+                }
+            }
+
+            @Override
+            public void onThrowable(Throwable t)
+            {
+                if (hedged)
+                {
+                    _metrics.recordRequestTokenHedged(false);
+                }
+
+                if (running.decrementAndGet() == 0)
+                {
+                    result.completeExceptionally(t);
+                }
+            }
+        });
+    }
+
+    private boolean takeCredit()
+    {
+        while (true)
+        {
+            long credit = _credit.get();
+
+            if (credit < 100)
+            {
+                return false;
+            }
+
+            if (_credit.compareAndSet(credit, credit - 100))
+            {
+                return true;
+            }
+        }
+    }
+
+    private void recordSample(long nanos)
+    {
+        long count = _sampleCount.getAndIncrement() + 1;
+
+        _samples.set((int) ((count - 1) % SAMPLES), nanos);
+
+        if (count >= MIN_SAMPLES && count % SAMPLES_PER_UPDATE == 0)
+        {
+            updateDelay((int) Math.min(count, SAMPLES));
+        }
+    }
+
+    private void updateDelay(int sampleCount)
+    {
+        long[] samples = new long[sampleCount];
+
+        for (int i = 0; i < sampleCount; i++)
+        {
+            samples[i] = _samples.get(i);
+        }
+
+        Arrays.sort(samples);
+
+        long percentileNanos = samples[Math.min(sampleCount - 1, sampleCount * _percentile / 100)];
+
+        _delayMillis = Math.max(MIN_DELAY_MILLIS, TimeUnit.NANOSECONDS.toMillis(percentileNanos));
+    }
+}
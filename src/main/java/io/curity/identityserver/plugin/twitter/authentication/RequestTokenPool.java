@@ -0,0 +1,236 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.model.OAuth1RequestToken;
+import io.curity.identityserver.plugin.twitter.metrics.TwitterMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of request tokens obtained from Twitter ahead of time, so that a login can be redirected without
+ * waiting for a round trip to Twitter.
+ *
+ * <p>Tokens are handed out oldest first and are discarded once they are older than the configured maximum age. The
+ * pool is filled when it is started, and every time a token is taken a background refill is started if the pool is
+ * below its size and no refill is running. The refill stops as soon as its {@link Source} has no token to give.
+ *
+ * <p>Each pool refills on a thread of its own, so that a pool whose calls to Twitter are slow does not hold up the
+ * others. The thread ends when it has been idle for a while.
+ */
+final class RequestTokenPool
+{
+    private static final Logger _logger = LoggerFactory.getLogger(RequestTokenPool.class);
+    private static final SampledLog _refillFailures = new SampledLog(_logger);
+
+    private static final long IDLE_THREAD_SECONDS = 60;
+
+    private final ThreadPoolExecutor _refiller;
+    private final TwitterMetrics _metrics;
+    private final Source _source;
+    private final int _size;
+    private final long _maxAgeNanos;
+    private final ConcurrentLinkedQueue<PooledToken> _tokens = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger _depth = new AtomicInteger();
+    private final AtomicBoolean _refilling = new AtomicBoolean();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _expiryDiscards = new AtomicLong();
+
+    /**
+     * @param name the name of the thread the pool is refilled on
+     */
+    RequestTokenPool(String name, Source source, int size, int maxAgeSeconds, TwitterMetrics metrics)
+    {
+        _refiller = new ThreadPoolExecutor(1, 1, IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, name);
+
+                    thread.setDaemon(true);
+
+                    return thread;
+                });
+        _refiller.allowCoreThreadTimeOut(true);
+        _metrics = metrics;
+        _source = source;
+        _size = size;
+        _maxAgeNanos = TimeUnit.SECONDS.toNanos(maxAgeSeconds);
+    }
+
+    /**
+     * Start filling the pool in the background, so that it has tokens before the first ones are taken.
+     */
+    void fill()
+    {
+        refill();
+    }
+
+    /**
+     * Stop refilling the pool. A refill that is running ends after its current call to Twitter.
+     */
+    void close()
+    {
+        _refiller.shutdown();
+    }
+
+    /**
+     * Take a pre-fetched request token from the pool.
+     *
+     * @return an unexpired request token, or null if the pool is empty and the caller should obtain one itself
+     */
+    @Nullable
+    OAuth1RequestToken poll()
+    {
+        long now = System.nanoTime();
+        PooledToken pooledToken;
+
+        try
+        {
+            while ((pooledToken = _tokens.poll()) != null)
+            {
+                _metrics.recordRequestTokenPoolDepth(_depth.decrementAndGet());
+
+                if (now - pooledToken._fetchedAt < _maxAgeNanos)
+                {
+                    _hits.incrementAndGet();
+                    _metrics.recordRequestTokenPoolHit();
+
+                    return pooledToken._token;
+                }
+
+                _expiryDiscards.incrementAndGet();
+                _metrics.recordRequestTokenPoolExpired();
+            }
+
+            _misses.incrementAndGet();
+            _metrics.recordRequestTokenPoolMiss();
+
+            return null;
+        }
+        finally
+        {
+            refill();
+        }
+    }
+
+    private void refill()
+    {
+        if (_depth.get() >= _size || !_refilling.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        try
+        {
+            _refiller.execute(() -> {
+                try
+                {
+                    OAuth1RequestToken token;
+
+                    while (_depth.get() < _size && (token = _source.fetch()) != null)
+                    {
+                        _tokens.add(new PooledToken(token, System.nanoTime()));
+                        _metrics.recordRequestTokenPoolDepth(_depth.incrementAndGet());
+                    }
+                }
+                catch (Exception e)
+                {
+                    // The next login falls back to fetching its own token and triggers a new refill
+                    _refillFailures.info("Could not pre-fetch request token from Twitter: {} - {}",
+                            e.getClass().getSimpleName(), e.getMessage());
+                }
+                finally
+                {
+                    _refilling.set(false);
+                }
+
+                if (_logger.isTraceEnabled())
+                {
+                    _logger.trace("Request token pool refilled; depth = {}, hits = {}, misses = {}, expired = {}",
+                            _depth.get(), _hits.get(), _misses.get(), _expiryDiscards.get());
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Closed, so there is nothing to refill for
+            _refilling.set(false);
+        }
+    }
+
+    int getDepth()
+    {
+        return _depth.get();
+    }
+
+    long getHits()
+    {
+        return _hits.get();
+    }
+
+    long getMisses()
+    {
+        return _misses.get();
+    }
+
+    long getExpiryDiscards()
+    {
+        return _expiryDiscards.get();
+    }
+
+    double getHitRate()
+    {
+        long hits = _hits.get();
+        long total = hits + _misses.get();
+
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Where the tokens the pool is refilled with come from.
+     */
+    interface Source
+    {
+        /**
+         * @return a new request token, or null if none should be fetched right now
+         */
+        @Nullable
+        OAuth1RequestToken fetch() throws Exception;
+    }
+
+    private static final class PooledToken
+    {
+        private final OAuth1RequestToken _token;
+        private final long _fetchedAt;
+
+        private PooledToken(OAuth1RequestToken token, long fetchedAt)
+        {
+            _token = token;
+            _fetchedAt = fetchedAt;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that keeps the calls one Twitter app makes to the request token endpoint below a configured rate.
+ *
+ * <p>When no permit is available, a caller waits for one as long as both the wait and the number of callers already
+ * waiting stay within bounds; otherwise the call is shed. The rate is lowered further when the
+ * {@code x-rate-limit-remaining} and {@code x-rate-limit-reset} headers of Twitter's responses show that less of the
+ * app's quota is left than the configured rate would use before the quota resets.
+ */
+final class RequestTokenRateLimiter
+{
+    private static final Logger _logger = LoggerFactory.getLogger(RequestTokenRateLimiter.class);
+
+    private static final ConcurrentMap<String, RequestTokenRateLimiter> _limitersByApiKey = new ConcurrentHashMap<>();
+
+    private static final double MIN_PERMITS_PER_NANO = 1e-15;
+
+    private final int _permitsPerMinute;
+    private final long _maxWaitNanos;
+    private final int _maxQueued;
+    private final double _configuredPermitsPerNano;
+    private final double _capacity;
+
+    private final AtomicInteger _waiting = new AtomicInteger();
+    private final AtomicLong _admitted = new AtomicLong();
+    private final AtomicLong _queued = new AtomicLong();
+    private final AtomicLong _shed = new AtomicLong();
+
+    // Guarded by this
+    private double _permitsPerNano;
+    private double _available;
+    private long _lastRefill;
+    private long _adaptedUntil;
+
+    private RequestTokenRateLimiter(int permitsPerMinute, int maxWaitMillis, int maxQueued)
+    {
+        _permitsPerMinute = permitsPerMinute;
+        _maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        _maxQueued = maxQueued;
+        _configuredPermitsPerNano = permitsPerMinute / (double) TimeUnit.MINUTES.toNanos(1);
+        _capacity = Math.max(1, permitsPerMinute / 10.0);
+        _permitsPerNano = _configuredPermitsPerNano;
+        _available = _capacity;
+        _lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Get the limiter of the given app, creating it if it does not exist or its limits have changed.
+     */
+    static RequestTokenRateLimiter forApiKey(String apiKey, int permitsPerMinute, int maxWaitMillis, int maxQueued)
+    {
+        return _limitersByApiKey.compute(apiKey, (key, existing) ->
+                existing != null && existing.hasLimits(permitsPerMinute, maxWaitMillis, maxQueued)
+                        ? existing
+                        : new RequestTokenRateLimiter(permitsPerMinute, maxWaitMillis, maxQueued));
+    }
+
+    /**
+     * Wait for a permit to call the request token endpoint.
+     *
+     * @throws TwitterUnavailableException if the call is shed
+     */
+    void acquire() throws InterruptedException
+    {
+        long waitNanos;
+
+        synchronized (this)
+        {
+            refill(System.nanoTime());
+
+            if (_available >= 1)
+            {
+                _available -= 1;
+                _admitted.incrementAndGet();
+
+                return;
+            }
+
+            waitNanos = (long) ((1 - _available) / _permitsPerNano);
+
+            if (waitNanos > _maxWaitNanos || _waiting.get() >= _maxQueued)
+            {
+                _shed.incrementAndGet();
+
+                throw new TwitterUnavailableException(
+                        "Too many logins with Twitter at the moment; please try again later");
+            }
+
+            // Reserve the permit, so that later callers queue behind this one
+            _available -= 1;
+            _waiting.incrementAndGet();
+            _queued.incrementAndGet();
+        }
+
+        try
+        {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        finally
+        {
+            _waiting.decrementAndGet();
+        }
+
+        _admitted.incrementAndGet();
+    }
+
+    /**
+     * Take a permit if one is available right away. Used for background calls, which should not compete with
+     * logins for permits.
+     */
+    synchronized boolean tryAcquire()
+    {
+        refill(System.nanoTime());
+
+        if (_available >= 1)
+        {
+            _available -= 1;
+            _admitted.incrementAndGet();
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Adapt the rate to the rate limit headers of a response from the request token endpoint.
+     */
+    void onResponseHeaders(Map<String, String> headers)
+    {
+        Long remaining = parseLong(headers.get("x-rate-limit-remaining"));
+        Long resetEpochSeconds = parseLong(headers.get("x-rate-limit-reset"));
+
+        if (remaining == null || resetEpochSeconds == null)
+        {
+            return;
+        }
+
+        long nanosUntilReset = TimeUnit.MILLISECONDS.toNanos(
+                TimeUnit.SECONDS.toMillis(resetEpochSeconds) - System.currentTimeMillis());
+
+        if (nanosUntilReset <= 0)
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            long now = System.nanoTime();
+
+            refill(now);
+
+            _permitsPerNano = Math.max(MIN_PERMITS_PER_NANO,
+                    Math.min(_configuredPermitsPerNano, remaining / (double) nanosUntilReset));
+            _available = Math.min(_available, remaining);
+            _adaptedUntil = now + nanosUntilReset;
+        }
+
+        if (_logger.isTraceEnabled())
+        {
+            _logger.trace("Twitter reports {} request tokens left for {} ms", remaining,
+                    TimeUnit.NANOSECONDS.toMillis(nanosUntilReset));
+        }
+    }
+
+    long getAdmitted()
+    {
+        return _admitted.get();
+    }
+
+    long getQueued()
+    {
+        return _queued.get();
+    }
+
+    long getShed()
+    {
+        return _shed.get();
+    }
+
+    int getWaiting()
+    {
+        return _waiting.get();
+    }
+
+    int getPermitsPerMinute()
+    {
+        return _permitsPerMinute;
+    }
+
+    private boolean hasLimits(int permitsPerMinute, int maxWaitMillis, int maxQueued)
+    {
+        return _permitsPerMinute == permitsPerMinute &&
+                _maxWaitNanos == TimeUnit.MILLISECONDS.toNanos(maxWaitMillis) &&
+                _maxQueued == maxQueued;
+    }
+
+    // Must hold the lock on this
+    private void refill(long now)
+    {
+        if (_adaptedUntil != 0 && now - _adaptedUntil >= 0)
+        {
+            // Twitter's quota window has reset
+            _permitsPerNano = _configuredPermitsPerNano;
+            _adaptedUntil = 0;
+        }
+
+        _available = Math.min(_capacity, _available + (now - _lastRefill) * _permitsPerNano);
+        _lastRefill = now;
+    }
+
+    @Nullable
+    private static Long parseLong(@Nullable String value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+}
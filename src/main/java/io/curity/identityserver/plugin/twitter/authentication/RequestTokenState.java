@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.model.OAuth1RequestToken;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.http.Cookie;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries the request token secret from the redirect to Twitter to the callback in a cookie, instead of in the
+ * session.
+ *
+ * <p>The secret is encrypted with AES-GCM under a key derived from the API secret key, so every node with the same
+ * configuration can read it and nobody else can read or alter it. The request token itself is authenticated along
+ * with it, so that the state only opens for the request token Twitter returns in the callback. The state expires
+ * after a fixed time and is accepted only once by each node.
+ */
+final class RequestTokenState
+{
+    static final String COOKIE_NAME = "twitter-request-token";
+
+    private static final String KEY_DERIVATION_LABEL = "twitter-authenticator request token state";
+    private static final int KEY_LENGTH = 16;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final int EXPIRY_LENGTH = Long.BYTES;
+
+    /**
+     * Upper bound on the number of opened states remembered to refuse replays. If it is reached, states that have
+     * expired are forgotten first, and then all of them.
+     */
+    private static final int MAX_CONSUMED = 100_000;
+
+    private static final SecureRandom _random = new SecureRandom();
+
+    private final SecretKeySpec _key;
+    private final long _maxAgeMillis;
+    private final ConcurrentMap<String, Long> _consumedUntil = new ConcurrentHashMap<>();
+
+    RequestTokenState(String apiSecretKey, int maxAgeSeconds)
+    {
+        _key = new SecretKeySpec(deriveKey(apiSecretKey), "AES");
+        _maxAgeMillis = TimeUnit.SECONDS.toMillis(maxAgeSeconds);
+    }
+
+    /**
+     * @param path the path of the authenticator, which the callback is under
+     * @return a cookie holding the given request token's secret
+     */
+    Cookie createCookie(OAuth1RequestToken requestToken, String path)
+    {
+        return cookie(seal(requestToken), path, (int) TimeUnit.MILLISECONDS.toSeconds(_maxAgeMillis));
+    }
+
+    /**
+     * @return a cookie that removes the one created by {@link #createCookie(OAuth1RequestToken, String)}
+     */
+    static Cookie createExpiredCookie(String path)
+    {
+        return cookie("", path, 0);
+    }
+
+    /**
+     * @return the given request token's secret, encrypted and encoded for use as a cookie value
+     */
+    String seal(OAuth1RequestToken requestToken)
+    {
+        byte[] secret = requestToken.getTokenSecret().getBytes(StandardCharsets.UTF_8);
+        byte[] iv = new byte[IV_LENGTH];
+
+        _random.nextBytes(iv);
+
+        ByteBuffer plaintext = ByteBuffer.allocate(EXPIRY_LENGTH + secret.length)
+                .putLong(System.currentTimeMillis() + _maxAgeMillis)
+                .put(secret);
+
+        try
+        {
+            Cipher cipher = cipher(Cipher.ENCRYPT_MODE, iv, requestToken.getToken());
+            byte[] sealed = Arrays.copyOf(iv, IV_LENGTH + cipher.getOutputSize(plaintext.capacity()));
+
+            cipher.doFinal(plaintext.array(), 0, plaintext.capacity(), sealed, IV_LENGTH);
+
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(sealed);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Could not encrypt request token state", e);
+        }
+    }
+
+    /**
+     * Recover the request token Twitter returned in the callback from the state that was sealed for it, without
+     * consuming the state. Proves that the caller holds the state; {@link #consume(String)} decides which caller gets
+     * to use it.
+     *
+     * @return the request token, or null if the state was altered, was sealed for another request token or has
+     * expired
+     */
+    @Nullable
+    OAuth1RequestToken read(String oauthToken, String sealedState)
+    {
+        byte[] sealed;
+
+        try
+        {
+            sealed = Base64.getUrlDecoder().decode(sealedState);
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+
+        if (sealed.length < IV_LENGTH + TAG_LENGTH + EXPIRY_LENGTH)
+        {
+            return null;
+        }
+
+        ByteBuffer plaintext;
+
+        try
+        {
+            Cipher cipher = cipher(Cipher.DECRYPT_MODE, Arrays.copyOf(sealed, IV_LENGTH), oauthToken);
+
+            plaintext = ByteBuffer.wrap(cipher.doFinal(sealed, IV_LENGTH, sealed.length - IV_LENGTH));
+        }
+        catch (AEADBadTagException e)
+        {
+            return null;
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Could not decrypt request token state", e);
+        }
+
+        if (plaintext.getLong() <= System.currentTimeMillis())
+        {
+            return null;
+        }
+
+        String secret = new String(plaintext.array(), EXPIRY_LENGTH, plaintext.remaining(), StandardCharsets.UTF_8);
+
+        return new OAuth1RequestToken(oauthToken, secret);
+    }
+
+    /**
+     * Mark the state of the given request token as used on this node.
+     *
+     * @return true if it had not been used before, false if it is a replay
+     */
+    boolean consume(String oauthToken)
+    {
+        long now = System.currentTimeMillis();
+
+        if (_consumedUntil.size() >= MAX_CONSUMED)
+        {
+            _consumedUntil.values().removeIf(consumedUntil -> consumedUntil <= now);
+
+            if (_consumedUntil.size() >= MAX_CONSUMED)
+            {
+                _consumedUntil.clear();
+            }
+        }
+
+        // No state for the token is valid after this, as no state lives longer than the maximum age
+        return _consumedUntil.putIfAbsent(oauthToken, now + _maxAgeMillis) == null;
+    }
+
+    private static Cookie cookie(String value, String path, int maxAgeSeconds)
+    {
+        Cookie cookie = new Cookie(COOKIE_NAME, value);
+
+        cookie.setPath(path);
+        cookie.setMaxAge(maxAgeSeconds);
+        cookie.setHttpOnly(true);
+        cookie.setSecure(true);
+
+        return cookie;
+    }
+
+    private Cipher cipher(int mode, byte[] iv, String oauthToken) throws GeneralSecurityException
+    {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+
+        cipher.init(mode, _key, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, iv));
+        cipher.updateAAD(oauthToken.getBytes(StandardCharsets.UTF_8));
+
+        return cipher;
+    }
+
+    private static byte[] deriveKey(String apiSecretKey)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance("HmacSHA256");
+
+            mac.init(new SecretKeySpec(apiSecretKey.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+
+            return Arrays.copyOf(mac.doFinal(KEY_DERIVATION_LABEL.getBytes(StandardCharsets.UTF_8)), KEY_LENGTH);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Could not derive request token state key", e);
+        }
+    }
+}
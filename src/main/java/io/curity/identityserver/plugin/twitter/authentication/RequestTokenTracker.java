@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import io.curity.identityserver.plugin.twitter.metrics.TwitterMetrics;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Follows each request token from the redirect to Twitter to the callback, to count how many logins come back,
+ * are declined or are abandoned, and how long users spend at Twitter.
+ *
+ * <p>A request token that has not come back after {@link #ABANDONED_AFTER_MINUTES} minutes is counted as abandoned.
+ * Tokens are checked for that at most once a minute, when a new one is issued. If more than {@link #MAX_TRACKED}
+ * tokens are outstanding, arbitrary ones are counted as abandoned early to make room.
+ *
+ * <p>Tokens are only followed on the node that issued them. A callback that reaches another node is counted there
+ * without a time to callback, and the token is counted as abandoned on the node that issued it, so in a cluster the
+ * counts of all nodes have to be summed, and are only exact when callbacks return to the node of the redirect.
+ */
+final class RequestTokenTracker
+{
+    private static final long ABANDONED_AFTER_MINUTES = 15;
+    private static final int MAX_TRACKED = 100_000;
+
+    private static final long ABANDONED_AFTER_NANOS = TimeUnit.MINUTES.toNanos(ABANDONED_AFTER_MINUTES);
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final TwitterMetrics _metrics = CompositeTwitterMetrics.instance();
+    private static final ConcurrentMap<String, Long> _issuedAt = new ConcurrentHashMap<>();
+    private static final AtomicLong _nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+    private static final LongAdder _issued = new LongAdder();
+    private static final LongAdder _completed = new LongAdder();
+    private static final LongAdder _denied = new LongAdder();
+    private static final LongAdder _abandoned = new LongAdder();
+
+    private RequestTokenTracker() { }
+
+    /**
+     * Start following a request token that a user is being redirected to Twitter with.
+     */
+    static void issued(String oauthToken)
+    {
+        long now = System.nanoTime();
+
+        _issued.increment();
+        _metrics.recordRequestTokenIssued();
+
+        sweep(now);
+        _issuedAt.put(oauthToken, now);
+    }
+
+    /**
+     * Record that a user came back from Twitter having logged in there.
+     */
+    static void completed(@Nullable String oauthToken)
+    {
+        Long timeToCallback = resolve(oauthToken);
+
+        _completed.increment();
+        _metrics.recordLoginCompleted(timeToCallback == null ? -1 : timeToCallback);
+    }
+
+    /**
+     * Record that a user came back from Twitter having declined to log in.
+     */
+    static void denied(@Nullable String oauthToken)
+    {
+        Long timeToCallback = resolve(oauthToken);
+
+        _denied.increment();
+        _metrics.recordLoginDenied(timeToCallback == null ? -1 : timeToCallback);
+    }
+
+    static long getIssued()
+    {
+        return _issued.sum();
+    }
+
+    static long getCompleted()
+    {
+        return _completed.sum();
+    }
+
+    static long getDenied()
+    {
+        return _denied.sum();
+    }
+
+    static long getAbandoned()
+    {
+        return _abandoned.sum();
+    }
+
+    static int getOutstanding()
+    {
+        return _issuedAt.size();
+    }
+
+    /**
+     * @return the nanoseconds since the given request token was issued, or null if it is not being followed
+     */
+    @Nullable
+    private static Long resolve(@Nullable String oauthToken)
+    {
+        Long issuedAt = oauthToken == null ? null : _issuedAt.remove(oauthToken);
+
+        return issuedAt == null ? null : System.nanoTime() - issuedAt;
+    }
+
+    private static void sweep(long now)
+    {
+        long nextSweep = _nextSweep.get();
+
+        if (now - nextSweep >= 0 && _nextSweep.compareAndSet(nextSweep, now + SWEEP_INTERVAL_NANOS))
+        {
+            _issuedAt.values().removeIf(issuedAt -> {
+                if (now - issuedAt >= ABANDONED_AFTER_NANOS)
+                {
+                    abandoned();
+
+                    return true;
+                }
+
+                return false;
+            });
+        }
+
+        if (_issuedAt.size() >= MAX_TRACKED)
+        {
+            Iterator<Long> outstanding = _issuedAt.values().iterator();
+
+            while (_issuedAt.size() >= MAX_TRACKED && outstanding.hasNext())
+            {
+                outstanding.next();
+                outstanding.remove();
+                abandoned();
+            }
+        }
+    }
+
+    private static void abandoned()
+    {
+        _abandoned.increment();
+        _metrics.recordLoginAbandoned();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs one kind of message at most {@link #MESSAGES_PER_INTERVAL} times every {@link #INTERVAL_SECONDS} seconds,
+ * so that an outage at Twitter, which makes every login fail the same way, does not flood the logs. How many
+ * messages were left out is logged before the next one that is not.
+ *
+ * <p>Nothing is done when the level is disabled, and arguments are only formatted for messages that are logged.
+ */
+final class SampledLog
+{
+    private static final int MESSAGES_PER_INTERVAL = 10;
+    private static final long INTERVAL_SECONDS = 10;
+
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(INTERVAL_SECONDS);
+
+    private final Logger _logger;
+    private final AtomicLong _intervalStart = new AtomicLong(System.nanoTime() - INTERVAL_NANOS);
+    private final AtomicInteger _logged = new AtomicInteger();
+    private final LongAdder _suppressed = new LongAdder();
+
+    SampledLog(Logger logger)
+    {
+        _logger = logger;
+    }
+
+    void info(String format, Object argument1, Object argument2)
+    {
+        if (_logger.isInfoEnabled() && acquire())
+        {
+            long suppressed = _suppressed.sumThenReset();
+
+            if (suppressed > 0)
+            {
+                _logger.info("{} similar messages were not logged", suppressed);
+            }
+
+            _logger.info(format, argument1, argument2);
+        }
+    }
+
+    void warn(String format, Object argument1, Object argument2)
+    {
+        if (_logger.isWarnEnabled() && acquire())
+        {
+            long suppressed = _suppressed.sumThenReset();
+
+            if (suppressed > 0)
+            {
+                _logger.warn("{} similar messages were not logged", suppressed);
+            }
+
+            _logger.warn(format, argument1, argument2);
+        }
+    }
+
+    void debug(String format, Object argument1, Object argument2)
+    {
+        if (_logger.isDebugEnabled() && acquire())
+        {
+            long suppressed = _suppressed.sumThenReset();
+
+            if (suppressed > 0)
+            {
+                _logger.debug("{} similar messages were not logged", suppressed);
+            }
+
+            _logger.debug(format, argument1, argument2);
+        }
+    }
+
+    private boolean acquire()
+    {
+        long now = System.nanoTime();
+        long intervalStart = _intervalStart.get();
+
+        if (now - intervalStart >= INTERVAL_NANOS && _intervalStart.compareAndSet(intervalStart, now))
+        {
+            _logged.set(0);
+        }
+
+        if (_logged.incrementAndGet() <= MESSAGES_PER_INTERVAL)
+        {
+            return true;
+        }
+
+        _suppressed.increment();
+
+        return false;
+    }
+}
@@ -22,6 +22,7 @@ import com.github.scribejava.core.model.OAuthAsyncRequestCallback;
 import com.github.scribejava.core.model.OAuthRequest;
 import com.github.scribejava.core.model.Response;
 import com.github.scribejava.core.model.Verb;
+import io.curity.identityserver.plugin.twitter.metrics.TwitterMetrics;
 import se.curity.identityserver.sdk.Nullable;
 import se.curity.identityserver.sdk.http.HttpRequest;
 import se.curity.identityserver.sdk.http.HttpResponse;
@@ -32,96 +33,127 @@ import java.io.File;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
-import java.util.stream.Collectors;
+import java.util.concurrent.RejectedExecutionException;
 
 public final class ScribeJavaHttpClientAdapter implements HttpClient
 {
-    private final WebServiceClient _webServiceClient;
+    private final TwitterMetrics _metrics = CompositeTwitterMetrics.instance();
+    private final TwitterEndpoints _endpoints;
+    private final TwitterExecutor _executor;
 
-    private static final Map<Integer, String> _statusMessageByStatusCode;
+    @Nullable
+    private final RequestTokenRateLimiter _rateLimiter;
+
+    /**
+     * Reason phrases indexed by status code, so that looking one up neither hashes nor boxes the code.
+     */
+    private static final String[] _statusMessageByStatusCode;
 
     static
     {
-        Map<Integer, String> statusMessageByStatusCode = new HashMap<>(50);
-
-        statusMessageByStatusCode.put(200, "OK");
-        statusMessageByStatusCode.put(201, "Created");
-        statusMessageByStatusCode.put(202, "Accepted");
-        statusMessageByStatusCode.put(203, "Non-Authoritative Information");
-        statusMessageByStatusCode.put(204, "No Content");
-        statusMessageByStatusCode.put(205, "Reset Content");
-        statusMessageByStatusCode.put(206, "Partial Content");
-        statusMessageByStatusCode.put(300, "Multiple Choices");
-        statusMessageByStatusCode.put(301, "Moved Permanently");
-        statusMessageByStatusCode.put(302, "Found");
-        statusMessageByStatusCode.put(303, "See Other");
-        statusMessageByStatusCode.put(304, "Not Modified");
-        statusMessageByStatusCode.put(305, "Use Proxy");
-        statusMessageByStatusCode.put(306, "Switch Proxy");
-        statusMessageByStatusCode.put(307, "Temporary Redirect");
-        statusMessageByStatusCode.put(308, "Permanent Redirect");
-        statusMessageByStatusCode.put(400, "Bad Request");
-        statusMessageByStatusCode.put(401, "Unauthorized");
-        statusMessageByStatusCode.put(402, "Payment Required");
-        statusMessageByStatusCode.put(403, "Forbidden");
-        statusMessageByStatusCode.put(404, "Not Found");
-        statusMessageByStatusCode.put(405, "Method Not Allowed");
-        statusMessageByStatusCode.put(406, "Not Acceptable");
-        statusMessageByStatusCode.put(407, "Proxy Authentication Required");
-        statusMessageByStatusCode.put(408, "Request Timeout");
-        statusMessageByStatusCode.put(409, "Conflict");
-        statusMessageByStatusCode.put(410, "Gone");
-        statusMessageByStatusCode.put(411, "Length Required");
-        statusMessageByStatusCode.put(412, "Precondition Failed");
-        statusMessageByStatusCode.put(413, "Payload Too Large");
-        statusMessageByStatusCode.put(414, "URI Too Long");
-        statusMessageByStatusCode.put(415, "Unsupported Media Type");
-        statusMessageByStatusCode.put(416, "Range Not Satisfiable");
-        statusMessageByStatusCode.put(417, "Expectation Failed");
-        statusMessageByStatusCode.put(420, "Enhance Your Calm");
-        statusMessageByStatusCode.put(421, "Misdirected Request");
-        statusMessageByStatusCode.put(425, "Too Early");
-        statusMessageByStatusCode.put(426, "Upgrade Required");
-        statusMessageByStatusCode.put(428, "Precondition Required");
-        statusMessageByStatusCode.put(429, "Too Many Requests");
-        statusMessageByStatusCode.put(431, "Request Header Fields Too Large");
-        statusMessageByStatusCode.put(451, "Unavailable For Legal Reasons");
-        statusMessageByStatusCode.put(500, "Internal Server Error");
-        statusMessageByStatusCode.put(501, "Not Implemented");
-        statusMessageByStatusCode.put(502, "Bad Gateway");
-        statusMessageByStatusCode.put(503, "Service Unavailable");
-        statusMessageByStatusCode.put(504, "Gateway Timeout");
-        statusMessageByStatusCode.put(505, "HTTP Version Not Supported");
-        statusMessageByStatusCode.put(506, "Variant Also Negotiates");
-        statusMessageByStatusCode.put(510, "Not Extended");
-        statusMessageByStatusCode.put(511, "Network Authentication Required");
-
-        _statusMessageByStatusCode = Collections.unmodifiableMap(statusMessageByStatusCode);
-    }
-
-    private ScribeJavaHttpClientAdapter(WebServiceClient webServiceClient)
-    {
-        _webServiceClient = webServiceClient;
+        String[] statusMessageByStatusCode = new String[600];
+
+        statusMessageByStatusCode[200] = "OK";
+        statusMessageByStatusCode[201] = "Created";
+        statusMessageByStatusCode[202] = "Accepted";
+        statusMessageByStatusCode[203] = "Non-Authoritative Information";
+        statusMessageByStatusCode[204] = "No Content";
+        statusMessageByStatusCode[205] = "Reset Content";
+        statusMessageByStatusCode[206] = "Partial Content";
+        statusMessageByStatusCode[300] = "Multiple Choices";
+        statusMessageByStatusCode[301] = "Moved Permanently";
+        statusMessageByStatusCode[302] = "Found";
+        statusMessageByStatusCode[303] = "See Other";
+        statusMessageByStatusCode[304] = "Not Modified";
+        statusMessageByStatusCode[305] = "Use Proxy";
+        statusMessageByStatusCode[306] = "Switch Proxy";
+        statusMessageByStatusCode[307] = "Temporary Redirect";
+        statusMessageByStatusCode[308] = "Permanent Redirect";
+        statusMessageByStatusCode[400] = "Bad Request";
+        statusMessageByStatusCode[401] = "Unauthorized";
+        statusMessageByStatusCode[402] = "Payment Required";
+        statusMessageByStatusCode[403] = "Forbidden";
+        statusMessageByStatusCode[404] = "Not Found";
+        statusMessageByStatusCode[405] = "Method Not Allowed";
+        statusMessageByStatusCode[406] = "Not Acceptable";
+        statusMessageByStatusCode[407] = "Proxy Authentication Required";
+        statusMessageByStatusCode[408] = "Request Timeout";
+        statusMessageByStatusCode[409] = "Conflict";
+        statusMessageByStatusCode[410] = "Gone";
+        statusMessageByStatusCode[411] = "Length Required";
+        statusMessageByStatusCode[412] = "Precondition Failed";
+        statusMessageByStatusCode[413] = "Payload Too Large";
+        statusMessageByStatusCode[414] = "URI Too Long";
+        statusMessageByStatusCode[415] = "Unsupported Media Type";
+        statusMessageByStatusCode[416] = "Range Not Satisfiable";
+        statusMessageByStatusCode[417] = "Expectation Failed";
+        statusMessageByStatusCode[420] = "Enhance Your Calm";
+        statusMessageByStatusCode[421] = "Misdirected Request";
+        statusMessageByStatusCode[425] = "Too Early";
+        statusMessageByStatusCode[426] = "Upgrade Required";
+        statusMessageByStatusCode[428] = "Precondition Required";
+        statusMessageByStatusCode[429] = "Too Many Requests";
+        statusMessageByStatusCode[431] = "Request Header Fields Too Large";
+        statusMessageByStatusCode[451] = "Unavailable For Legal Reasons";
+        statusMessageByStatusCode[500] = "Internal Server Error";
+        statusMessageByStatusCode[501] = "Not Implemented";
+        statusMessageByStatusCode[502] = "Bad Gateway";
+        statusMessageByStatusCode[503] = "Service Unavailable";
+        statusMessageByStatusCode[504] = "Gateway Timeout";
+        statusMessageByStatusCode[505] = "HTTP Version Not Supported";
+        statusMessageByStatusCode[506] = "Variant Also Negotiates";
+        statusMessageByStatusCode[510] = "Not Extended";
+        statusMessageByStatusCode[511] = "Network Authentication Required";
+
+        _statusMessageByStatusCode = statusMessageByStatusCode;
+    }
+
+    private ScribeJavaHttpClientAdapter(TwitterEndpoints endpoints, @Nullable RequestTokenRateLimiter rateLimiter,
+                                        TwitterExecutor executor)
+    {
+        _endpoints = endpoints;
+        _rateLimiter = rateLimiter;
+        _executor = executor;
     }
 
     public static HttpClient from(
             WebServiceClientFactory webServiceClientFactory,
             se.curity.identityserver.sdk.service.HttpClient httpClient)
     {
-        WebServiceClient webServiceClient = webServiceClientFactory.create(httpClient).withHost(TwitterApi.BASE_URL);
-
-        return new ScribeJavaHttpClientAdapter(webServiceClient);
+        return new ScribeJavaHttpClientAdapter(TwitterEndpoints.direct(webServiceClientFactory, httpClient,
+                URI.create(TwitterApi.DEFAULT_BASE_URL)), null, SharedExecutor.INSTANCE);
     }
 
     public static HttpClient from(WebServiceClientFactory webServiceClientFactory)
     {
-        WebServiceClient webServiceClient = webServiceClientFactory.create(URI.create(TwitterApi.BASE_URL));
+        return new ScribeJavaHttpClientAdapter(TwitterEndpoints.direct(webServiceClientFactory, null,
+                URI.create(TwitterApi.DEFAULT_BASE_URL)), null, SharedExecutor.INSTANCE);
+    }
 
-        return new ScribeJavaHttpClientAdapter(webServiceClient);
+    /**
+     * @param executor to run asynchronous calls on
+     */
+    static HttpClient from(TwitterEndpoints endpoints, @Nullable RequestTokenRateLimiter rateLimiter,
+                           TwitterExecutor executor)
+    {
+        return new ScribeJavaHttpClientAdapter(endpoints, rateLimiter, executor);
+    }
+
+    /**
+     * @return the number of calls that are running or waiting to run on the executor of the adapters that are not
+     * created for a {@link TwitterService}
+     */
+    static int getSharedInFlight()
+    {
+        return SharedExecutor.INSTANCE.getInFlight();
     }
 
     @Override
@@ -131,10 +163,19 @@ public final class ScribeJavaHttpClientAdapter implements HttpClient
                             String completeUrl,
                             byte[] bodyContents)
     {
-        int startPos = completeUrl.indexOf("/", "https://".length() + 1);
-        String path = completeUrl.substring(startPos);
+        URI uri = URI.create(completeUrl);
+        String path = uri.getRawPath();
+        String query = uri.getRawQuery();
+        TwitterEndpoints.Endpoint endpoint = _endpoints.select();
+        WebServiceClient webServiceClient = endpoint.getWebServiceClient()
+                .withPath(_endpoints.toEndpointPath(endpoint, path));
+
+        if (query != null)
+        {
+            webServiceClient = webServiceClient.withQuery(query);
+        }
 
-        HttpRequest.Builder builder = _webServiceClient.withPath(path).request();
+        HttpRequest.Builder builder = webServiceClient.request();
 
         headers.forEach(builder::header);
 
@@ -149,20 +190,46 @@ public final class ScribeJavaHttpClientAdapter implements HttpClient
 
         HttpRequest request = builder.method(httpVerb.name());
 
-        HttpResponse response = request.response();
+        long start = System.nanoTime();
+        HttpResponse response;
+
+        try
+        {
+            response = request.response();
+        }
+        catch (RuntimeException e)
+        {
+            TwitterConnectionStats.recordRequest(System.nanoTime() - start, true);
+            endpoint.recordFailure();
 
-        Map<String, String> adaptedHeaders = response.headers()
-                .map()
-                .entrySet()
-                .stream()
-                .map(it -> new AbstractMap.SimpleEntry<>(it.getKey(), String.join(",", it.getValue())))
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+            throw e;
+        }
 
+        TwitterConnectionStats.recordRequest(System.nanoTime() - start, false);
+
+        int statusCode = response.statusCode();
+
+        endpoint.recordResponse(statusCode);
+
+        _metrics.recordStatusCode(statusCode);
+
+        Map<String, String> adaptedHeaders = new JoinedHeaderMap(response.headers().map());
         String body = response.body(HttpResponse.asString());
 
-        String message = _statusMessageByStatusCode.get(response.statusCode());
+        if (_rateLimiter != null && path.endsWith(TwitterApi.REQUEST_TOKEN_PATH))
+        {
+            _rateLimiter.onResponseHeaders(adaptedHeaders);
+        }
+
+        return new Response(statusCode, getStatusMessage(statusCode), adaptedHeaders, body);
+    }
 
-        return new Response(response.statusCode(), message, adaptedHeaders, body);
+    @Nullable
+    private static String getStatusMessage(int statusCode)
+    {
+        return statusCode >= 0 && statusCode < _statusMessageByStatusCode.length
+                ? _statusMessageByStatusCode[statusCode]
+                : null;
     }
 
     @Override
@@ -210,7 +277,8 @@ public final class ScribeJavaHttpClientAdapter implements HttpClient
                                       OAuthAsyncRequestCallback<T> callback,
                                       OAuthRequest.ResponseConverter<T> converter)
     {
-        throw new UnsupportedOperationException("async execution is not support");
+        return executeAsync(() -> execute(userAgent, headers, httpVerb, completeUrl, bodyContents),
+                callback, converter);
     }
 
     @Override
@@ -222,7 +290,8 @@ public final class ScribeJavaHttpClientAdapter implements HttpClient
                                       OAuthAsyncRequestCallback<T> callback,
                                       OAuthRequest.ResponseConverter<T> converter)
     {
-        throw new UnsupportedOperationException("async execution is not support");
+        return executeAsync(() -> execute(userAgent, headers, httpVerb, completeUrl, bodyContents),
+                callback, converter);
     }
 
     @Override
@@ -234,7 +303,8 @@ public final class ScribeJavaHttpClientAdapter implements HttpClient
                                       OAuthAsyncRequestCallback<T> callback,
                                       OAuthRequest.ResponseConverter<T> converter)
     {
-        throw new UnsupportedOperationException("async execution is not support");
+        return executeAsync(() -> execute(userAgent, headers, httpVerb, completeUrl, bodyContents),
+                callback, converter);
     }
 
     @Override
@@ -246,6 +316,190 @@ public final class ScribeJavaHttpClientAdapter implements HttpClient
                                       OAuthAsyncRequestCallback<T> callback,
                                       OAuthRequest.ResponseConverter<T> converter)
     {
-        throw new UnsupportedOperationException("async execution is not support");
+        return executeAsync(() -> execute(userAgent, headers, httpVerb, completeUrl, bodyContents),
+                callback, converter);
+    }
+
+    /**
+     * A read-only view of multi-valued response headers as the single-valued map ScribeJava expects.
+     *
+     * <p>Values are only joined when a header is actually looked up, and a header with one value, which is the common
+     * case, is returned as is.
+     */
+    private static final class JoinedHeaderMap extends AbstractMap<String, String>
+    {
+        private final Map<String, List<String>> _headers;
+
+        @Nullable
+        private Set<Entry<String, String>> _entrySet;
+
+        private JoinedHeaderMap(Map<String, List<String>> headers)
+        {
+            _headers = headers;
+        }
+
+        @Override
+        @Nullable
+        public String get(Object name)
+        {
+            List<String> values = _headers.get(name);
+
+            if (values == null && name instanceof String)
+            {
+                // Header names are case-insensitive, and HTTP/2 sends them in lower case
+                for (Entry<String, List<String>> header : _headers.entrySet())
+                {
+                    if (header.getKey() != null && header.getKey().equalsIgnoreCase((String) name))
+                    {
+                        values = header.getValue();
+
+                        break;
+                    }
+                }
+            }
+
+            return join(values);
+        }
+
+        @Override
+        public boolean containsKey(Object name)
+        {
+            return get(name) != null;
+        }
+
+        @Override
+        public int size()
+        {
+            return _headers.size();
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet()
+        {
+            if (_entrySet == null)
+            {
+                _entrySet = new AbstractSet<Entry<String, String>>()
+                {
+                    @Override
+                    public Iterator<Entry<String, String>> iterator()
+                    {
+                        Iterator<Entry<String, List<String>>> headers = _headers.entrySet().iterator();
+
+                        return new Iterator<Entry<String, String>>()
+                        {
+                            @Override
+                            public boolean hasNext()
+                            {
+                                return headers.hasNext();
+                            }
+
+                            @Override
+                            public Entry<String, String> next()
+                            {
+                                Entry<String, List<String>> header = headers.next();
+
+                                return new SimpleImmutableEntry<>(header.getKey(), join(header.getValue()));
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size()
+                    {
+                        return _headers.size();
+                    }
+                };
+            }
+
+            return _entrySet;
+        }
+
+        @Nullable
+        private static String join(@Nullable List<String> values)
+        {
+            if (values == null)
+            {
+                return null;
+            }
+
+            return values.size() == 1 ? values.get(0) : String.join(",", values);
+        }
+    }
+
+    /**
+     * Run the given call on the {@link TwitterExecutor}, converting its response and notifying the callback before
+     * the returned future completes, like the synchronous HTTP clients of ScribeJava do.
+     */
+    private <T> Future<T> executeAsync(Callable<Response> call,
+                                       @Nullable OAuthAsyncRequestCallback<T> callback,
+                                       @Nullable OAuthRequest.ResponseConverter<T> converter)
+    {
+        try
+        {
+            return submit(call, callback, converter);
+        }
+        catch (RejectedExecutionException e)
+        {
+            if (callback != null)
+            {
+                callback.onThrowable(e);
+            }
+
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+
+            rejected.completeExceptionally(e);
+
+            return rejected;
+        }
+    }
+
+    private <T> Future<T> submit(Callable<Response> call,
+                                 @Nullable OAuthAsyncRequestCallback<T> callback,
+                                 @Nullable OAuthRequest.ResponseConverter<T> converter)
+    {
+        return _executor.submit(() -> {
+            T result;
+
+            try
+            {
+                Response response = call.call();
+
+                if (converter == null)
+                {
+                    @SuppressWarnings("unchecked")
+                    T unconverted = (T) response;
+
+                    result = unconverted;
+                }
+                else
+                {
+                    result = converter.convert(response);
+                }
+            }
+            catch (Exception e)
+            {
+                if (callback != null)
+                {
+                    callback.onThrowable(e);
+                }
+
+                throw e;
+            }
+
+            if (callback != null)
+            {
+                callback.onCompleted(result);
+            }
+
+            return result;
+        });
+    }
+
+    /**
+     * The executor of adapters that are not created for a {@link TwitterService}, which owns one.
+     */
+    private static final class SharedExecutor
+    {
+        private static final TwitterExecutor INSTANCE = new TwitterExecutor("twitter-async", 32, 256);
     }
 }
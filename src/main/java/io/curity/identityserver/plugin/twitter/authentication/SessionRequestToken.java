@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.model.OAuth1RequestToken;
+import com.github.scribejava.core.utils.OAuthEncoder;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.Attribute;
+import se.curity.identityserver.sdk.service.SessionManager;
+
+/**
+ * Keeps the request token of a login in the session, as a single attribute holding both the token and its secret.
+ */
+final class SessionRequestToken
+{
+    private static final String SESSION_KEY = "twitter_request_token";
+    private static final char SEPARATOR = '&';
+
+    private SessionRequestToken() { }
+
+    static void put(SessionManager sessionManager, OAuth1RequestToken requestToken)
+    {
+        sessionManager.put(Attribute.of(SESSION_KEY, OAuthEncoder.encode(requestToken.getToken()) + SEPARATOR +
+                OAuthEncoder.encode(requestToken.getTokenSecret())));
+    }
+
+    /**
+     * Take the request token out of the session, so that it is read once and not kept after the callback.
+     *
+     * @return the request token, or null if the session does not have one
+     */
+    @Nullable
+    static OAuth1RequestToken remove(SessionManager sessionManager)
+    {
+        return parse(sessionManager.remove(SESSION_KEY));
+    }
+
+    @Nullable
+    private static OAuth1RequestToken parse(@Nullable Attribute attribute)
+    {
+        if (attribute == null || attribute.getValue() == null)
+        {
+            return null;
+        }
+
+        String value = attribute.getValue().toString();
+        int separator = value.indexOf(SEPARATOR);
+
+        if (separator < 0)
+        {
+            return null;
+        }
+
+        return new OAuth1RequestToken(OAuthEncoder.decode(value.substring(0, separator)),
+                OAuthEncoder.decode(value.substring(separator + 1)));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.model.OAuth1AccessToken;
+import se.curity.identityserver.sdk.Nullable;
+
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.SCREEN_NAME;
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.USER_ID;
+
+/**
+ * An access token that keeps the user ID and screen name parsed from Twitter's response, so that reading them does
+ * not split the raw response again like {@link OAuth1AccessToken#getParameter(String)} does.
+ */
+final class TwitterAccessToken extends OAuth1AccessToken
+{
+    private static final long serialVersionUID = 1L;
+
+    @Nullable
+    private final String _userId;
+
+    @Nullable
+    private final String _screenName;
+
+    TwitterAccessToken(String token, String tokenSecret, @Nullable String userId, @Nullable String screenName,
+                       String rawResponse)
+    {
+        super(token, tokenSecret, rawResponse);
+
+        _userId = userId;
+        _screenName = screenName;
+    }
+
+    @Override
+    public String getParameter(String parameter)
+    {
+        if (_userId != null && USER_ID.equals(parameter))
+        {
+            return _userId;
+        }
+
+        if (_screenName != null && SCREEN_NAME.equals(parameter))
+        {
+            return _screenName;
+        }
+
+        return super.getParameter(parameter);
+    }
+}
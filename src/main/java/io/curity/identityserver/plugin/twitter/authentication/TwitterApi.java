@@ -1,42 +1,106 @@
 package io.curity.identityserver.plugin.twitter.authentication;
 
 import com.github.scribejava.core.builder.api.DefaultApi10a;
+import com.github.scribejava.core.extractors.TokenExtractor;
+import com.github.scribejava.core.model.OAuth1AccessToken;
+import com.github.scribejava.core.model.OAuth1RequestToken;
+import com.github.scribejava.core.services.SignatureService;
+import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
 
 // Based on https://raw.githubusercontent.com/scribejava/scribejava/master/scribejava-apis/src/main/java/com/github/scribejava/apis/TwitterApi.java
 // Licensed under MIT
 final class TwitterApi extends DefaultApi10a
 {
-    static final String BASE_URL = "https://api.twitter.com";
+    static final String DEFAULT_BASE_URL = "https://api.twitter.com";
+    static final String DEFAULT_AUTHORIZE_URL = DEFAULT_BASE_URL + "/oauth/authorize";
+    static final String REQUEST_TOKEN_PATH = "/oauth/request_token";
+    static final String ACCESS_TOKEN_PATH = "/oauth/access_token";
+    static final String VERIFY_CREDENTIALS_PATH = "/1.1/account/verify_credentials.json";
 
-    private static final String AUTHORIZE_URL = BASE_URL + "/oauth/authorize";
-    private static final String REQUEST_TOKEN_RESOURCE = BASE_URL + "/oauth/request_token";
-    private static final String ACCESS_TOKEN_RESOURCE = BASE_URL + "/oauth/access_token";
+    // Shared by all configurations, with what it keeps per API secret key
+    private static final SignatureService _signatureService = new HmacSha1Signer();
+
+    private final String _authorizeUrl;
+    private final String _requestTokenEndpoint;
+    private final String _accessTokenEndpoint;
+    private final String _verifyCredentialsEndpoint;
+
+    private TwitterApi(String baseUrl, String authorizeUrl)
+    {
+        _authorizeUrl = authorizeUrl;
+        _requestTokenEndpoint = baseUrl + REQUEST_TOKEN_PATH;
+        _accessTokenEndpoint = baseUrl + ACCESS_TOKEN_PATH;
+        _verifyCredentialsEndpoint = baseUrl + VERIFY_CREDENTIALS_PATH;
+    }
 
     public static TwitterApi instance()
     {
         return InstanceHolder.INSTANCE;
     }
 
+    static TwitterApi from(TwitterAuthenticatorPluginConfig config)
+    {
+        String baseUrl = baseUrlOf(config);
+        String authorizeUrl = config.getAuthorizeUrl();
+
+        return DEFAULT_BASE_URL.equals(baseUrl) && DEFAULT_AUTHORIZE_URL.equals(authorizeUrl)
+                ? instance()
+                : new TwitterApi(baseUrl, authorizeUrl);
+    }
+
+    /**
+     * @return the configured API base URL, without any trailing slash
+     */
+    static String baseUrlOf(TwitterAuthenticatorPluginConfig config)
+    {
+        String baseUrl = config.getApiBaseUrl();
+
+        return baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    String getVerifyCredentialsEndpoint()
+    {
+        return _verifyCredentialsEndpoint;
+    }
+
     @Override
     public String getAccessTokenEndpoint()
     {
-        return ACCESS_TOKEN_RESOURCE;
+        return _accessTokenEndpoint;
     }
 
     @Override
     public String getRequestTokenEndpoint()
     {
-        return REQUEST_TOKEN_RESOURCE;
+        return _requestTokenEndpoint;
     }
 
     @Override
     public String getAuthorizationBaseUrl()
     {
-        return AUTHORIZE_URL;
+        return _authorizeUrl;
+    }
+
+    @Override
+    public TokenExtractor<OAuth1RequestToken> getRequestTokenExtractor()
+    {
+        return FormUrlEncodedTokenExtractor.REQUEST_TOKEN;
+    }
+
+    @Override
+    public TokenExtractor<OAuth1AccessToken> getAccessTokenExtractor()
+    {
+        return FormUrlEncodedTokenExtractor.ACCESS_TOKEN;
+    }
+
+    @Override
+    public SignatureService getSignatureService()
+    {
+        return _signatureService;
     }
 
     private static class InstanceHolder
     {
-        private static final TwitterApi INSTANCE = new TwitterApi();
+        private static final TwitterApi INSTANCE = new TwitterApi(DEFAULT_BASE_URL, DEFAULT_AUTHORIZE_URL);
     }
 }
@@ -16,39 +16,29 @@
 
 package io.curity.identityserver.plugin.twitter.authentication;
 
-import com.github.scribejava.core.builder.ServiceBuilder;
 import com.github.scribejava.core.httpclient.HttpClient;
 import com.github.scribejava.core.model.OAuth1RequestToken;
-import com.github.scribejava.core.oauth.OAuth10aService;
 import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.twitter.metrics.TwitterMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.curity.identityserver.sdk.Nullable;
-import se.curity.identityserver.sdk.attribute.Attribute;
 import se.curity.identityserver.sdk.authentication.AuthenticationResult;
 import se.curity.identityserver.sdk.authentication.AuthenticatorRequestHandler;
-import se.curity.identityserver.sdk.errors.ErrorCode;
 import se.curity.identityserver.sdk.http.RedirectStatusCode;
 import se.curity.identityserver.sdk.service.ExceptionFactory;
-import se.curity.identityserver.sdk.service.SessionManager;
 import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
 import se.curity.identityserver.sdk.web.Request;
 import se.curity.identityserver.sdk.web.Response;
 
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URL;
 import java.util.Optional;
 
-import static io.curity.identityserver.plugin.twitter.authentication.Constants.OAUTH_TOKEN;
-import static io.curity.identityserver.plugin.twitter.authentication.Constants.OAUTH_TOKEN_SECRET;
-import static io.curity.identityserver.plugin.twitter.authentication.HttpClientUtil.getHttpClient;
-import static io.curity.identityserver.plugin.twitter.descriptor.TwitterAuthenticatorPluginDescriptor.CALLBACK;
-
 public final class TwitterAuthenticatorRequestHandler implements AuthenticatorRequestHandler<Request>
 {
     private static final Logger _logger = LoggerFactory.getLogger(TwitterAuthenticatorRequestHandler.class);
+    private static final SampledLog _requestTokenFailures = new SampledLog(_logger);
 
+    private final TwitterMetrics _metrics = CompositeTwitterMetrics.instance();
     private final TwitterAuthenticatorPluginConfig _config;
     private final AuthenticatorInformationProvider _authenticatorInformationProvider;
     private final ExceptionFactory _exceptionFactory;
@@ -65,11 +55,11 @@ public final class TwitterAuthenticatorRequestHandler implements AuthenticatorRe
     {
         _logger.debug("GET request received for authentication");
 
-        OAuth10aService service = new ServiceBuilder(_config.getApiKey())
-                .apiSecret(_config.getApiSecretKey())
-                .callback(createRedirectUri())
-                .httpClient(getHttpClient(_config))
-                .build(TwitterApi.instance());
+        long redirectStart = System.nanoTime();
+        String redirectUri = CallbackUris.resolve(_authenticatorInformationProvider, _exceptionFactory);
+        long redirectNanos = System.nanoTime() - redirectStart;
+
+        TwitterService service = OAuthServiceRegistry.getService(_config, redirectUri);
 
         OAuth1RequestToken requestToken;
 
@@ -79,35 +69,47 @@ public final class TwitterAuthenticatorRequestHandler implements AuthenticatorRe
         }
         catch (Exception e)
         {
-            throw _exceptionFactory.externalServiceException("Error authenticating with Twitter: " + e.getMessage());
-        }
+            _requestTokenFailures.warn("Could not get a request token from Twitter: {} - {}",
+                    e.getClass().getSimpleName(), e.getMessage());
 
-        String authorizationEndpoint = service.getAuthorizationUrl(requestToken);
+            throw _exceptionFactory.externalServiceException("Error authenticating with Twitter");
+        }
 
-        SessionManager sessionManager = _config.getSessionManager();
+        redirectStart = System.nanoTime();
 
-        sessionManager.put(Attribute.of(OAUTH_TOKEN, requestToken.getToken()));
-        sessionManager.put(Attribute.of(OAUTH_TOKEN_SECRET, requestToken.getTokenSecret()));
+        String authorizationEndpoint = service.getAuthorizationUrl(requestToken);
 
-        _logger.debug("Redirecting to {}", authorizationEndpoint);
+        _metrics.recordRedirectConstruction(redirectNanos + System.nanoTime() - redirectStart);
+        RequestTokenTracker.issued(requestToken.getToken());
 
-        throw _exceptionFactory.redirectException(authorizationEndpoint,
-                RedirectStatusCode.MOVED_TEMPORARILY);
-    }
+        RequestTokenState requestTokenState = service.getRequestTokenState();
 
-    private String createRedirectUri()
-    {
-        try
+        if (requestTokenState != null)
         {
-            URI authUri = _authenticatorInformationProvider.getFullyQualifiedAuthenticationUri();
-
-            return new URL(authUri.toURL(), authUri.getPath() + "/" + CALLBACK).toString();
+            response.addCookie(requestTokenState.createCookie(requestToken,
+                    _authenticatorInformationProvider.getFullyQualifiedAuthenticationUri().getPath()));
         }
-        catch (MalformedURLException e)
+        else
         {
-            throw _exceptionFactory.internalServerException(ErrorCode.INVALID_REDIRECT_URI,
-                    "Could not create redirect URI");
+            SessionRequestToken.put(_config.getSessionManager(), requestToken);
         }
+
+        if (_logger.isDebugEnabled())
+        {
+            LoginCorrelation.begin(requestToken.getToken());
+
+            try
+            {
+                _logger.debug("Redirecting to Twitter");
+            }
+            finally
+            {
+                LoginCorrelation.end();
+            }
+        }
+
+        throw _exceptionFactory.redirectException(authorizationEndpoint,
+                RedirectStatusCode.MOVED_TEMPORARILY);
     }
 
     @Override
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import io.curity.identityserver.plugin.twitter.metrics.TwitterMetrics;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The latencies and errors of the calls this node made to Twitter over the last one to two minutes, for the
+ * diagnostics endpoint. Unlike the {@link TwitterMetrics} that is loaded, these are always recorded, through
+ * {@link CompositeTwitterMetrics}, so recording must stay cheap.
+ */
+final class TwitterCallStats implements TwitterMetrics
+{
+    static final TwitterCallStats INSTANCE = new TwitterCallStats();
+
+    private static final TwitterMetrics.ErrorType[] ERROR_TYPES = TwitterMetrics.ErrorType.values();
+
+    private static final LatencyHistogram _requestTokenLatency = new LatencyHistogram();
+    private static final LatencyHistogram _accessTokenLatency = new LatencyHistogram();
+    private static final LatencyHistogram _profileLatency = new LatencyHistogram();
+    private static final RecentCounts _errors = new RecentCounts(ERROR_TYPES.length);
+
+    private TwitterCallStats() { }
+
+    @Override
+    public void recordRequestTokenLatency(long nanos)
+    {
+        _requestTokenLatency.record(nanos);
+    }
+
+    @Override
+    public void recordAccessTokenLatency(long nanos)
+    {
+        _accessTokenLatency.record(nanos);
+    }
+
+    @Override
+    public void recordProfileLatency(long nanos)
+    {
+        _profileLatency.record(nanos);
+    }
+
+    @Override
+    public void recordError(ErrorType errorType)
+    {
+        _errors.increment(errorType.ordinal());
+    }
+
+    static Map<String, Object> getLatencies()
+    {
+        Map<String, Object> latencies = new LinkedHashMap<>();
+
+        latencies.put("request_token", _requestTokenLatency.snapshot());
+        latencies.put("access_token", _accessTokenLatency.snapshot());
+        latencies.put("profile", _profileLatency.snapshot());
+
+        return latencies;
+    }
+
+    static Map<String, Object> getErrors()
+    {
+        long[] counts = _errors.snapshot();
+        Map<String, Object> errors = new LinkedHashMap<>();
+
+        for (TwitterMetrics.ErrorType errorType : ERROR_TYPES)
+        {
+            errors.put(errorType.name().toLowerCase(Locale.ROOT), counts[errorType.ordinal()]);
+        }
+
+        return errors;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.plugin.ManagedObject;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * If a keep-alive interval is configured, opens a connection to Twitter when the plugin starts, and keeps connections
+ * open while there are no logins by sending Twitter a request whenever it has not been sent one for that interval.
+ * That way logins don't pay for setting up a TLS connection.
+ *
+ * <p>The requests are for the path of the API base URL, so that a gateway which only passes on that path passes them
+ * on too. They go through a client created from the same configured HTTP client as the one used for logins, so they
+ * use the same pool of connections. When API egress endpoints are configured, each of them is sent a request for its
+ * own path, and the outcome counts towards whether logins use it.
+ *
+ * <p>If configured, a {@link TwitterWarmUp} is run first, on the same background thread, so that plugin start is not
+ * delayed by it.
+ */
+public final class TwitterConnectionKeeper extends ManagedObject<TwitterAuthenticatorPluginConfig>
+{
+    private static final Logger _logger = LoggerFactory.getLogger(TwitterConnectionKeeper.class);
+
+    private static final ScheduledExecutorService _scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "twitter-keep-alive");
+
+        thread.setDaemon(true);
+
+        return thread;
+    });
+
+    private final TwitterEndpoints _endpoints;
+    private final long _intervalNanos;
+
+    @Nullable
+    private final ScheduledFuture<?> _keepAlive;
+
+    public TwitterConnectionKeeper(TwitterAuthenticatorPluginConfig config)
+    {
+        super(config);
+
+        int intervalSeconds = config.getConnectionKeepAliveInterval();
+
+        _endpoints = TwitterEndpoints.from(config);
+        _intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+
+        if (config.isWarmUp())
+        {
+            _scheduler.execute(TwitterWarmUp::run);
+        }
+
+        _keepAlive = intervalSeconds > 0
+                ? _scheduler.scheduleWithFixedDelay(this::keepAliveIfIdle, 0, intervalSeconds, TimeUnit.SECONDS)
+                : null;
+
+        OAuthServiceRegistry.retain(config);
+    }
+
+    private void keepAliveIfIdle()
+    {
+        if (!TwitterConnectionStats.isIdleFor(_intervalNanos))
+        {
+            return;
+        }
+
+        for (TwitterEndpoints.Endpoint endpoint : _endpoints.getAll())
+        {
+            keepAlive(endpoint);
+        }
+    }
+
+    /**
+     * Send the given endpoint a request for the path of its base URL, only to open a connection or keep one open.
+     */
+    static void keepAlive(TwitterEndpoints.Endpoint endpoint)
+    {
+        try
+        {
+            // Any response will do, as long as the connection is left open
+            int statusCode = endpoint.getWebServiceClient().withPath(endpoint.getPath() + "/").request()
+                    .method("HEAD").response().statusCode();
+
+            TwitterConnectionStats.recordKeepAlive(false);
+
+            // Also lets an endpoint that failed be used again as soon as it is back
+            endpoint.recordResponse(statusCode);
+        }
+        catch (RuntimeException e)
+        {
+            TwitterConnectionStats.recordKeepAlive(true);
+            endpoint.recordFailure();
+            _logger.debug("Could not connect to {} ahead of logins: {}", endpoint.getBaseUrl(), e.getMessage());
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (_keepAlive != null)
+        {
+            _keepAlive.cancel(false);
+        }
+
+        OAuthServiceRegistry.release(getConfiguration());
+    }
+}
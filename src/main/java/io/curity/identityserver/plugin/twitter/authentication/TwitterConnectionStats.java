@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the HTTP traffic of this node to Twitter, including the requests that only keep connections open.
+ *
+ * <p>Connections themselves are pooled by the server's HTTP client and are not visible to the plugin, so how well
+ * they are reused shows in the latency of requests made shortly after others versus after idle periods.
+ */
+final class TwitterConnectionStats
+{
+    private static final LongAdder _requests = new LongAdder();
+    private static final LongAdder _failedRequests = new LongAdder();
+    private static final LongAdder _requestNanos = new LongAdder();
+    private static final AtomicLong _maxRequestNanos = new AtomicLong();
+    private static final LongAdder _keepAlives = new LongAdder();
+    private static final LongAdder _failedKeepAlives = new LongAdder();
+
+    /**
+     * When Twitter was last sent a request, or 0 if it has not been.
+     */
+    private static final AtomicLong _lastActivity = new AtomicLong();
+
+    private TwitterConnectionStats() { }
+
+    static void recordRequest(long nanos, boolean failed)
+    {
+        _requests.increment();
+        _requestNanos.add(nanos);
+        _maxRequestNanos.accumulateAndGet(nanos, Math::max);
+
+        if (failed)
+        {
+            _failedRequests.increment();
+        }
+
+        touch();
+    }
+
+    static void recordKeepAlive(boolean failed)
+    {
+        _keepAlives.increment();
+
+        if (failed)
+        {
+            _failedKeepAlives.increment();
+        }
+
+        touch();
+    }
+
+    /**
+     * @return whether Twitter has not been sent a request for at least the given time
+     */
+    static boolean isIdleFor(long nanos)
+    {
+        long lastActivity = _lastActivity.get();
+
+        return lastActivity == 0 || System.nanoTime() - lastActivity >= nanos;
+    }
+
+    static long getRequests()
+    {
+        return _requests.sum();
+    }
+
+    static long getFailedRequests()
+    {
+        return _failedRequests.sum();
+    }
+
+    static long getAverageRequestMillis()
+    {
+        long requests = _requests.sum();
+
+        return requests == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(_requestNanos.sum() / requests);
+    }
+
+    static long getMaxRequestMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(_maxRequestNanos.get());
+    }
+
+    static long getKeepAlives()
+    {
+        return _keepAlives.sum();
+    }
+
+    static long getFailedKeepAlives()
+    {
+        return _failedKeepAlives.sum();
+    }
+
+    private static void touch()
+    {
+        long now = System.nanoTime();
+
+        // 0 means no activity yet
+        _lastActivity.set(now == 0 ? 1 : now);
+    }
+}
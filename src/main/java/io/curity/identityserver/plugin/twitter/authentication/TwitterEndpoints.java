@@ -0,0 +1,341 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.service.HttpClient;
+import se.curity.identityserver.sdk.service.WebServiceClient;
+import se.curity.identityserver.sdk.service.WebServiceClientFactory;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The endpoints that requests to the Twitter API are sent to: either the API base URL itself, or the configured
+ * egress endpoints, such as regional proxies, in its place.
+ *
+ * <p>Requests are spread over the endpoints by weight. An endpoint that fails to respond, or responds that it can't
+ * reach Twitter, is left out for {@link #UNHEALTHY_SECONDS} seconds, unless all of them have failed, in which case
+ * they are all used again. How endpoints have fared is shared by all configurations on this node.
+ */
+final class TwitterEndpoints
+{
+    private static final long UNHEALTHY_SECONDS = 30;
+
+    private static final long UNHEALTHY_NANOS = TimeUnit.SECONDS.toNanos(UNHEALTHY_SECONDS);
+
+    /**
+     * Until when endpoints that failed are left out, by base URL.
+     */
+    private static final ConcurrentMap<String, Long> _unhealthyUntil = new ConcurrentHashMap<>();
+
+    private final List<Endpoint> _endpoints;
+    private final int _totalWeight;
+
+    /**
+     * The path of the API base URL, which request paths start with and which an egress endpoint's own path replaces.
+     */
+    private final String _apiBasePath;
+
+    private TwitterEndpoints(List<Endpoint> endpoints, String apiBasePath)
+    {
+        int totalWeight = 0;
+
+        for (Endpoint endpoint : endpoints)
+        {
+            totalWeight += endpoint._weight;
+        }
+
+        _endpoints = Collections.unmodifiableList(endpoints);
+        _totalWeight = totalWeight;
+        _apiBasePath = apiBasePath;
+    }
+
+    static TwitterEndpoints from(TwitterAuthenticatorPluginConfig config)
+    {
+        WebServiceClientFactory webServiceClientFactory = config.getWebServiceClientFactory();
+        HttpClient httpClient = config.getHttpClient().orElse(null);
+        URI apiBaseUri = parse(TwitterApi.baseUrlOf(config));
+        List<String> egressEndpoints = config.getApiEgressEndpoints();
+
+        if (egressEndpoints.isEmpty())
+        {
+            return direct(webServiceClientFactory, httpClient, apiBaseUri);
+        }
+
+        List<Endpoint> endpoints = new ArrayList<>(egressEndpoints.size());
+
+        for (String egressEndpoint : egressEndpoints)
+        {
+            String[] urlAndWeight = egressEndpoint.trim().split("\\s+");
+
+            if (urlAndWeight.length > 2)
+            {
+                throw new IllegalArgumentException("Invalid API egress endpoint: " + egressEndpoint);
+            }
+
+            int weight = urlAndWeight.length == 2 ? parseWeight(urlAndWeight[1]) : 1;
+
+            endpoints.add(new Endpoint(webServiceClientFactory, httpClient, parse(urlAndWeight[0]), weight));
+        }
+
+        return new TwitterEndpoints(endpoints, pathOf(apiBaseUri));
+    }
+
+    /**
+     * @param httpClient the configured HTTP client, or null to use the default one
+     * @return the API base URL as the only endpoint
+     */
+    static TwitterEndpoints direct(WebServiceClientFactory webServiceClientFactory, @Nullable HttpClient httpClient,
+                                   URI apiBaseUri)
+    {
+        return new TwitterEndpoints(Collections.singletonList(
+                new Endpoint(webServiceClientFactory, httpClient, apiBaseUri, 1)), pathOf(apiBaseUri));
+    }
+
+    private static URI parse(String url)
+    {
+        try
+        {
+            URI uri = new URI(url);
+
+            if (uri.getScheme() == null || uri.getHost() == null)
+            {
+                throw new IllegalArgumentException("Not an absolute URL: " + url);
+            }
+
+            return uri;
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IllegalArgumentException("Invalid URL: " + url, e);
+        }
+    }
+
+    /**
+     * @return the endpoint to send the next request to
+     */
+    Endpoint select()
+    {
+        if (_endpoints.size() == 1)
+        {
+            return _endpoints.get(0);
+        }
+
+        long now = System.nanoTime();
+        int healthyWeight = 0;
+
+        for (Endpoint endpoint : _endpoints)
+        {
+            if (endpoint.isHealthy(now))
+            {
+                healthyWeight += endpoint._weight;
+            }
+        }
+
+        boolean allUnhealthy = healthyWeight == 0;
+        int remaining = ThreadLocalRandom.current().nextInt(allUnhealthy ? _totalWeight : healthyWeight);
+
+        for (Endpoint endpoint : _endpoints)
+        {
+            if (allUnhealthy || endpoint.isHealthy(now))
+            {
+                remaining -= endpoint._weight;
+
+                if (remaining < 0)
+                {
+                    return endpoint;
+                }
+            }
+        }
+
+        // Only if an endpoint recovered between the two loops
+        return _endpoints.get(0);
+    }
+
+    /**
+     * @return the base URLs of the endpoints that are currently left out because they failed
+     */
+    static List<String> getUnhealthyBaseUrls()
+    {
+        long now = System.nanoTime();
+        List<String> unhealthy = new ArrayList<>();
+
+        _unhealthyUntil.forEach((baseUrl, unhealthyUntil) -> {
+            if (now - unhealthyUntil < 0)
+            {
+                unhealthy.add(baseUrl);
+            }
+        });
+
+        return unhealthy;
+    }
+
+    List<Endpoint> getAll()
+    {
+        return _endpoints;
+    }
+
+    /**
+     * @param path the path of a request URL of the API, which starts with the path of the API base URL
+     * @return the path to request from an endpoint
+     */
+    String toEndpointPath(Endpoint endpoint, String path)
+    {
+        if (_apiBasePath.isEmpty() && endpoint._path.isEmpty())
+        {
+            return path;
+        }
+
+        String relativePath = path.startsWith(_apiBasePath) ? path.substring(_apiBasePath.length()) : path;
+
+        return endpoint._path + relativePath;
+    }
+
+    private static int parseWeight(String weight)
+    {
+        try
+        {
+            int value = Integer.parseInt(weight);
+
+            if (value > 0)
+            {
+                return value;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            // Reported below
+        }
+
+        throw new IllegalArgumentException("Invalid API egress endpoint weight: " + weight);
+    }
+
+    /**
+     * @return the path of the given URI without any trailing slash, or an empty string if it has none
+     */
+    private static String pathOf(URI uri)
+    {
+        String path = uri.getRawPath();
+
+        if (path == null)
+        {
+            return "";
+        }
+
+        return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    static final class Endpoint
+    {
+        private final String _baseUrl;
+        private final String _path;
+        private final int _weight;
+        private final WebServiceClient _webServiceClient;
+
+        private Endpoint(WebServiceClientFactory webServiceClientFactory, @Nullable HttpClient httpClient,
+                         URI baseUri, int weight)
+        {
+            _baseUrl = baseUri.toString();
+            _path = pathOf(baseUri);
+            _weight = weight;
+            _webServiceClient = createWebServiceClient(webServiceClientFactory, httpClient, baseUri);
+        }
+
+        /**
+         * @return a client for this endpoint, which shares the connections of the underlying HTTP client with all
+         * other clients created from it
+         * @throws IllegalArgumentException if the HTTP client uses another scheme than the endpoint
+         */
+        private static WebServiceClient createWebServiceClient(WebServiceClientFactory webServiceClientFactory,
+                                                               @Nullable HttpClient httpClient, URI baseUri)
+        {
+            if (httpClient == null)
+            {
+                return webServiceClientFactory.create(URI.create(
+                        baseUri.getScheme() + "://" + baseUri.getRawAuthority()));
+            }
+
+            if (!baseUri.getScheme().equalsIgnoreCase(httpClient.getScheme()))
+            {
+                // Requests would silently be sent with the scheme of the HTTP client, likely to the wrong port
+                throw new IllegalArgumentException(String.format(
+                        "The scheme of %s does not match the scheme %s of the configured HTTP client", baseUri,
+                        httpClient.getScheme()));
+            }
+
+            WebServiceClient webServiceClient = webServiceClientFactory.create(httpClient)
+                    .withHost(baseUri.getHost());
+
+            return baseUri.getPort() == -1 ? webServiceClient : webServiceClient.withPort(baseUri.getPort());
+        }
+
+        WebServiceClient getWebServiceClient()
+        {
+            return _webServiceClient;
+        }
+
+        String getBaseUrl()
+        {
+            return _baseUrl;
+        }
+
+        /**
+         * @return the path of the base URL without any trailing slash, or an empty string if it has none
+         */
+        String getPath()
+        {
+            return _path;
+        }
+
+        boolean isHealthy(long now)
+        {
+            Long unhealthyUntil = _unhealthyUntil.get(_baseUrl);
+
+            return unhealthyUntil == null || now - unhealthyUntil >= 0;
+        }
+
+        /**
+         * Record a response from the endpoint, which counts as a failure if it means that the endpoint could not
+         * pass the request on to Twitter.
+         */
+        void recordResponse(int statusCode)
+        {
+            if (statusCode == 502 || statusCode == 503 || statusCode == 504)
+            {
+                recordFailure();
+            }
+            else if (!_unhealthyUntil.isEmpty())
+            {
+                _unhealthyUntil.remove(_baseUrl);
+            }
+        }
+
+        void recordFailure()
+        {
+            _unhealthyUntil.put(_baseUrl, System.nanoTime() + UNHEALTHY_NANOS);
+        }
+    }
+}
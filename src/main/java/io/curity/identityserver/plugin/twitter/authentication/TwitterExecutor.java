@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An executor that asynchronous calls to Twitter run on. Each {@link TwitterService} has its own, which is shut down
+ * when the service is closed.
+ *
+ * <p>Virtual threads are used when the runtime provides them; otherwise a pool of daemon threads is used, whose
+ * threads end when they have been idle for a while. In both cases the number of calls that are running or waiting to
+ * run is bounded, and calls beyond that bound are rejected rather than queued without limit.
+ */
+final class TwitterExecutor
+{
+    private static final Logger _logger = LoggerFactory.getLogger(TwitterExecutor.class);
+
+    private static final long IDLE_THREAD_SECONDS = 60;
+
+    private static final ScheduledExecutorService _timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "twitter-timeouts");
+
+        thread.setDaemon(true);
+
+        return thread;
+    });
+
+    private final String _name;
+    private final int _maxInFlight;
+    private final ExecutorService _executor;
+    private final Semaphore _inFlight;
+
+    /**
+     * @param name        the prefix of the names of the threads
+     * @param maxThreads  the number of threads, if virtual threads are not available
+     * @param maxInFlight the number of calls that may be running or waiting to run
+     */
+    TwitterExecutor(String name, int maxThreads, int maxInFlight)
+    {
+        _name = name;
+        _maxInFlight = maxInFlight;
+        _executor = createExecutor(name, maxThreads);
+        _inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Run the given task asynchronously. Cancelling the returned future, or completing it with a
+     * {@link TimeoutException}, interrupts the task if it is still running.
+     *
+     * @throws RejectedExecutionException if too many tasks are already running or waiting to run, or the executor
+     *                                    has been shut down
+     */
+    <T> CompletableFuture<T> submit(Callable<T> task)
+    {
+        if (!_inFlight.tryAcquire())
+        {
+            throw new RejectedExecutionException(String.format(
+                    "Too many concurrent calls to Twitter on %s; limit is %d", _name, _maxInFlight));
+        }
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        AtomicBoolean started = new AtomicBoolean();
+        Future<?> execution;
+
+        try
+        {
+            execution = _executor.submit(() -> {
+                if (!started.compareAndSet(false, true))
+                {
+                    // Cancelled while waiting for a thread, and the permit already released
+                    return;
+                }
+
+                try
+                {
+                    future.complete(task.call());
+                }
+                catch (Throwable t)
+                {
+                    future.completeExceptionally(t);
+                }
+                finally
+                {
+                    // Only once the task has really ended, so that the bound holds for abandoned calls too
+                    _inFlight.release();
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            _inFlight.release();
+
+            throw e;
+        }
+
+        // A CompletableFuture can't interrupt what completes it, so the execution is cancelled instead
+        future.whenComplete((result, e) -> {
+            if ((e instanceof CancellationException || e instanceof TimeoutException) && execution.cancel(true) &&
+                    started.compareAndSet(false, true))
+            {
+                _inFlight.release();
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Stop taking new tasks. Tasks that have been submitted still run, after which the threads end.
+     */
+    void shutdown()
+    {
+        _executor.shutdown();
+    }
+
+    /**
+     * @return the number of calls that are running or waiting to run
+     */
+    int getInFlight()
+    {
+        return _maxInFlight - _inFlight.availablePermits();
+    }
+
+    /**
+     * Complete the given future with a {@link TimeoutException} if it has not completed within the given time. If the
+     * future was returned by {@link #submit(Callable)}, the task behind it is interrupted.
+     *
+     * @return the given future
+     */
+    static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeoutMillis)
+    {
+        if (!future.isDone())
+        {
+            ScheduledFuture<?> timeout = _timer.schedule(() -> future.completeExceptionally(new TimeoutException(
+                    String.format("Twitter did not respond within %d ms", timeoutMillis))),
+                    timeoutMillis, TimeUnit.MILLISECONDS);
+
+            future.whenComplete((result, e) -> timeout.cancel(false));
+        }
+
+        return future;
+    }
+
+    /**
+     * Run the given task on the timer thread after the given time. The task must be quick.
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long delayMillis)
+    {
+        return _timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static ExecutorService createExecutor(String name, int maxThreads)
+    {
+        try
+        {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+
+            _logger.debug("Using virtual threads for asynchronous calls to Twitter on {}", name);
+
+            return executor;
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            _logger.debug("Virtual threads are not available; using a pool of {} threads for {}", maxThreads, name);
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, IDLE_THREAD_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+
+                    thread.setDaemon(true);
+
+                    return thread;
+                });
+
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+}
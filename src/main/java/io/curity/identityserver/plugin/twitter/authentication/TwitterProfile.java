@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.Attribute;
+
+import java.util.List;
+import java.util.Map;
+
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.EMAIL;
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.NAME;
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.PROFILE_IMAGE_URL;
+
+/**
+ * The parts of the user's Twitter account, as returned by {@code account/verify_credentials}, that are added to the
+ * subject attributes.
+ */
+final class TwitterProfile
+{
+    /**
+     * The names of the attributes a profile may add, as listed when the profile did not arrive in time.
+     */
+    static final String ATTRIBUTE_NAMES = NAME + " " + EMAIL + " " + PROFILE_IMAGE_URL;
+
+    @Nullable
+    private final String _name;
+
+    @Nullable
+    private final String _email;
+
+    @Nullable
+    private final String _profileImageUrl;
+
+    private TwitterProfile(@Nullable String name, @Nullable String email, @Nullable String profileImageUrl)
+    {
+        _name = name;
+        _email = email;
+        _profileImageUrl = profileImageUrl;
+    }
+
+    static TwitterProfile of(Map<String, Object> user)
+    {
+        return new TwitterProfile(stringOrNull(user.get("name")), stringOrNull(user.get("email")),
+                stringOrNull(user.get("profile_image_url_https")));
+    }
+
+    /**
+     * Add the attributes of this profile that Twitter returned to the given list.
+     */
+    void addTo(List<Attribute> attributes)
+    {
+        if (_name != null)
+        {
+            attributes.add(Attribute.of(NAME, _name));
+        }
+
+        if (_email != null)
+        {
+            attributes.add(Attribute.of(EMAIL, _email));
+        }
+
+        if (_profileImageUrl != null)
+        {
+            attributes.add(Attribute.of(PROFILE_IMAGE_URL, _profileImageUrl));
+        }
+    }
+
+    @Nullable
+    private static String stringOrNull(@Nullable Object value)
+    {
+        // Twitter omits the e-mail address, or sends an empty one, when the app may not read it
+        return value instanceof String && !((String) value).isEmpty() ? (String) value : null;
+    }
+}
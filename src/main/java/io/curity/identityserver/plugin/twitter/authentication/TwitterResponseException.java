@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.exceptions.OAuthException;
+import com.github.scribejava.core.model.Response;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thrown when Twitter answers a token request with an unsuccessful status code.
+ */
+final class TwitterResponseException extends OAuthException
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final int ENHANCE_YOUR_CALM = 420;
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final int _statusCode;
+
+    @Nullable
+    private final Long _retryAfterMillis;
+
+    private TwitterResponseException(int statusCode, @Nullable Long retryAfterMillis, String body)
+    {
+        super(String.format("Twitter responded with status %d: %s", statusCode, body));
+
+        _statusCode = statusCode;
+        _retryAfterMillis = retryAfterMillis;
+    }
+
+    static TwitterResponseException from(Response response, String body)
+    {
+        return new TwitterResponseException(response.getCode(), getRetryAfterMillis(response), body);
+    }
+
+    int getStatusCode()
+    {
+        return _statusCode;
+    }
+
+    /**
+     * @return true if Twitter asked for calls to be held off
+     */
+    boolean isRateLimited()
+    {
+        return _statusCode == TOO_MANY_REQUESTS || _statusCode == ENHANCE_YOUR_CALM;
+    }
+
+    boolean isServerError()
+    {
+        return _statusCode >= 500;
+    }
+
+    /**
+     * @return how long Twitter asked for calls to be held off, or null if it did not say
+     */
+    @Nullable
+    Long getRetryAfterMillis()
+    {
+        return _retryAfterMillis;
+    }
+
+    @Nullable
+    private static Long getRetryAfterMillis(Response response)
+    {
+        String retryAfter = response.getHeader("Retry-After");
+
+        if (retryAfter != null)
+        {
+            try
+            {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+            }
+            catch (NumberFormatException e)
+            {
+                try
+                {
+                    Instant retryAt = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                            .toInstant();
+
+                    return Math.max(0, retryAt.toEpochMilli() - System.currentTimeMillis());
+                }
+                catch (DateTimeParseException ignored)
+                {
+                    // Fall through to the rate limit reset time, if any
+                }
+            }
+        }
+
+        String rateLimitReset = response.getHeader("x-rate-limit-reset");
+
+        if (rateLimitReset != null)
+        {
+            try
+            {
+                long resetAt = TimeUnit.SECONDS.toMillis(Long.parseLong(rateLimitReset.trim()));
+
+                return Math.max(0, resetAt - System.currentTimeMillis());
+            }
+            catch (NumberFormatException ignored)
+            {
+                // Twitter did not say when to try again
+            }
+        }
+
+        return null;
+    }
+}
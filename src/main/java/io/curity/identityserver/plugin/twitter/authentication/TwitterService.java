@@ -0,0 +1,520 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.model.OAuth1AccessToken;
+import com.github.scribejava.core.model.OAuth1RequestToken;
+import com.github.scribejava.core.model.OAuthRequest;
+import com.github.scribejava.core.model.Response;
+import com.github.scribejava.core.model.Verb;
+import com.github.scribejava.core.oauth.OAuth10aService;
+import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.twitter.metrics.TwitterMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.service.Json;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.USER_ID;
+
+/**
+ * The calls the handlers make to Twitter, on top of the {@link OAuth10aService} shared by all logins of one
+ * configuration.
+ *
+ * <p>Every call has a deadline. Request token calls, which have no side effects, are retried with jittered backoff
+ * when Twitter fails or does not answer in time; access token calls are not, since a verifier can only be used once.
+ * Every attempt at a request token, retries included, takes a permit from the {@link RequestTokenRateLimiter}.
+ * Repeated failures, and Twitter asking to be called less often, open a {@link CircuitBreaker} that makes further
+ * calls fail fast.
+ *
+ * <p>User profiles are fetched outside of the circuit breaker, since they are optional and have their own rate limit
+ * at Twitter; a profile that can't be fetched does not fail the login.
+ */
+final class TwitterService
+{
+    private static final Logger _logger = LoggerFactory.getLogger(TwitterService.class);
+    private static final SampledLog _retries = new SampledLog(_logger);
+
+    private static final long RETRY_BACKOFF_MILLIS = 100;
+    private static final long MAX_RETRY_BACKOFF_MILLIS = 2000;
+    private static final long DEFAULT_RATE_LIMIT_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private static final int PROFILE_THREADS = 4;
+
+    private final TwitterMetrics _metrics = CompositeTwitterMetrics.instance();
+    private final OAuth10aService _service;
+    private final String _verifyCredentialsEndpoint;
+
+    @Nullable
+    private final RequestTokenPool _requestTokenPool;
+
+    @Nullable
+    private final RequestTokenRateLimiter _rateLimiter;
+
+    @Nullable
+    private final UserProfileCache _profileCache;
+
+    // Separate from the executor of logins, so that slow profile fetches can't hold up logins
+    @Nullable
+    private final TwitterExecutor _profileExecutor;
+
+    @Nullable
+    private final RequestTokenState _requestTokenState;
+
+    @Nullable
+    private final RequestTokenHedge _requestTokenHedge;
+
+    private final Json _json;
+    private final TwitterExecutor _executor;
+    private final CircuitBreaker _circuitBreaker;
+    private final long _requestTokenTimeoutMillis;
+    private final long _accessTokenTimeoutMillis;
+    private final long _profileTimeoutMillis;
+    private final int _requestTokenRetries;
+    private final long _maxRateLimitHoldOffMillis;
+
+    /**
+     * @param executor the executor the HTTP client of the given service runs asynchronous calls on, which the service
+     *                 takes ownership of
+     */
+    TwitterService(OAuth10aService service, TwitterExecutor executor, @Nullable RequestTokenRateLimiter rateLimiter,
+                   @Nullable UserProfileCache profileCache, @Nullable RequestTokenState requestTokenState,
+                   TwitterAuthenticatorPluginConfig config)
+    {
+        _service = service;
+        _verifyCredentialsEndpoint = ((TwitterApi) service.getApi()).getVerifyCredentialsEndpoint();
+        _requestTokenPool = config.getRequestTokenPoolSize() > 0
+                ? new RequestTokenPool("twitter-request-token-refiller-" + config.id(),
+                        this::fetchPooledRequestToken, config.getRequestTokenPoolSize(),
+                        config.getRequestTokenPoolMaxAge(), _metrics)
+                : null;
+        _rateLimiter = rateLimiter;
+        _profileCache = profileCache;
+        _profileExecutor = profileCache != null
+                ? new TwitterExecutor("twitter-profile-" + config.id(), PROFILE_THREADS,
+                        config.getMaxConcurrentProfileFetches())
+                : null;
+        _requestTokenState = requestTokenState;
+        _requestTokenHedge = config.getRequestTokenHedgeBudget() > 0
+                ? new RequestTokenHedge(service, rateLimiter, config.getRequestTokenHedgeBudget(),
+                        config.getRequestTokenHedgePercentile())
+                : null;
+        _json = config.getJson();
+        _executor = executor;
+        _circuitBreaker = new CircuitBreaker(config.getCircuitBreakerFailureThreshold(),
+                config.getCircuitBreakerOpenDuration());
+        _requestTokenTimeoutMillis = config.getRequestTokenTimeout();
+        _accessTokenTimeoutMillis = config.getAccessTokenTimeout();
+        _profileTimeoutMillis = config.getProfileTimeout();
+        _requestTokenRetries = config.getRequestTokenRetries();
+        _maxRateLimitHoldOffMillis = TimeUnit.SECONDS.toMillis(config.getRateLimitMaxHoldOff());
+    }
+
+    OAuth1RequestToken getRequestToken() throws InterruptedException, ExecutionException, IOException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            _circuitBreaker.checkNotOpen();
+
+            if (_requestTokenPool != null)
+            {
+                OAuth1RequestToken requestToken = _requestTokenPool.poll();
+
+                if (requestToken != null)
+                {
+                    return requestToken;
+                }
+            }
+
+            return call(_requestTokenHedge == null
+                            ? _service::getRequestTokenAsync
+                            : _requestTokenHedge::getRequestTokenAsync,
+                    _requestTokenTimeoutMillis, _requestTokenRetries, _rateLimiter);
+        }
+        catch (Exception e)
+        {
+            recordError(e);
+
+            throw e;
+        }
+        finally
+        {
+            _metrics.recordRequestTokenLatency(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Get a request token for the pool, only while Twitter is known to be up and a permit is available right away,
+     * so that refills neither probe a breaker that has opened nor compete with logins for permits. Like the calls of
+     * logins, it is bounded by the request token timeout, and its outcome counts towards the breaker.
+     *
+     * @return the request token, or null if none should be fetched now
+     */
+    @Nullable
+    private OAuth1RequestToken fetchPooledRequestToken() throws InterruptedException, ExecutionException, IOException
+    {
+        if (!_circuitBreaker.isClosed() || (_rateLimiter != null && !_rateLimiter.tryAcquire()))
+        {
+            return null;
+        }
+
+        return call(_service::getRequestTokenAsync, _requestTokenTimeoutMillis, 0, null);
+    }
+
+    String getAuthorizationUrl(OAuth1RequestToken requestToken)
+    {
+        return _service.getAuthorizationUrl(requestToken);
+    }
+
+    OAuth1AccessToken getAccessToken(OAuth1RequestToken requestToken, String oauthVerifier)
+            throws InterruptedException, ExecutionException, IOException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            _circuitBreaker.checkNotOpen();
+
+            return call(() -> _service.getAccessTokenAsync(requestToken, oauthVerifier), _accessTokenTimeoutMillis,
+                    0, null);
+        }
+        catch (Exception e)
+        {
+            recordError(e);
+
+            throw e;
+        }
+        finally
+        {
+            _metrics.recordAccessTokenLatency(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Start getting the Twitter profile of the user the given access token was issued to, if profiles are to be
+     * fetched.
+     *
+     * @return a future that is never completed exceptionally, holding the profile or null if profiles are not fetched
+     * or the user's profile is not available
+     */
+    CompletableFuture<TwitterProfile> getProfile(OAuth1AccessToken accessToken)
+    {
+        if (_profileCache == null)
+        {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return _profileCache.get(accessToken.getParameter(USER_ID), () -> fetchProfile(accessToken));
+    }
+
+    /**
+     * Start filling the pool of request tokens, if there is one, so that it has tokens for the logins that follow.
+     */
+    void start()
+    {
+        if (_requestTokenPool != null)
+        {
+            _requestTokenPool.fill();
+        }
+    }
+
+    /**
+     * Stop the threads of this service once the calls that are running have ended. Calls made after this fail.
+     */
+    void close()
+    {
+        if (_requestTokenPool != null)
+        {
+            _requestTokenPool.close();
+        }
+
+        _executor.shutdown();
+
+        if (_profileExecutor != null)
+        {
+            _profileExecutor.shutdown();
+        }
+    }
+
+    TwitterExecutor getExecutor()
+    {
+        return _executor;
+    }
+
+    /**
+     * @return the executor profiles are fetched on, or null if profiles are not fetched
+     */
+    @Nullable
+    TwitterExecutor getProfileExecutor()
+    {
+        return _profileExecutor;
+    }
+
+    @Nullable
+    RequestTokenPool getRequestTokenPool()
+    {
+        return _requestTokenPool;
+    }
+
+    @Nullable
+    RequestTokenRateLimiter getRateLimiter()
+    {
+        return _rateLimiter;
+    }
+
+    @Nullable
+    RequestTokenHedge getRequestTokenHedge()
+    {
+        return _requestTokenHedge;
+    }
+
+    CircuitBreaker getCircuitBreaker()
+    {
+        return _circuitBreaker;
+    }
+
+    /**
+     * @return the means to keep request tokens in a cookie, or null if they are kept in the session
+     */
+    @Nullable
+    RequestTokenState getRequestTokenState()
+    {
+        return _requestTokenState;
+    }
+
+    @Nullable
+    UserProfileCache getProfileCache()
+    {
+        return _profileCache;
+    }
+
+    // Only called when profiles are fetched
+    private CompletableFuture<TwitterProfile> fetchProfile(OAuth1AccessToken accessToken)
+    {
+        long start = System.nanoTime();
+        OAuthRequest request = new OAuthRequest(Verb.GET, _verifyCredentialsEndpoint);
+
+        request.addQuerystringParameter("include_email", "true");
+        request.addQuerystringParameter("include_entities", "false");
+        request.addQuerystringParameter("skip_status", "true");
+        _service.signRequest(accessToken, request);
+
+        CompletableFuture<TwitterProfile> profile = _profileExecutor.submit(() -> toProfile(_service.execute(request)));
+
+        profile.whenComplete((result, e) -> _metrics.recordProfileLatency(System.nanoTime() - start));
+
+        return TwitterExecutor.withTimeout(profile, _profileTimeoutMillis);
+    }
+
+    private TwitterProfile toProfile(Response response) throws IOException
+    {
+        String body = response.getBody();
+
+        if (!response.isSuccessful())
+        {
+            throw TwitterResponseException.from(response, body);
+        }
+
+        return TwitterProfile.of(_json.fromJson(body));
+    }
+
+    /**
+     * @param rateLimiter if not null, a permit is taken from it before every attempt, retries included
+     */
+    private <T> T call(Supplier<Future<T>> asyncCall, long timeoutMillis, int retries,
+                       @Nullable RequestTokenRateLimiter rateLimiter)
+            throws InterruptedException, ExecutionException, IOException
+    {
+        Exception failure = null;
+
+        for (int attempt = 0; ; attempt++)
+        {
+            // Checked first, so that no permit is spent, or waited for, on a call that the breaker refuses
+            boolean probe = _circuitBreaker.checkAllowed();
+
+            if (rateLimiter != null)
+            {
+                acquirePermit(rateLimiter, failure, probe);
+            }
+
+            Future<T> future = null;
+
+            try
+            {
+                future = asyncCall.get();
+
+                T result = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+
+                _circuitBreaker.onSuccess();
+
+                return result;
+            }
+            catch (TimeoutException e)
+            {
+                // Interrupts the call, which also gives back its slot in the executor
+                future.cancel(true);
+
+                failure = new IOException(String.format("Twitter did not respond within %d ms", timeoutMillis), e);
+                _circuitBreaker.onFailure();
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+
+                if (cause instanceof TwitterResponseException)
+                {
+                    TwitterResponseException responseException = (TwitterResponseException) cause;
+
+                    if (responseException.isRateLimited())
+                    {
+                        Long retryAfterMillis = responseException.getRetryAfterMillis();
+                        long holdOffMillis = Math.min(_maxRateLimitHoldOffMillis, retryAfterMillis == null
+                                ? DEFAULT_RATE_LIMIT_BACKOFF_MILLIS
+                                : retryAfterMillis);
+
+                        _logger.info("Twitter asked to be called less often; holding off calls for {} ms",
+                                holdOffMillis);
+                        _circuitBreaker.openFor(holdOffMillis);
+
+                        throw responseException;
+                    }
+
+                    if (!responseException.isServerError())
+                    {
+                        // Twitter is up and rejected this particular request, so retrying won't help
+                        _circuitBreaker.onSuccess();
+
+                        throw responseException;
+                    }
+                }
+
+                failure = unwrap(e);
+                _circuitBreaker.onFailure();
+            }
+            finally
+            {
+                if (probe)
+                {
+                    // Outcomes have reset the slot already; this is for calls that ended without one
+                    _circuitBreaker.releaseProbe();
+                }
+            }
+
+            if (attempt >= retries || _circuitBreaker.isOpen())
+            {
+                throw rethrow(failure);
+            }
+
+            long backoff = Math.min(MAX_RETRY_BACKOFF_MILLIS, RETRY_BACKOFF_MILLIS << attempt);
+
+            _retries.debug("Call to Twitter failed on attempt {}; retrying: {}", attempt + 1, failure.getMessage());
+
+            Thread.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+        }
+    }
+
+    /**
+     * @param probe true if the call holds the slot of the probing call, which is given back if no permit is taken
+     */
+    private void acquirePermit(RequestTokenRateLimiter rateLimiter, @Nullable Exception previousFailure,
+                               boolean probe)
+            throws InterruptedException, ExecutionException, IOException
+    {
+        boolean acquired = false;
+
+        try
+        {
+            rateLimiter.acquire();
+            acquired = true;
+        }
+        catch (TwitterUnavailableException e)
+        {
+            if (previousFailure == null)
+            {
+                throw e;
+            }
+
+            // A retry that is shed is not why the login failed
+            throw rethrow(previousFailure);
+        }
+        finally
+        {
+            if (probe && !acquired)
+            {
+                _circuitBreaker.releaseProbe();
+            }
+        }
+    }
+
+    private void recordError(Exception e)
+    {
+        TwitterMetrics.ErrorType errorType;
+
+        if (e instanceof TwitterResponseException)
+        {
+            errorType = ((TwitterResponseException) e).isServerError()
+                    ? TwitterMetrics.ErrorType.SERVER_ERROR
+                    : TwitterMetrics.ErrorType.CLIENT_ERROR;
+        }
+        else if (e instanceof TwitterUnavailableException)
+        {
+            errorType = TwitterMetrics.ErrorType.UNAVAILABLE;
+        }
+        else if (e instanceof IOException)
+        {
+            errorType = TwitterMetrics.ErrorType.NETWORK;
+        }
+        else
+        {
+            errorType = TwitterMetrics.ErrorType.OTHER;
+        }
+
+        _metrics.recordError(errorType);
+    }
+
+    private static Exception unwrap(ExecutionException e)
+    {
+        Throwable cause = e.getCause();
+
+        return cause instanceof RuntimeException || cause instanceof IOException ? (Exception) cause : e;
+    }
+
+    private static ExecutionException rethrow(Exception failure) throws IOException
+    {
+        if (failure instanceof RuntimeException)
+        {
+            throw (RuntimeException) failure;
+        }
+
+        if (failure instanceof IOException)
+        {
+            throw (IOException) failure;
+        }
+
+        return (ExecutionException) failure;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.model.OAuth1AccessToken;
+import com.github.scribejava.core.model.OAuth1RequestToken;
+import com.github.scribejava.core.model.OAuthRequest;
+import com.github.scribejava.core.model.Response;
+import com.github.scribejava.core.model.Verb;
+import com.github.scribejava.core.oauth.OAuth10aService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the CPU-bound parts of a login, signing requests and parsing Twitter's token responses, with made-up tokens
+ * and canned responses, so that the classes involved are loaded and compiled before the first real login.
+ *
+ * <p>Nothing is sent to Twitter; opening the connection to it is left to {@link TwitterConnectionKeeper}.
+ */
+final class TwitterWarmUp
+{
+    private static final Logger _logger = LoggerFactory.getLogger(TwitterWarmUp.class);
+
+    private static final int ITERATIONS = 2_000;
+
+    private static final String REQUEST_TOKEN_RESPONSE =
+            "oauth_token=warm-up-token&oauth_token_secret=warm-up-secret&oauth_callback_confirmed=true";
+    private static final String ACCESS_TOKEN_RESPONSE =
+            "oauth_token=1-warm-up-token&oauth_token_secret=warm-up-secret&user_id=1&screen_name=warm_up";
+
+    private TwitterWarmUp() { }
+
+    static void run()
+    {
+        long start = System.nanoTime();
+        OAuth10aService service = new ServiceBuilder("warm-up-key")
+                .apiSecret("warm-up-secret")
+                .callback("https://localhost/callback")
+                .build(TwitterApi.instance());
+
+        try
+        {
+            for (int i = 0; i < ITERATIONS; i++)
+            {
+                OAuth1RequestToken requestToken = FormUrlEncodedTokenExtractor.REQUEST_TOKEN.extract(
+                        new Response(200, "OK", Collections.emptyMap(), REQUEST_TOKEN_RESPONSE));
+
+                service.getAuthorizationUrl(requestToken);
+
+                OAuth1AccessToken accessToken = FormUrlEncodedTokenExtractor.ACCESS_TOKEN.extract(
+                        new Response(200, "OK", Collections.emptyMap(), ACCESS_TOKEN_RESPONSE));
+                OAuthRequest request = new OAuthRequest(Verb.POST, TwitterApi.instance().getAccessTokenEndpoint());
+
+                // Signs the same way as the token requests, with a fresh nonce and timestamp each time
+                service.signRequest(accessToken, request);
+            }
+
+            _logger.debug("Warmed up signing and token parsing in {} ms",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        catch (Exception e)
+        {
+            _logger.info("Could not warm up signing and token parsing: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import io.curity.identityserver.plugin.twitter.metrics.TwitterMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Twitter profiles of recently logged in users, keyed by user ID.
+ *
+ * <p>Profiles are kept for a fixed time after they were fetched. A lookup that failed is remembered for a shorter
+ * time, so that a user whose profile can't be read doesn't cause a call to Twitter on every login. Concurrent logins
+ * of the same user share a single call, which keeps running and fills the cache even if the logins waiting for it
+ * stop waiting. When the cache is full, expired entries are dropped first and then arbitrary ones.
+ */
+final class UserProfileCache
+{
+    private static final Logger _logger = LoggerFactory.getLogger(UserProfileCache.class);
+    private static final SampledLog _rejections = new SampledLog(_logger);
+    private static final SampledLog _failures = new SampledLog(_logger);
+
+    private final TwitterMetrics _metrics = CompositeTwitterMetrics.instance();
+    private final ConcurrentMap<String, Entry> _entries = new ConcurrentHashMap<>();
+    private final int _maxSize;
+    private final long _ttlNanos;
+    private final long _negativeTtlNanos;
+
+    UserProfileCache(int maxSize, int ttlSeconds, int negativeTtlSeconds)
+    {
+        _maxSize = maxSize;
+        _ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        _negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+    }
+
+    /**
+     * Get the profile of the given user, starting to fetch it with the given loader if it is not cached.
+     *
+     * @return a future that is never completed exceptionally, holding the profile or null if it could not be fetched
+     * now or recently
+     */
+    CompletableFuture<TwitterProfile> get(String userId, Supplier<CompletableFuture<TwitterProfile>> loader)
+    {
+        long now = System.nanoTime();
+        Entry entry = _entries.get(userId);
+
+        if (entry == null || entry.isExpired(now))
+        {
+            entry = _entries.compute(userId, (key, current) ->
+                    current == null || current.isExpired(now) ? new Entry() : current);
+        }
+
+        if (entry._loading.compareAndSet(false, true))
+        {
+            _metrics.recordProfileCacheMiss();
+
+            evictIfFull(now);
+            load(userId, entry, loader);
+        }
+        else
+        {
+            _metrics.recordProfileCacheHit();
+        }
+
+        return entry._profile;
+    }
+
+    int getSize()
+    {
+        return _entries.size();
+    }
+
+    private void load(String userId, Entry entry, Supplier<CompletableFuture<TwitterProfile>> loader)
+    {
+        CompletableFuture<TwitterProfile> profile;
+
+        try
+        {
+            profile = loader.get();
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Too busy to fetch it now, which says nothing about the next login
+            _rejections.debug("Not fetching profile of Twitter user {}: {}", userId, e.getMessage());
+            entry.complete(null, System.nanoTime());
+
+            return;
+        }
+        catch (RuntimeException e)
+        {
+            // Like a fetch that failed, or the entry would never complete nor expire
+            _failures.info("Could not fetch profile of Twitter user {}: {}", userId, e.getMessage());
+            entry.complete(null, System.nanoTime() + _negativeTtlNanos);
+
+            return;
+        }
+
+        profile.whenComplete((result, e) -> {
+            if (e != null)
+            {
+                _failures.info("Could not fetch profile of Twitter user {}: {}", userId, e.getMessage());
+            }
+
+            entry.complete(result, System.nanoTime() + (result == null ? _negativeTtlNanos : _ttlNanos));
+        });
+    }
+
+    private void evictIfFull(long now)
+    {
+        if (_entries.size() <= _maxSize)
+        {
+            return;
+        }
+
+        _entries.values().removeIf(entry -> entry.isExpired(now));
+
+        Iterator<Map.Entry<String, Entry>> entries = _entries.entrySet().iterator();
+
+        while (_entries.size() > _maxSize && entries.hasNext())
+        {
+            if (entries.next().getValue()._profile.isDone())
+            {
+                entries.remove();
+            }
+        }
+    }
+
+    private static final class Entry
+    {
+        private final AtomicBoolean _loading = new AtomicBoolean();
+        private final CompletableFuture<TwitterProfile> _profile = new CompletableFuture<>();
+        private volatile long _expiresAt;
+
+        private boolean isExpired(long now)
+        {
+            return _profile.isDone() && now - _expiresAt >= 0;
+        }
+
+        private void complete(@Nullable TwitterProfile profile, long expiresAt)
+        {
+            _expiresAt = expiresAt;
+            _profile.complete(profile);
+        }
+    }
+}
@@ -17,13 +17,18 @@
 package io.curity.identityserver.plugin.twitter.config;
 
 import se.curity.identityserver.sdk.config.Configuration;
+import se.curity.identityserver.sdk.config.annotation.DefaultBooleanValue;
+import se.curity.identityserver.sdk.config.annotation.DefaultIntegerValue;
+import se.curity.identityserver.sdk.config.annotation.DefaultString;
 import se.curity.identityserver.sdk.config.annotation.Description;
 import se.curity.identityserver.sdk.service.ExceptionFactory;
 import se.curity.identityserver.sdk.service.HttpClient;
+import se.curity.identityserver.sdk.service.Json;
 import se.curity.identityserver.sdk.service.SessionManager;
 import se.curity.identityserver.sdk.service.WebServiceClientFactory;
 import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
 
+import java.util.List;
 import java.util.Optional;
 
 @SuppressWarnings("InterfaceNeverImplemented")
@@ -38,6 +43,159 @@ public interface TwitterAuthenticatorPluginConfig extends Configuration
     @Description("The HTTP client with any proxy, TLS settings, etc. that will be used to connect to Twitter")
     Optional<HttpClient> getHttpClient();
 
+    @Description("The base URL of the Twitter API. Requests are signed for this URL, even when they are sent to " +
+            "one of the API egress endpoints")
+    @DefaultString("https://api.twitter.com")
+    String getApiBaseUrl();
+
+    @Description("The URL of the Twitter page that users are redirected to in order to authorize the app")
+    @DefaultString("https://api.twitter.com/oauth/authorize")
+    String getAuthorizeUrl();
+
+    @Description("Base URLs to send Twitter API requests to instead of the API base URL, such as regional egress " +
+            "proxies, each optionally followed by a space and a relative weight (default 1). Requests are spread " +
+            "by weight over the endpoints that have not failed recently. When an HTTP client is configured, the " +
+            "URLs requests are sent to must use its scheme")
+    List<String> getApiEgressEndpoints();
+
+    @Description("The number of request tokens to obtain from Twitter ahead of time, so that logins can be " +
+            "redirected without waiting for Twitter. When 0, a request token is obtained during each login")
+    @DefaultIntegerValue(0)
+    int getRequestTokenPoolSize();
+
+    @Description("The number of seconds a pre-fetched request token is kept before it is discarded")
+    @DefaultIntegerValue(120)
+    int getRequestTokenPoolMaxAge();
+
+    @Description("The number of milliseconds to wait for Twitter to issue a request token")
+    @DefaultIntegerValue(5000)
+    int getRequestTokenTimeout();
+
+    @Description("The number of milliseconds to wait for Twitter to issue an access token")
+    @DefaultIntegerValue(10000)
+    int getAccessTokenTimeout();
+
+    @Description("The number of times to retry obtaining a request token when Twitter fails or does not respond " +
+            "in time. Access token requests are never retried")
+    @DefaultIntegerValue(2)
+    int getRequestTokenRetries();
+
+    @Description("The percentage of request token calls for which a second, hedging call may be made when the " +
+            "first one is slower than usual. The first call to answer is used, and the other is abandoned, though " +
+            "its request may already have reached Twitter. A hedging call takes a permit of the request token rate " +
+            "limit, and is not made when none is available right away. When 0, calls are not hedged")
+    @DefaultIntegerValue(0)
+    int getRequestTokenHedgeBudget();
+
+    @Description("The percentile of recent request token call times after which a hedging call is made")
+    @DefaultIntegerValue(95)
+    int getRequestTokenHedgePercentile();
+
+    @Description("The maximum number of calls to Twitter that may be running or waiting to run at the same time. " +
+            "Further calls fail immediately")
+    @DefaultIntegerValue(256)
+    int getMaxConcurrentCalls();
+
+    @Description("The number of threads that run calls to Twitter, when the Java runtime does not provide virtual " +
+            "threads. Calls beyond this number wait for a thread, within the maximum number of concurrent calls")
+    @DefaultIntegerValue(32)
+    int getCallThreads();
+
+    @Description("The number of consecutive failed calls to Twitter after which further calls fail immediately " +
+            "for a while. When 0, calls are only held off when Twitter responds that it is being called too often")
+    @DefaultIntegerValue(5)
+    int getCircuitBreakerFailureThreshold();
+
+    @Description("The number of seconds calls to Twitter fail immediately after too many consecutive failures")
+    @DefaultIntegerValue(30)
+    int getCircuitBreakerOpenDuration();
+
+    @Description("The maximum number of seconds calls to Twitter are held off when it responds that it is being " +
+            "called too often, whatever time it asks for")
+    @DefaultIntegerValue(900)
+    int getRateLimitMaxHoldOff();
+
+    @Description("The maximum number of request tokens per minute this node obtains from Twitter for this app. " +
+            "When 0, the number is not limited")
+    @DefaultIntegerValue(0)
+    int getRequestTokenRateLimit();
+
+    @Description("The number of milliseconds a login may wait for the request token rate limit before it is " +
+            "turned away")
+    @DefaultIntegerValue(1000)
+    int getRequestTokenRateLimitMaxWait();
+
+    @Description("The maximum number of logins that may wait for the request token rate limit at the same time")
+    @DefaultIntegerValue(50)
+    int getRequestTokenRateLimitMaxQueued();
+
+    @Description("Whether to keep the request token in an encrypted cookie rather than in the session, so that no " +
+            "session storage is used while the user is at Twitter. Every node must have the same API secret key")
+    @DefaultBooleanValue(false)
+    boolean isStoreRequestTokenInCookie();
+
+    @Description("The number of seconds a request token kept in a cookie remains usable")
+    @DefaultIntegerValue(900)
+    int getRequestTokenCookieMaxAge();
+
+    @Description("Whether to look up the user's name, profile image and e-mail address at Twitter after login and " +
+            "add them to the subject attributes. The e-mail address is only returned if the app has permission to " +
+            "read it")
+    @DefaultBooleanValue(false)
+    boolean isFetchProfile();
+
+    @Description("The maximum number of user profiles to keep in memory")
+    @DefaultIntegerValue(10000)
+    int getProfileCacheSize();
+
+    @Description("The number of seconds a user profile fetched from Twitter is reused for later logins")
+    @DefaultIntegerValue(300)
+    int getProfileCacheTtl();
+
+    @Description("The number of seconds to wait before trying again to fetch a user profile that could not be " +
+            "fetched")
+    @DefaultIntegerValue(30)
+    int getProfileCacheNegativeTtl();
+
+    @Description("The number of milliseconds to wait for Twitter to return a user profile. A profile that arrives " +
+            "after the login completed is still cached for later logins")
+    @DefaultIntegerValue(2000)
+    int getProfileTimeout();
+
+    @Description("The number of milliseconds a login waits for the user profile once the access token has been " +
+            "obtained. If the profile takes longer, or is not available, the login completes without it and the " +
+            "profile attributes are listed in the partial_attributes context attribute")
+    @DefaultIntegerValue(500)
+    int getProfileBudget();
+
+    @Description("The maximum number of user profiles that may be being fetched from Twitter at the same time. " +
+            "Logins beyond this number complete without the profile, unless it is cached")
+    @DefaultIntegerValue(32)
+    int getMaxConcurrentProfileFetches();
+
+    @Description("The number of seconds Twitter may go without requests before it is sent a HEAD request for the " +
+            "path of the API base URL, or of each API egress endpoint, to keep connections to it open. A connection " +
+            "is then also opened when the plugin starts. These requests are not part of Twitter's API, and a proxy " +
+            "in between may refuse or count them, so they are only sent when this is set. When 0, none are sent")
+    @DefaultIntegerValue(0)
+    int getConnectionKeepAliveInterval();
+
+    @Description("Whether to run request signing and token parsing with made-up data when the plugin starts, so " +
+            "that the first logins after a restart are not slowed down by class loading and compilation")
+    @DefaultBooleanValue(false)
+    boolean isWarmUp();
+
+    @Description("Whether the diagnostics endpoint of the authenticator returns live statistics of this node, as " +
+            "JSON. Callers must send the diagnostics access token as a bearer token, and accept application/json. " +
+            "A login whose callback reaches another node than its redirect is counted as abandoned on the node " +
+            "that redirected it")
+    @DefaultBooleanValue(false)
+    boolean isDiagnosticsEnabled();
+
+    @Description("The bearer token that callers of the diagnostics endpoint must send. Without one, the endpoint " +
+            "is not available")
+    Optional<String> getDiagnosticsAccessToken();
+
     SessionManager getSessionManager();
 
     ExceptionFactory getExceptionFactory();
@@ -45,4 +203,6 @@ public interface TwitterAuthenticatorPluginConfig extends Configuration
     AuthenticatorInformationProvider getAuthenticatorInformationProvider();
 
     WebServiceClientFactory getWebServiceClientFactory();
+
+    Json getJson();
 }
@@ -17,18 +17,23 @@
 package io.curity.identityserver.plugin.twitter.descriptor;
 
 import io.curity.identityserver.plugin.twitter.authentication.CallbackRequestHandler;
+import io.curity.identityserver.plugin.twitter.authentication.DiagnosticsRequestHandler;
 import io.curity.identityserver.plugin.twitter.authentication.TwitterAuthenticatorRequestHandler;
+import io.curity.identityserver.plugin.twitter.authentication.TwitterConnectionKeeper;
 import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
 import se.curity.identityserver.sdk.authentication.AuthenticatorRequestHandler;
+import se.curity.identityserver.sdk.plugin.ManagedObject;
 import se.curity.identityserver.sdk.plugin.descriptor.AuthenticatorPluginDescriptor;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Optional;
 
 public final class TwitterAuthenticatorPluginDescriptor
         implements AuthenticatorPluginDescriptor<TwitterAuthenticatorPluginConfig>
 {
     public final static String CALLBACK = "callback";
+    public final static String DIAGNOSTICS = "diagnostics";
 
     @Override
     public String getPluginImplementationType()
@@ -45,11 +50,19 @@ public final class TwitterAuthenticatorPluginDescriptor
     @Override
     public Map<String, Class<? extends AuthenticatorRequestHandler<?>>> getAuthenticationRequestHandlerTypes()
     {
-        Map<String, Class<? extends AuthenticatorRequestHandler<?>>> handlers = new LinkedHashMap<>(2);
+        Map<String, Class<? extends AuthenticatorRequestHandler<?>>> handlers = new LinkedHashMap<>(3);
 
         handlers.put("index", TwitterAuthenticatorRequestHandler.class);
         handlers.put(CALLBACK, CallbackRequestHandler.class);
+        handlers.put(DIAGNOSTICS, DiagnosticsRequestHandler.class);
 
         return handlers;
     }
+
+    @Override
+    public Optional<? extends ManagedObject<TwitterAuthenticatorPluginConfig>> createManagedObject(
+            TwitterAuthenticatorPluginConfig configuration)
+    {
+        return Optional.of(new TwitterConnectionKeeper(configuration));
+    }
 }
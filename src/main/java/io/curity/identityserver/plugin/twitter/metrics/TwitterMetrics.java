@@ -0,0 +1,157 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.metrics;
+
+/**
+ * Receives timings and counts from the Twitter login flow.
+ *
+ * <p>An implementation is picked up with {@link java.util.ServiceLoader} from the plugin's class loader, by listing
+ * it in {@code META-INF/services/io.curity.identityserver.plugin.twitter.metrics.TwitterMetrics} of a JAR in the
+ * plugin group directory. Without one, nothing is recorded. Every method is called on the request path, so
+ * implementations should be cheap and must be thread-safe.
+ */
+public interface TwitterMetrics
+{
+    enum ErrorType
+    {
+        /**
+         * The user declined to log in at Twitter.
+         */
+        ACCESS_DENIED,
+
+        /**
+         * Twitter rejected a call with a 4xx status code.
+         */
+        CLIENT_ERROR,
+
+        /**
+         * Twitter failed a call with a 5xx status code.
+         */
+        SERVER_ERROR,
+
+        /**
+         * Twitter could not be reached or did not respond in time.
+         */
+        NETWORK,
+
+        /**
+         * Twitter was not called because it is considered degraded or is being called as often as allowed.
+         */
+        UNAVAILABLE,
+
+        /**
+         * Any other error.
+         */
+        OTHER
+    }
+
+    default void recordRequestTokenLatency(long nanos) { }
+
+    /**
+     * Record that a second request token call was made because the first one was slow.
+     *
+     * @param won whether the second call answered first
+     */
+    default void recordRequestTokenHedged(boolean won) { }
+
+    /**
+     * Record that a login took a request token from the pool of tokens obtained ahead of time.
+     */
+    default void recordRequestTokenPoolHit() { }
+
+    /**
+     * Record that a login found the pool of request tokens empty and had to get its own.
+     */
+    default void recordRequestTokenPoolMiss() { }
+
+    /**
+     * Record that a pooled request token was discarded because it had become too old to use.
+     */
+    default void recordRequestTokenPoolExpired() { }
+
+    /**
+     * Record the number of request tokens left in a pool after it has changed.
+     */
+    default void recordRequestTokenPoolDepth(int depth) { }
+
+    default void recordAccessTokenLatency(long nanos) { }
+
+    default void recordRedirectConstruction(long nanos) { }
+
+    default void recordCallbackParse(long nanos) { }
+
+    /**
+     * Record that a repeated callback got the outcome of an earlier one instead of calling Twitter.
+     */
+    default void recordCallbackDeduplicated() { }
+
+    default void recordProfileLatency(long nanos) { }
+
+    /**
+     * Record that a user was redirected to Twitter with a request token.
+     */
+    default void recordRequestTokenIssued() { }
+
+    /**
+     * Record that a user came back from Twitter having logged in there.
+     *
+     * @param timeToCallbackNanos the time the user spent at Twitter, or -1 if not known
+     */
+    default void recordLoginCompleted(long timeToCallbackNanos) { }
+
+    /**
+     * Record that a user came back from Twitter having declined to log in.
+     *
+     * @param timeToCallbackNanos the time the user spent at Twitter, or -1 if not known
+     */
+    default void recordLoginDenied(long timeToCallbackNanos) { }
+
+    /**
+     * Record that a user who was redirected to Twitter did not come back in time.
+     */
+    default void recordLoginAbandoned() { }
+
+    /**
+     * Record that a user's profile was taken from the cache, or was already being fetched for a concurrent login.
+     */
+    default void recordProfileCacheHit() { }
+
+    /**
+     * Record that a user's profile had to be fetched from Twitter.
+     */
+    default void recordProfileCacheMiss() { }
+
+    /**
+     * Record that a login completed without the user's profile because it did not arrive within the budget.
+     */
+    default void recordProfileBudgetExceeded() { }
+
+    default void recordError(ErrorType errorType) { }
+
+    /**
+     * Record the status code of a response from Twitter.
+     */
+    default void recordStatusCode(int statusCode) { }
+
+    /**
+     * @return the implementation in use, which does nothing if none is provided
+     */
+    static TwitterMetrics instance()
+    {
+        return TwitterMetricsLoader.INSTANCE;
+    }
+}
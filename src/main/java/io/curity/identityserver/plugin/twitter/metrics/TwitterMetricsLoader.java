@@ -0,0 +1,58 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+final class TwitterMetricsLoader
+{
+    private static final Logger _logger = LoggerFactory.getLogger(TwitterMetricsLoader.class);
+
+    static final TwitterMetrics INSTANCE = load();
+
+    private TwitterMetricsLoader() { }
+
+    private static TwitterMetrics load()
+    {
+        try
+        {
+            Iterator<TwitterMetrics> implementations = ServiceLoader
+                    .load(TwitterMetrics.class, TwitterMetrics.class.getClassLoader())
+                    .iterator();
+
+            if (implementations.hasNext())
+            {
+                TwitterMetrics metrics = implementations.next();
+
+                _logger.info("Recording Twitter login metrics with {}", metrics.getClass().getName());
+
+                return metrics;
+            }
+        }
+        catch (ServiceConfigurationError e)
+        {
+            _logger.warn("Could not load Twitter login metrics; none will be recorded", e);
+        }
+
+        return new TwitterMetrics() { };
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.curity.identityserver.sdk.web.Request;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the parameters of the callback from Twitter into a {@link CallbackGetRequestModel}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CallbackParsingBenchmark
+{
+    private Request _request;
+    private Request _requestWithState;
+
+    @Setup
+    public void setUp()
+    {
+        Map<String, String> parameters = new HashMap<>();
+
+        parameters.put(Constants.OAUTH_TOKEN, "NPcudxy0yU5T3tBzho7iCotZ3cnetKwcTIRlX0iwRl0");
+        parameters.put(Constants.OAUTH_VERIFIER, "uw7NjWHT6OJ1MpJOXsHfNxoAhPKpgI8BlYDhxEjIBY");
+
+        _request = Stubs.getRequest(parameters, Collections.emptyMap());
+        _requestWithState = Stubs.getRequest(parameters, Collections.singletonMap(RequestTokenState.COOKIE_NAME,
+                "d2VsbCwgdGhpcyBpcyBqdXN0IGEgc3RhdGUgdmFsdWUgb2YgYWJvdXQgdGhlIHJpZ2h0IHNpemU"));
+    }
+
+    @Benchmark
+    public CallbackGetRequestModel parse()
+    {
+        return new CallbackGetRequestModel(_request);
+    }
+
+    @Benchmark
+    public CallbackGetRequestModel parseWithState()
+    {
+        return new CallbackGetRequestModel(_requestWithState);
+    }
+}
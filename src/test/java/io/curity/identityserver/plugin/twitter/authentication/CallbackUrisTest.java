@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
+
+import java.net.URI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class CallbackUrisTest
+{
+    private static final ExceptionFactory _exceptionFactory = Stubs.stub(ExceptionFactory.class,
+            (name, arguments) -> {
+                throw new UnsupportedOperationException(name);
+            });
+
+    @Test
+    void appendsCallbackToAuthenticatorUri()
+    {
+        assertEquals("https://login.example.com/authn/authentication/twitter/callback",
+                resolve("https://login.example.com/authn/authentication/twitter"));
+        assertEquals("http://localhost:8443/authn/authentication/twitter/callback",
+                resolve("http://localhost:8443/authn/authentication/twitter"));
+    }
+
+    @Test
+    void reusesCallbackUriOfSameAuthenticatorUri()
+    {
+        String callbackUri = resolve("https://cached.example.com/authn/authentication/twitter");
+
+        assertSame(callbackUri, resolve("https://cached.example.com/authn/authentication/twitter"));
+    }
+
+    @Test
+    void keepsCallbackUriOfEachAuthenticatorUri()
+    {
+        String first = resolve("https://first.example.com/authn/authentication/twitter");
+        String second = resolve("https://second.example.com/authn/authentication/twitter");
+        String other = resolve("https://first.example.com/authn/authentication/twitter-other");
+
+        assertEquals("https://first.example.com/authn/authentication/twitter/callback", first);
+        assertEquals("https://second.example.com/authn/authentication/twitter/callback", second);
+        assertEquals("https://first.example.com/authn/authentication/twitter-other/callback", other);
+        assertSame(first, resolve("https://first.example.com/authn/authentication/twitter"));
+        assertSame(second, resolve("https://second.example.com/authn/authentication/twitter"));
+    }
+
+    @Test
+    void clearsWhenFull()
+    {
+        String retained = resolve("https://retained.example.com/authn/authentication/twitter");
+
+        for (int i = 0; CallbackUris.getSize() < CallbackUris.MAX_URIS; i++)
+        {
+            resolve("https://host" + i + ".example.com/authn/authentication/twitter");
+        }
+
+        assertSame(retained, resolve("https://retained.example.com/authn/authentication/twitter"));
+
+        resolve("https://one-too-many.example.com/authn/authentication/twitter");
+
+        assertEquals(1, CallbackUris.getSize());
+
+        String resolvedAgain = resolve("https://retained.example.com/authn/authentication/twitter");
+
+        assertNotSame(retained, resolvedAgain);
+        assertEquals(retained, resolvedAgain);
+    }
+
+    private static String resolve(String authenticatorUri)
+    {
+        return CallbackUris.resolve(Stubs.stub(AuthenticatorInformationProvider.class, (name, arguments) -> {
+            if ("getFullyQualifiedAuthenticationUri".equals(name))
+            {
+                return URI.create(authenticatorUri);
+            }
+
+            throw new UnsupportedOperationException(name);
+        }), _exceptionFactory);
+    }
+}
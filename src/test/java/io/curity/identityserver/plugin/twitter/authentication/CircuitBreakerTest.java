@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakerTest
+{
+    @Test
+    void opensAfterThresholdOfConsecutiveFailures()
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, 30);
+
+        circuitBreaker.onFailure();
+        assertFalse(circuitBreaker.isOpen());
+
+        circuitBreaker.onFailure();
+        assertTrue(circuitBreaker.isOpen());
+        assertThrows(TwitterUnavailableException.class, circuitBreaker::checkNotOpen);
+        assertThrows(TwitterUnavailableException.class, circuitBreaker::checkAllowed);
+    }
+
+    @Test
+    void successResetsConsecutiveFailures()
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, 30);
+
+        circuitBreaker.onFailure();
+        circuitBreaker.onSuccess();
+        circuitBreaker.onFailure();
+
+        assertFalse(circuitBreaker.isOpen());
+    }
+
+    @Test
+    void letsOneProbeThroughOnceOpenPeriodHasPassed() throws InterruptedException
+    {
+        CircuitBreaker circuitBreaker = halfOpen();
+
+        circuitBreaker.checkNotOpen();
+        assertTrue(circuitBreaker.checkAllowed());
+        assertThrows(TwitterUnavailableException.class, circuitBreaker::checkAllowed);
+    }
+
+    @Test
+    void closesWhenProbeSucceeds() throws InterruptedException
+    {
+        CircuitBreaker circuitBreaker = halfOpen();
+
+        assertTrue(circuitBreaker.checkAllowed());
+        circuitBreaker.onSuccess();
+        circuitBreaker.releaseProbe();
+
+        assertFalse(circuitBreaker.checkAllowed());
+        assertFalse(circuitBreaker.checkAllowed());
+    }
+
+    @Test
+    void opensAgainWhenProbeFails() throws InterruptedException
+    {
+        CircuitBreaker circuitBreaker = halfOpen();
+
+        assertTrue(circuitBreaker.checkAllowed());
+        circuitBreaker.onFailure();
+        circuitBreaker.releaseProbe();
+
+        assertTrue(circuitBreaker.isOpen());
+    }
+
+    @Test
+    void nextCallProbesWhenProbeEndsWithoutOutcome() throws InterruptedException
+    {
+        CircuitBreaker circuitBreaker = halfOpen();
+
+        assertTrue(circuitBreaker.checkAllowed());
+        circuitBreaker.releaseProbe();
+
+        assertTrue(circuitBreaker.checkAllowed());
+    }
+
+    @Test
+    void failingFastDoesNotTakeProbe() throws InterruptedException
+    {
+        CircuitBreaker circuitBreaker = halfOpen();
+
+        circuitBreaker.checkNotOpen();
+        circuitBreaker.checkNotOpen();
+
+        assertTrue(circuitBreaker.checkAllowed());
+    }
+
+    private static CircuitBreaker halfOpen() throws InterruptedException
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 30);
+
+        circuitBreaker.openFor(10);
+        Thread.sleep(20);
+
+        return circuitBreaker;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import io.curity.identityserver.plugin.twitter.metrics.TwitterMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CompositeTwitterMetricsTest
+{
+    private final List<String> _first = new ArrayList<>();
+    private final List<String> _second = new ArrayList<>();
+
+    @Test
+    void passesEveryRecordingOnToBoth() throws Exception
+    {
+        TwitterMetrics metrics = new CompositeTwitterMetrics(recordingTo(_first), recordingTo(_second));
+        List<String> expected = new ArrayList<>();
+
+        for (Method method : TwitterMetrics.class.getMethods())
+        {
+            if (Modifier.isStatic(method.getModifiers()))
+            {
+                continue;
+            }
+
+            Object[] arguments = Arrays.stream(method.getParameterTypes()).map(CompositeTwitterMetricsTest::valueOf)
+                    .toArray();
+
+            method.invoke(metrics, arguments);
+            expected.add(method.getName() + Arrays.toString(arguments));
+        }
+
+        assertEquals(expected, _first);
+        assertEquals(expected, _second);
+    }
+
+    private static TwitterMetrics recordingTo(List<String> recordings)
+    {
+        return Stubs.stub(TwitterMetrics.class, (name, arguments) -> {
+            recordings.add(name + Arrays.toString(arguments));
+
+            return null;
+        });
+    }
+
+    private static Object valueOf(Class<?> type)
+    {
+        if (type == long.class)
+        {
+            return 42L;
+        }
+
+        if (type == int.class)
+        {
+            return 429;
+        }
+
+        if (type == boolean.class)
+        {
+            return true;
+        }
+
+        return TwitterMetrics.ErrorType.NETWORK;
+    }
+}
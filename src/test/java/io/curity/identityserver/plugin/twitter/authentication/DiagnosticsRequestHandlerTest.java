@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
+import se.curity.identityserver.sdk.web.Request;
+import se.curity.identityserver.sdk.web.Response;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DiagnosticsRequestHandlerTest
+{
+    private static final URI AUTHENTICATOR_URI = URI.create("https://login.example.com/authn/authentication/twitter");
+
+    private final TwitterAuthenticatorPluginConfig _config = new TestConfig()
+            .with("id", "diagnostics-test")
+            .with("isDiagnosticsEnabled", true)
+            .with("getDiagnosticsAccessToken", Optional.of("diagnostics-token"))
+            .with("getExceptionFactory", Stubs.stub(ExceptionFactory.class,
+                    (name, arguments) -> new IllegalStateException(name)))
+            .with("getAuthenticatorInformationProvider", Stubs.stub(AuthenticatorInformationProvider.class,
+                    (name, arguments) -> AUTHENTICATOR_URI))
+            .build();
+    private final AtomicInteger _responseModels = new AtomicInteger();
+    private final Response _response = Stubs.stub(Response.class, (name, arguments) -> {
+        if ("setResponseModel".equals(name))
+        {
+            _responseModels.incrementAndGet();
+        }
+
+        return null;
+    });
+
+    @Test
+    void returnsStatisticsWithoutCreatingService()
+    {
+        new DiagnosticsRequestHandler(_config).get(request("Bearer diagnostics-token", "application/json"),
+                _response);
+
+        assertEquals(1, _responseModels.get());
+        assertNull(OAuthServiceRegistry.findService(_config, CallbackUris.resolve(
+                _config.getAuthenticatorInformationProvider(), _config.getExceptionFactory())));
+    }
+
+    @Test
+    void refusesRequestThatDoesNotAcceptJson()
+    {
+        IllegalStateException e = assertThrows(IllegalStateException.class, () ->
+                new DiagnosticsRequestHandler(_config).get(request("Bearer diagnostics-token", "text/html"),
+                        _response));
+
+        assertEquals("badRequestException", e.getMessage());
+        assertEquals(0, _responseModels.get());
+    }
+
+    @Test
+    void refusesRequestWithoutAccessToken()
+    {
+        IllegalStateException e = assertThrows(IllegalStateException.class, () ->
+                new DiagnosticsRequestHandler(_config).get(request("Bearer another-token", "application/json"),
+                        _response));
+
+        assertEquals("forbiddenException", e.getMessage());
+        assertEquals(0, _responseModels.get());
+    }
+
+    private static Request request(String authorization, String accept)
+    {
+        Map<String, String> headers = new HashMap<>();
+
+        headers.put("Authorization", authorization);
+        headers.put("Accept", accept);
+
+        return Stubs.getRequest(Collections.emptyMap(), Collections.emptyMap(), headers);
+    }
+}
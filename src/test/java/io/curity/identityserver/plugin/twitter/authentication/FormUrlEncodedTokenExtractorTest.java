@@ -0,0 +1,322 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.exceptions.OAuthException;
+import com.github.scribejava.core.extractors.OAuth1AccessTokenExtractor;
+import com.github.scribejava.core.extractors.TokenExtractor;
+import com.github.scribejava.core.model.OAuth1AccessToken;
+import com.github.scribejava.core.model.OAuth1RequestToken;
+import com.github.scribejava.core.model.Response;
+import com.github.scribejava.core.utils.OAuthEncoder;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.OAUTH_TOKEN;
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.OAUTH_TOKEN_SECRET;
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.SCREEN_NAME;
+import static io.curity.identityserver.plugin.twitter.authentication.Constants.USER_ID;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FormUrlEncodedTokenExtractorTest
+{
+    private static final List<String> NAMES = Arrays.asList(OAUTH_TOKEN, OAUTH_TOKEN_SECRET, USER_ID, SCREEN_NAME,
+            "oauth_callback_confirmed", "x_auth_expires");
+
+    /**
+     * Characters that take the parser down each of its paths, and some that must be encoded.
+     */
+    private static final String CHARACTERS = "=&%+_0aF9oauth_tokensecret\u00e9\u20ac ";
+
+    @Test
+    void extractsAccessTokenWithUserIdAndScreenName() throws IOException
+    {
+        String body = "oauth_token=6253282-eWudHldSbIaelX7swmsiHImEL4KinwaGloHANdrY" +
+                "&oauth_token_secret=2EEfA6BG3ly3sR3RjE0IBSnlQu4ZrUzPiYKmrkVU&user_id=6253282" +
+                "&screen_name=twitterapi";
+
+        OAuth1AccessToken token = FormUrlEncodedTokenExtractor.ACCESS_TOKEN.extract(response(body));
+
+        assertInstanceOf(TwitterAccessToken.class, token);
+        assertEquals("6253282-eWudHldSbIaelX7swmsiHImEL4KinwaGloHANdrY", token.getToken());
+        assertEquals("2EEfA6BG3ly3sR3RjE0IBSnlQu4ZrUzPiYKmrkVU", token.getTokenSecret());
+        assertEquals("6253282", token.getParameter(USER_ID));
+        assertEquals("twitterapi", token.getParameter(SCREEN_NAME));
+        assertEquals(body, token.getRawResponse());
+    }
+
+    @Test
+    void extractsRequestTokenWhateverTheOrderOfParameters() throws IOException
+    {
+        OAuth1RequestToken token = FormUrlEncodedTokenExtractor.REQUEST_TOKEN.extract(response(
+                "oauth_callback_confirmed=true&oauth_token_secret=secret&oauth_token=token"));
+
+        assertEquals("token", token.getToken());
+        assertEquals("secret", token.getTokenSecret());
+    }
+
+    @Test
+    void decodesPercentEncodedValuesAndPlus()
+    {
+        OAuth1AccessToken token = accessToken("oauth_token=a+b%2Bc%2F&oauth_token_secret=s&screen_name=%C3%A9");
+
+        assertEquals("a b+c/", token.getToken());
+        assertEquals("\u00e9", token.getParameter(SCREEN_NAME));
+    }
+
+    @Test
+    void usesFirstOfRepeatedParameters()
+    {
+        OAuth1AccessToken token = accessToken("oauth_token=first&oauth_token_secret=s&oauth_token=second");
+
+        assertEquals("first", token.getToken());
+    }
+
+    @Test
+    void doesNotTakeParameterWhoseNameEndsLikeToken()
+    {
+        OAuth1AccessToken token = accessToken("xoauth_token=other&oauth_token=token&oauth_token_secret=s");
+
+        assertEquals("token", token.getToken());
+    }
+
+    @Test
+    void acceptsEmptyTokenSecret()
+    {
+        assertEquals("", accessToken("oauth_token=token&oauth_token_secret=").getTokenSecret());
+    }
+
+    @Test
+    void doesNotParseBodiesThatAreNotWellFormed()
+    {
+        for (String body : Arrays.asList("", "&", "oauth_token", "=token&oauth_token_secret=s",
+                "oauth_token=token&&oauth_token_secret=s", "oauth_token=token&oauth_token_secret=s&flag",
+                "oauth_token=%zz&oauth_token_secret=s", "oauth_token=token%&oauth_token_secret=s",
+                "oauth_token=&oauth_token_secret=s", "oauth_token=token", "oauth_token_secret=s"))
+        {
+            assertNull(FormUrlEncodedTokenExtractor.parse(body), body);
+        }
+    }
+
+    @Test
+    void leavesBodiesThatAreNotWellFormedToScribeJava() throws IOException
+    {
+        String body = "oauth_token=token&oauth_token_secret=secret&flag";
+
+        OAuth1AccessToken token = FormUrlEncodedTokenExtractor.ACCESS_TOKEN.extract(response(body));
+
+        assertEquals(OAuth1AccessTokenExtractor.instance().extract(response(body)), token);
+        assertThrows(OAuthException.class, () -> FormUrlEncodedTokenExtractor.ACCESS_TOKEN.extract(
+                response("error=nope")));
+    }
+
+    @Test
+    void reportsUnsuccessfulResponse()
+    {
+        assertThrows(TwitterResponseException.class, () -> FormUrlEncodedTokenExtractor.ACCESS_TOKEN.extract(
+                new Response(401, "Unauthorized", Collections.emptyMap(),
+                        "{\"errors\":[{\"code\":32,\"message\":\"Could not authenticate you.\"}]}")));
+    }
+
+    /**
+     * Bodies made of well-formed parameters with random values are extracted to the decoded values, the same as
+     * ScribeJava's extractor does.
+     */
+    @Test
+    void extractsRandomWellFormedBodiesLikeScribeJava() throws IOException
+    {
+        Random random = new Random(6);
+
+        for (int i = 0; i < 5_000; i++)
+        {
+            Map<String, String> parameters = new LinkedHashMap<>();
+            List<String> names = new ArrayList<>(NAMES);
+
+            Collections.shuffle(names, random);
+            parameters.put(OAUTH_TOKEN, randomString(random, 1));
+            parameters.put(OAUTH_TOKEN_SECRET, randomString(random, 0));
+
+            for (String name : names.subList(0, random.nextInt(names.size())))
+            {
+                parameters.putIfAbsent(name, randomString(random, 1));
+            }
+
+            StringBuilder body = new StringBuilder();
+
+            for (String name : shuffled(random, parameters.keySet()))
+            {
+                body.append(body.length() == 0 ? "" : "&").append(name).append('=')
+                        .append(OAuthEncoder.encode(parameters.get(name)));
+            }
+
+            Response response = response(body.toString());
+            OAuth1AccessToken token = FormUrlEncodedTokenExtractor.ACCESS_TOKEN.extract(response);
+            OAuth1AccessToken scribeJavaToken = OAuth1AccessTokenExtractor.instance().extract(response);
+
+            assertInstanceOf(TwitterAccessToken.class, token, body::toString);
+            assertEquals(parameters.get(OAUTH_TOKEN), token.getToken(), body::toString);
+            assertEquals(parameters.get(OAUTH_TOKEN_SECRET), token.getTokenSecret(), body::toString);
+            assertEquals(scribeJavaToken.getToken(), token.getToken(), body::toString);
+            assertEquals(scribeJavaToken.getTokenSecret(), token.getTokenSecret(), body::toString);
+
+            if (parameters.containsKey(SCREEN_NAME))
+            {
+                assertEquals(parameters.get(SCREEN_NAME), token.getParameter(SCREEN_NAME), body::toString);
+            }
+        }
+    }
+
+    /**
+     * Bodies of random characters are either parsed to the values a plain split of the body gives, or left to
+     * ScribeJava's extractor, with the same outcome as extracting them with it directly.
+     */
+    @Test
+    void handlesRandomBodies() throws IOException
+    {
+        Random random = new Random(6);
+
+        for (int i = 0; i < 50_000; i++)
+        {
+            String body = randomBody(random);
+            FormUrlEncodedTokenExtractor.TokenParameters parameters = FormUrlEncodedTokenExtractor.parse(body);
+
+            if (parameters == null)
+            {
+                assertEquals(outcomeOf(OAuth1AccessTokenExtractor.instance(), body),
+                        outcomeOf(FormUrlEncodedTokenExtractor.ACCESS_TOKEN, body), body);
+
+                continue;
+            }
+
+            Map<String, String> expected = split(body);
+            OAuth1AccessToken token = FormUrlEncodedTokenExtractor.ACCESS_TOKEN.extract(response(body));
+
+            assertEquals(OAuthEncoder.decode(expected.get(OAUTH_TOKEN)), token.getToken(), body);
+            assertEquals(OAuthEncoder.decode(expected.get(OAUTH_TOKEN_SECRET)), token.getTokenSecret(), body);
+        }
+    }
+
+    private static OAuth1AccessToken accessToken(String body)
+    {
+        try
+        {
+            return FormUrlEncodedTokenExtractor.ACCESS_TOKEN.extract(response(body));
+        }
+        catch (IOException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @return the token and secret extracted from the body, or the type of exception that extracting it threw
+     */
+    private static String outcomeOf(TokenExtractor<? extends OAuth1AccessToken> extractor, String body)
+    {
+        try
+        {
+            OAuth1AccessToken token = extractor.extract(response(body));
+
+            return token.getToken() + " " + token.getTokenSecret();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            return e.getClass().getName();
+        }
+    }
+
+    private static Response response(String body)
+    {
+        return new Response(200, "OK", Collections.emptyMap(), body);
+    }
+
+    /**
+     * The value of the first of each parameter of a well-formed body, still encoded. A trailing {@code &} is
+     * ignored, as the extractor and ScribeJava do.
+     */
+    private static Map<String, String> split(String body)
+    {
+        Map<String, String> parameters = new LinkedHashMap<>();
+
+        for (String parameter : body.split("&"))
+        {
+            String[] nameAndValue = parameter.split("=", 2);
+
+            parameters.putIfAbsent(nameAndValue[0], nameAndValue[1]);
+        }
+
+        return parameters;
+    }
+
+    private static String randomBody(Random random)
+    {
+        StringBuilder body = new StringBuilder();
+        int parameters = random.nextInt(5);
+
+        for (int i = 0; i < parameters; i++)
+        {
+            if (i > 0)
+            {
+                body.append('&');
+            }
+
+            // Mostly names the parser looks for, so that bodies that nearly parse are common
+            body.append(random.nextInt(4) == 0 ? randomString(random, 0) : NAMES.get(random.nextInt(NAMES.size())));
+
+            if (random.nextInt(8) != 0)
+            {
+                body.append('=').append(randomString(random, 0));
+            }
+        }
+
+        return body.toString();
+    }
+
+    private static String randomString(Random random, int minLength)
+    {
+        int length = minLength + random.nextInt(12);
+        StringBuilder string = new StringBuilder(length);
+
+        for (int i = 0; i < length; i++)
+        {
+            string.append(CHARACTERS.charAt(random.nextInt(CHARACTERS.length())));
+        }
+
+        return string.toString();
+    }
+
+    private static List<String> shuffled(Random random, Iterable<String> values)
+    {
+        List<String> list = new ArrayList<>();
+
+        values.forEach(list::add);
+        Collections.shuffle(list, random);
+
+        return list;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.exceptions.OAuthSignatureException;
+import com.github.scribejava.core.services.HMACSha1SignatureService;
+import com.github.scribejava.core.services.SignatureService;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HmacSha1SignerTest
+{
+    private final SignatureService _signer = new HmacSha1Signer();
+    private final SignatureService _scribeJavaSigner = new HMACSha1SignatureService();
+
+    /**
+     * The example of RFC 5849, section 1.2.
+     */
+    @Test
+    void signsRfc5849Example()
+    {
+        assertEquals("MdpQcU8iPSUjWoN/UDMsK2sui9I=", _signer.getSignature("GET&" +
+                        "http%3A%2F%2Fphotos.example.net%2Fphotos&" +
+                        "file%3Dvacation.jpg%26oauth_consumer_key%3Ddpf43f3p2l4k3l03%26oauth_nonce%3DchapoH%26" +
+                        "oauth_signature_method%3DHMAC-SHA1%26oauth_timestamp%3D137131202%26" +
+                        "oauth_token%3Dnnch734d00sl2jdk%26size%3Doriginal",
+                "kd94hf93k423kf44", "pfkkdhi9sl3r4s00"));
+    }
+
+    /**
+     * The example of OAuth Core 1.0, appendix A.5.
+     */
+    @Test
+    void signsOAuthCoreExample()
+    {
+        assertEquals("tR3+Ty81lMeYAr/Fid0kMTYa/WM=", _signer.getSignature("GET&" +
+                        "http%3A%2F%2Fphotos.example.net%2Fphotos&" +
+                        "file%3Dvacation.jpg%26oauth_consumer_key%3Ddpf43f3p2l4k3l03%26" +
+                        "oauth_nonce%3Dkllo9940pd9333jh%26oauth_signature_method%3DHMAC-SHA1%26" +
+                        "oauth_timestamp%3D1191242096%26oauth_token%3Dnnch734d00sl2jdk%26oauth_version%3D1.0%26" +
+                        "size%3Doriginal",
+                "kd94hf93k423kf44", "pfkkdhi9sl3r4s00"));
+    }
+
+    /**
+     * The example of Twitter's documentation on creating a signature.
+     */
+    @Test
+    void signsTwitterExample()
+    {
+        assertEquals("hCtSmYh+iHYCEqBWrE7C7hYmtUk=", _signer.getSignature("POST&" +
+                        "https%3A%2F%2Fapi.twitter.com%2F1.1%2Fstatuses%2Fupdate.json&" +
+                        "include_entities%3Dtrue%26oauth_consumer_key%3Dxvz1evFS4wEEPTGEFPHBog%26" +
+                        "oauth_nonce%3DkYjzVBB8Y0ZFabxSWbWovY3uYSQ2pTgmZeNu2VS4cg%26" +
+                        "oauth_signature_method%3DHMAC-SHA1%26oauth_timestamp%3D1318622958%26" +
+                        "oauth_token%3D370773112-GmHxMAgYyLbNEtIKZeRNFsMKPR9EyMZeS9weJAEb%26oauth_version%3D1.0%26" +
+                        "status%3DHello%2520Ladies%2520%252B%2520Gentlemen%252C%2520a%2520signed%2520OAuth%2520" +
+                        "request%2521",
+                "kAcSOqF21Fu85e7zjz7ZN2U4ZRhfV3WpwPAoE3Z7kBw", "LswwdoUaIvS8ltyTt5jkRh4J50vUPVVHtR2YPi5kE"));
+    }
+
+    @Test
+    void signsLikeScribeJavaWithoutTokenSecret()
+    {
+        // As when getting a request token
+        assertSignsLikeScribeJava("POST&https%3A%2F%2Fapi.twitter.com%2Foauth%2Frequest_token&x", "secret", "");
+    }
+
+    @Test
+    void signsLikeScribeJavaWithSecretsThatNeedEncoding()
+    {
+        assertSignsLikeScribeJava("GET&x&y", "a b&c=d+e/f~g*h", "\u00fc%20\u00f1!'()");
+    }
+
+    @Test
+    void signsLikeScribeJavaWhenApiSecretChanges()
+    {
+        assertSignsLikeScribeJava("GET&x&y", "first secret", "token secret");
+        assertSignsLikeScribeJava("GET&x&y", "second secret", "token secret");
+        assertSignsLikeScribeJava("GET&x&y", "first secret", "token secret");
+    }
+
+    @Test
+    void signsLikeScribeJavaForSeveralApiSecretsWithAndWithoutTokenSecret()
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            assertSignsLikeScribeJava("POST&x&y", "first secret", "");
+            assertSignsLikeScribeJava("POST&x&z", "first secret", "");
+            assertSignsLikeScribeJava("POST&x&y", "second secret", "");
+            assertSignsLikeScribeJava("GET&x&y", "second secret", "token secret");
+            assertSignsLikeScribeJava("POST&x&y", "second secret", "");
+            assertSignsLikeScribeJava("POST&x&y", "warm-up-secret", "");
+            assertSignsLikeScribeJava("POST&x&y", "first secret", "");
+        }
+    }
+
+    @Test
+    void signsLikeScribeJavaForMoreApiSecretsThanItKeeps()
+    {
+        for (int i = 0; i < 40; i++)
+        {
+            assertSignsLikeScribeJava("POST&x&y", "secret " + i % 20, i % 3 == 0 ? "token secret" : "");
+        }
+    }
+
+    @Test
+    void signsLikeScribeJavaForRandomInput()
+    {
+        Random random = new Random(5849);
+
+        for (int i = 0; i < 1000; i++)
+        {
+            assertSignsLikeScribeJava("GET&" + randomString(random, 1), "x" + randomString(random, 0),
+                    randomString(random, 0));
+        }
+    }
+
+    @Test
+    void refusesWhatScribeJavaRefuses()
+    {
+        for (SignatureService signer : new SignatureService[] { _signer, _scribeJavaSigner })
+        {
+            assertThrows(OAuthSignatureException.class, () -> signer.getSignature(null, "secret", "token secret"));
+            assertThrows(OAuthSignatureException.class, () -> signer.getSignature(" ", "secret", "token secret"));
+            assertThrows(OAuthSignatureException.class, () -> signer.getSignature("GET&x&y", null, "token secret"));
+            assertThrows(OAuthSignatureException.class, () -> signer.getSignature("GET&x&y", " ", "token secret"));
+        }
+    }
+
+    @Test
+    void hasSignatureMethodOfScribeJava()
+    {
+        assertEquals(_scribeJavaSigner.getSignatureMethod(), _signer.getSignatureMethod());
+    }
+
+    private void assertSignsLikeScribeJava(String baseString, String apiSecret, String tokenSecret)
+    {
+        assertEquals(_scribeJavaSigner.getSignature(baseString, apiSecret, tokenSecret),
+                _signer.getSignature(baseString, apiSecret, tokenSecret),
+                () -> String.format("Signature of '%s' with '%s' and '%s'", baseString, apiSecret, tokenSecret));
+    }
+
+    /**
+     * @return a string of ASCII and other characters, including ones that are percent encoded
+     */
+    private static String randomString(Random random, int minLength)
+    {
+        int length = minLength + random.nextInt(40);
+        StringBuilder builder = new StringBuilder(length);
+
+        for (int i = 0; i < length; i++)
+        {
+            builder.appendCodePoint(random.nextInt(8) == 0
+                    ? 0x80 + random.nextInt(0x2000)
+                    : 0x20 + random.nextInt(0x5f));
+        }
+
+        return builder.toString();
+    }
+}
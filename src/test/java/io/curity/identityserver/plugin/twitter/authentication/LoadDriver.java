@@ -0,0 +1,246 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs in on many threads at once for a while, against a {@link StubTwitterServer} that can be made slow, failing or
+ * rate limiting, and reports the throughput, the failures and the percentiles of the latency of the logins. Takes
+ * {@code name=value} arguments:
+ *
+ * <ul>
+ *     <li>{@code threads}: how many logins run at once (16)</li>
+ *     <li>{@code warmup}: how long to log in before measuring, so that the code is compiled (2)</li>
+ *     <li>{@code seconds}: how long to measure (10)</li>
+ *     <li>{@code latency}: milliseconds the server takes to answer each API request (50)</li>
+ *     <li>{@code errorRate}: share of API requests the server answers with 503 (0)</li>
+ *     <li>{@code rateLimitRate}: share of API requests the server answers with 429 (0)</li>
+ *     <li>{@code storage}: where the request token is kept, {@code session} or {@code cookie} (session)</li>
+ *     <li>{@code poolSize}: how many request tokens to keep fetched ahead (0)</li>
+ * </ul>
+ *
+ * Run it with {@code mvn -P load-test verify -Dload.args="threads=64 latency=200"}, before and after a change.
+ */
+public final class LoadDriver
+{
+    private static final String API_KEY = "test-api-key";
+    private static final String API_SECRET_KEY = "test-api-secret-key";
+
+    private LoadDriver() { }
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        Map<String, String> arguments = parseArguments(args);
+        int threads = Integer.parseInt(arguments.getOrDefault("threads", "16"));
+        long warmupSeconds = Long.parseLong(arguments.getOrDefault("warmup", "2"));
+        long seconds = Long.parseLong(arguments.getOrDefault("seconds", "10"));
+        TestConfig testConfig = new TestConfig()
+                .with("isStoreRequestTokenInCookie", "cookie".equals(arguments.getOrDefault("storage", "session")))
+                .with("getRequestTokenPoolSize", Integer.parseInt(arguments.getOrDefault("poolSize", "0")));
+
+        try (StubTwitterServer server = StubTwitterServer.start(API_KEY, API_SECRET_KEY)
+                .withLatency(Long.parseLong(arguments.getOrDefault("latency", "50")))
+                .withErrorRate(Double.parseDouble(arguments.getOrDefault("errorRate", "0")))
+                .withRateLimitRate(Double.parseDouble(arguments.getOrDefault("rateLimitRate", "0")));
+             LoginFlow flow = new LoginFlow(server, testConfig))
+        {
+            long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            long deadline = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+            List<Worker> workers = new ArrayList<>(threads);
+            CountDownLatch done = new CountDownLatch(threads);
+
+            for (int i = 0; i < threads; i++)
+            {
+                Worker worker = new Worker(flow, measureFrom, deadline, done);
+                Thread thread = new Thread(worker, "load-driver-" + i);
+
+                workers.add(worker);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            done.await();
+            report(workers, seconds, server);
+        }
+    }
+
+    private static Map<String, String> parseArguments(String[] args)
+    {
+        Map<String, String> arguments = new HashMap<>();
+
+        for (String argument : args)
+        {
+            for (String setting : argument.trim().split("\\s+"))
+            {
+                int equals = setting.indexOf('=');
+
+                if (equals < 0)
+                {
+                    continue;
+                }
+
+                arguments.put(setting.substring(0, equals), setting.substring(equals + 1));
+            }
+        }
+
+        return arguments;
+    }
+
+    private static void report(List<Worker> workers, long seconds, StubTwitterServer server)
+    {
+        Latencies redirect = new Latencies();
+        Latencies callback = new Latencies();
+        Latencies login = new Latencies();
+        Map<String, Integer> failures = new TreeMap<>();
+
+        for (Worker worker : workers)
+        {
+            redirect.addAll(worker._redirect);
+            callback.addAll(worker._callback);
+            login.addAll(worker._login);
+            worker._failures.forEach((reason, count) -> failures.merge(reason, count, Integer::sum));
+        }
+
+        System.out.printf("logins: %d in %d s, %.1f/s%n", login._size, seconds, (double) login._size / seconds);
+        System.out.printf("failed: %d%n", failures.values().stream().mapToInt(Integer::intValue).sum());
+        failures.forEach((reason, count) -> System.out.printf("  %6d %s%n", count, reason));
+        System.out.printf("requests to Twitter: %d, with bad signature: %d%n", server.getRequests(),
+                server.getSignatureFailures());
+        System.out.println("latency (ms)      p50      p90      p99    p99.9      max");
+        redirect.print("redirect");
+        callback.print("callback");
+        login.print("login");
+    }
+
+    private static final class Worker implements Runnable
+    {
+        private final LoginFlow _flow;
+        private final long _measureFrom;
+        private final long _deadline;
+        private final CountDownLatch _done;
+        private final Latencies _redirect = new Latencies();
+        private final Latencies _callback = new Latencies();
+        private final Latencies _login = new Latencies();
+        private final Map<String, Integer> _failures = new HashMap<>();
+
+        private Worker(LoginFlow flow, long measureFrom, long deadline, CountDownLatch done)
+        {
+            _flow = flow;
+            _measureFrom = measureFrom;
+            _deadline = deadline;
+            _done = done;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (System.nanoTime() < _deadline)
+                {
+                    long start = System.nanoTime();
+                    boolean measured = start >= _measureFrom;
+
+                    try
+                    {
+                        LoginFlow.Timing timing = _flow.login();
+
+                        if (!measured)
+                        {
+                            continue;
+                        }
+
+                        _login.add(System.nanoTime() - start);
+                        _redirect.add(timing.getRedirectNanos());
+                        _callback.add(timing.getCallbackNanos());
+                    }
+                    catch (RuntimeException | IOException e)
+                    {
+                        if (!measured)
+                        {
+                            continue;
+                        }
+
+                        _failures.merge(e.getClass().getSimpleName() + ": " + e.getMessage(), 1, Integer::sum);
+                    }
+                }
+            }
+            finally
+            {
+                _done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Latencies in nanoseconds, kept in full so that the high percentiles are exact.
+     */
+    private static final class Latencies
+    {
+        private long[] _values = new long[1024];
+        private int _size;
+
+        private void add(long nanos)
+        {
+            if (_size == _values.length)
+            {
+                _values = Arrays.copyOf(_values, _size * 2);
+            }
+
+            _values[_size++] = nanos;
+        }
+
+        private void addAll(Latencies other)
+        {
+            for (int i = 0; i < other._size; i++)
+            {
+                add(other._values[i]);
+            }
+        }
+
+        private void print(String name)
+        {
+            long[] sorted = Arrays.copyOf(_values, _size);
+
+            Arrays.sort(sorted);
+            System.out.printf("%-12s %8.2f %8.2f %8.2f %8.2f %8.2f%n", name, percentile(sorted, 0.5),
+                    percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                    percentile(sorted, 1));
+        }
+
+        private static double percentile(long[] sorted, double percentile)
+        {
+            if (sorted.length == 0)
+            {
+                return Double.NaN;
+            }
+
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+
+            return sorted[Math.max(index, 0)] / 1_000_000.0;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.utils.OAuthEncoder;
+import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
+import se.curity.identityserver.sdk.attribute.Attribute;
+import se.curity.identityserver.sdk.authentication.AuthenticationResult;
+import se.curity.identityserver.sdk.http.Cookie;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import se.curity.identityserver.sdk.service.SessionManager;
+import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
+import se.curity.identityserver.sdk.web.Request;
+import se.curity.identityserver.sdk.web.Response;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Logins through both request handlers of the authenticator, against a {@link StubTwitterServer}: the redirect to
+ * Twitter, the user approving the app there, and the callback. The services of the server that the handlers use are
+ * stubbed, and the session of each thread is kept apart, so that logins can run on many threads at once.
+ */
+final class LoginFlow implements AutoCloseable
+{
+    static final URI AUTHENTICATOR_URI = URI.create("https://login.example.com/authn/authentication/twitter");
+
+    private final TwitterAuthenticatorPluginConfig _config;
+    private final ThreadLocal<Map<String, Attribute>> _sessions = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * @param testConfig the settings of the authenticator, other than those that point it at the given server
+     */
+    LoginFlow(StubTwitterServer server, TestConfig testConfig)
+    {
+        _config = testConfig
+                .with("getApiBaseUrl", server.getBaseUrl())
+                .with("getAuthorizeUrl", server.getAuthorizeUrl())
+                .with("getWebServiceClientFactory", Stubs.httpWebServiceClientFactory())
+                .with("getExceptionFactory", Stubs.stub(ExceptionFactory.class, LoginFlow::fail))
+                .with("getAuthenticatorInformationProvider", Stubs.stub(AuthenticatorInformationProvider.class,
+                        (name, arguments) -> "getAuthenticationBaseUri".equals(name)
+                                ? AUTHENTICATOR_URI.resolve(".")
+                                : AUTHENTICATOR_URI))
+                .with("getSessionManager", Stubs.stub(SessionManager.class, this::useSession))
+                .build();
+
+        // As the connection keeper does when the configuration is loaded
+        OAuthServiceRegistry.retain(_config);
+    }
+
+    /**
+     * Log in, timing the part of it that each handler takes.
+     *
+     * @throws LoginFailedException if a handler failed the login
+     */
+    Timing login() throws IOException
+    {
+        Callback callback = approve();
+        long approved = System.nanoTime();
+
+        callback(callback);
+
+        return new Timing(callback._redirectNanos, System.nanoTime() - approved);
+    }
+
+    /**
+     * Start a login, and approve it at Twitter.
+     *
+     * @return the callback that Twitter redirected the browser to
+     */
+    Callback approve() throws IOException
+    {
+        Map<String, String> cookies = new HashMap<>();
+
+        _sessions.get().clear();
+
+        long start = System.nanoTime();
+        String authorizationUrl = redirectToTwitter(responseKeeping(cookies));
+        long redirectNanos = System.nanoTime() - start;
+
+        return new Callback(approve(authorizationUrl), cookies, redirectNanos);
+    }
+
+    /**
+     * Send the given callback to the callback handler, with the cookies of the browser that started the login.
+     *
+     * @return the result the handler logged the user in with
+     * @throws LoginFailedException if the handler failed the login
+     */
+    AuthenticationResult callback(Callback callback)
+    {
+        Response response = responseKeeping(new HashMap<>());
+        CallbackRequestHandler callbackHandler = new CallbackRequestHandler(_config);
+        Optional<AuthenticationResult> result = callbackHandler.get(callbackHandler.preProcess(
+                Stubs.getRequest(callback._parameters, callback._cookies), response), response);
+
+        if (!result.isPresent())
+        {
+            throw new LoginFailedException("no authentication result");
+        }
+
+        return result.get();
+    }
+
+    TwitterAuthenticatorPluginConfig getConfig()
+    {
+        return _config;
+    }
+
+    @Override
+    public void close()
+    {
+        OAuthServiceRegistry.release(_config);
+    }
+
+    private static Response responseKeeping(Map<String, String> cookies)
+    {
+        return Stubs.stub(Response.class, (name, arguments) -> {
+            if ("addCookie".equals(name))
+            {
+                Cookie cookie = (Cookie) arguments[0];
+
+                cookies.put(cookie.getName(), cookie.getValue());
+            }
+
+            return null;
+        });
+    }
+
+    /**
+     * @return the URL the index handler redirected to
+     */
+    private String redirectToTwitter(Response response)
+    {
+        Request request = Stubs.getRequest(Collections.emptyMap(), Collections.emptyMap());
+
+        try
+        {
+            new TwitterAuthenticatorRequestHandler(_config).get(request, response);
+        }
+        catch (RedirectException e)
+        {
+            return e.getLocation();
+        }
+
+        throw new LoginFailedException("index handler did not redirect to Twitter");
+    }
+
+    /**
+     * Act as the user's browser at Twitter's authorize page.
+     *
+     * @return the query parameters of the callback Twitter redirected back to
+     */
+    private static Map<String, String> approve(String authorizationUrl) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(authorizationUrl).openConnection();
+
+        connection.setInstanceFollowRedirects(false);
+
+        int statusCode = connection.getResponseCode();
+        String location = connection.getHeaderField("Location");
+
+        connection.disconnect();
+
+        if (statusCode != 302 || location == null)
+        {
+            throw new LoginFailedException("authorize page answered " + statusCode);
+        }
+
+        Map<String, String> parameters = new HashMap<>();
+        String query = URI.create(location).getRawQuery();
+
+        for (String parameter : query.split("&"))
+        {
+            int equals = parameter.indexOf('=');
+
+            parameters.put(parameter.substring(0, equals), OAuthEncoder.decode(parameter.substring(equals + 1)));
+        }
+
+        return parameters;
+    }
+
+    private Object useSession(String name, Object[] arguments)
+    {
+        Map<String, Attribute> session = _sessions.get();
+
+        switch (name)
+        {
+            case "get":
+                return session.get((String) arguments[0]);
+            case "remove":
+                return session.remove((String) arguments[0]);
+            case "put":
+                Attribute attribute = (Attribute) arguments[0];
+
+                session.put(attribute.getName(), attribute);
+
+                return null;
+            default:
+                throw new UnsupportedOperationException(name);
+        }
+    }
+
+    /**
+     * Throws the exception the handlers ask the exception factory for, whatever type the server would return.
+     */
+    private static Object fail(String name, Object[] arguments)
+    {
+        if ("redirectException".equals(name))
+        {
+            throw new RedirectException((String) arguments[0]);
+        }
+
+        throw new LoginFailedException(arguments.length == 0 ? name : name + ": " + arguments[arguments.length - 1]);
+    }
+
+    /**
+     * The callback of a login that has been approved at Twitter, with the cookies the redirect left in the browser.
+     */
+    static final class Callback
+    {
+        private final Map<String, String> _parameters;
+        private final Map<String, String> _cookies;
+        private final long _redirectNanos;
+
+        private Callback(Map<String, String> parameters, Map<String, String> cookies, long redirectNanos)
+        {
+            _parameters = parameters;
+            _cookies = cookies;
+            _redirectNanos = redirectNanos;
+        }
+
+        /**
+         * @return this callback with another value for one of its query parameters
+         */
+        Callback with(String name, String value)
+        {
+            Map<String, String> parameters = new HashMap<>(_parameters);
+
+            parameters.put(name, value);
+
+            return new Callback(parameters, _cookies, _redirectNanos);
+        }
+    }
+
+    /**
+     * How long the handlers took to handle one login.
+     */
+    static final class Timing
+    {
+        private final long _redirectNanos;
+        private final long _callbackNanos;
+
+        private Timing(long redirectNanos, long callbackNanos)
+        {
+            _redirectNanos = redirectNanos;
+            _callbackNanos = callbackNanos;
+        }
+
+        /**
+         * @return how long the index handler took to redirect to Twitter
+         */
+        long getRedirectNanos()
+        {
+            return _redirectNanos;
+        }
+
+        /**
+         * @return how long the callback handler took to log the user in
+         */
+        long getCallbackNanos()
+        {
+            return _callbackNanos;
+        }
+    }
+
+    static final class RedirectException extends RuntimeException
+    {
+        private RedirectException(String location)
+        {
+            super("Redirect to " + location, null, false, false);
+        }
+
+        String getLocation()
+        {
+            return getMessage().substring("Redirect to ".length());
+        }
+    }
+
+    static final class LoginFailedException extends RuntimeException
+    {
+        private LoginFailedException(String reason)
+        {
+            super(reason, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole logins through both request handlers, against a {@link StubTwitterServer} on the loopback interface that
+ * answers at once, so that the time is that of the plugin and the HTTP round trips rather than of Twitter. Run with
+ * {@code -t} to log in on many threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LoginFlowBenchmark
+{
+    private StubTwitterServer _server;
+    private LoginFlow _sessionFlow;
+    private LoginFlow _cookieFlow;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        _server = StubTwitterServer.start("test-api-key", "test-api-secret-key");
+        _sessionFlow = new LoginFlow(_server, new TestConfig());
+        _cookieFlow = new LoginFlow(_server, new TestConfig()
+                .with("id", "twitter-cookie")
+                .with("isStoreRequestTokenInCookie", true));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        _sessionFlow.close();
+        _cookieFlow.close();
+        _server.close();
+    }
+
+    @Benchmark
+    public LoginFlow.Timing loginWithRequestTokenInSession() throws IOException
+    {
+        return _sessionFlow.login();
+    }
+
+    @Benchmark
+    public LoginFlow.Timing loginWithRequestTokenInCookie() throws IOException
+    {
+        return _cookieFlow.login();
+    }
+}
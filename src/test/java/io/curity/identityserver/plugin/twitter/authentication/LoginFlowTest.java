@@ -0,0 +1,220 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.Attribute;
+import se.curity.identityserver.sdk.authentication.AuthenticationResult;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Logins through both handlers, against the {@link StubTwitterServer}.
+ */
+class LoginFlowTest
+{
+    private StubTwitterServer _server;
+
+    @BeforeEach
+    void startServer() throws IOException
+    {
+        _server = StubTwitterServer.start("test-api-key", "test-api-secret-key");
+    }
+
+    @AfterEach
+    void stopServer()
+    {
+        _server.close();
+    }
+
+    @Test
+    void logsInWithRequestTokenInSession() throws IOException
+    {
+        try (LoginFlow flow = new LoginFlow(_server, new TestConfig()))
+        {
+            flow.login();
+            flow.login();
+        }
+
+        assertEquals(4, _server.getRequests());
+        assertEquals(0, _server.getSignatureFailures());
+    }
+
+    @Test
+    void logsInWithRequestTokenInCookie() throws IOException
+    {
+        try (LoginFlow flow = new LoginFlow(_server, new TestConfig().with("isStoreRequestTokenInCookie", true)))
+        {
+            flow.login();
+            flow.login();
+        }
+
+        assertEquals(0, _server.getSignatureFailures());
+    }
+
+    @Test
+    void logsInWithPooledRequestToken() throws IOException
+    {
+        try (LoginFlow flow = new LoginFlow(_server, new TestConfig().with("getRequestTokenPoolSize", 2)))
+        {
+            for (int i = 0; i < 5; i++)
+            {
+                flow.login();
+            }
+
+            assertTrue(OAuthServiceRegistry.getService(flow.getConfig(), CallbackUris.resolve(
+                    flow.getConfig().getAuthenticatorInformationProvider(), flow.getConfig().getExceptionFactory()))
+                    .getRequestTokenPool().getHits() > 0);
+        }
+
+        assertEquals(0, _server.getSignatureFailures());
+    }
+
+    @Test
+    void repeatedCallbackGetsAccessTokenOfFirstWithRequestTokenInSession() throws IOException
+    {
+        try (LoginFlow flow = new LoginFlow(_server, new TestConfig()))
+        {
+            LoginFlow.Callback callback = flow.approve();
+
+            assertEquals(accessTokenOf(flow.callback(callback)), accessTokenOf(flow.callback(callback)));
+        }
+
+        assertEquals(2, _server.getRequests());
+    }
+
+    @Test
+    void repeatedCallbackGetsAccessTokenOfFirstWithRequestTokenInCookie() throws IOException
+    {
+        try (LoginFlow flow = new LoginFlow(_server, new TestConfig().with("isStoreRequestTokenInCookie", true)))
+        {
+            LoginFlow.Callback callback = flow.approve();
+
+            assertEquals(accessTokenOf(flow.callback(callback)), accessTokenOf(flow.callback(callback)));
+        }
+
+        assertEquals(2, _server.getRequests());
+    }
+
+    @Test
+    void marksProfileAttributesAsPartialWhenProfileIsNotAvailable() throws IOException
+    {
+        // The stub server has no profiles, so fetching one fails, and the failure is then remembered
+        try (LoginFlow flow = new LoginFlow(_server, new TestConfig().with("isFetchProfile", true)))
+        {
+            assertEquals(TwitterProfile.ATTRIBUTE_NAMES, partialAttributesOf(flow.callback(flow.approve())));
+            assertEquals(TwitterProfile.ATTRIBUTE_NAMES, partialAttributesOf(flow.callback(flow.approve())));
+        }
+    }
+
+    @Test
+    void doesNotMarkAttributesAsPartialWhenProfileIsNotFetched() throws IOException
+    {
+        try (LoginFlow flow = new LoginFlow(_server, new TestConfig().with("isFetchProfile", false)))
+        {
+            assertNull(partialAttributesOf(flow.callback(flow.approve())));
+        }
+    }
+
+    @Test
+    void countsLoginAsCompletedOnlyOnce() throws IOException
+    {
+        try (LoginFlow flow = new LoginFlow(_server, new TestConfig().with("isStoreRequestTokenInCookie", true)))
+        {
+            LoginFlow.Callback callback = flow.approve();
+
+            flow.callback(callback);
+
+            long completed = RequestTokenTracker.getCompleted();
+
+            assertThrows(LoginFlow.RedirectException.class,
+                    () -> flow.callback(callback.with("oauth_verifier", "another-verifier")));
+            assertEquals(completed, RequestTokenTracker.getCompleted());
+        }
+    }
+
+    @Test
+    void restartsLoginWhenCallbackHasAnotherRequestToken() throws IOException
+    {
+        try (LoginFlow flow = new LoginFlow(_server, new TestConfig()))
+        {
+            LoginFlow.Callback callback = flow.approve();
+
+            assertThrows(LoginFlow.RedirectException.class,
+                    () -> flow.callback(callback.with("oauth_token", "another-request-token")));
+        }
+    }
+
+    @Test
+    void failsLoginWhenSignatureIsWrong() throws IOException
+    {
+        try (LoginFlow flow = new LoginFlow(_server, new TestConfig().with("getApiSecretKey", "wrong-secret")))
+        {
+            assertThrows(LoginFlow.LoginFailedException.class, flow::login);
+        }
+
+        assertEquals(1, _server.getSignatureFailures());
+    }
+
+    @Test
+    void retriesRequestTokenWhenTwitterIsOverCapacity() throws IOException
+    {
+        _server.withErrorRate(1);
+
+        try (LoginFlow flow = new LoginFlow(_server, new TestConfig().with("getRequestTokenRetries", 2)))
+        {
+            assertThrows(LoginFlow.LoginFailedException.class, flow::login);
+        }
+
+        assertEquals(3, _server.getRequests());
+    }
+
+    @Test
+    void stopsCallingTwitterWhenRateLimited() throws IOException
+    {
+        _server.withRateLimitRate(1);
+
+        try (LoginFlow flow = new LoginFlow(_server, new TestConfig()))
+        {
+            assertThrows(LoginFlow.LoginFailedException.class, flow::login);
+            assertThrows(LoginFlow.LoginFailedException.class, flow::login);
+        }
+
+        assertEquals(1, _server.getRequests());
+    }
+
+    @Nullable
+    private static Object partialAttributesOf(AuthenticationResult result)
+    {
+        Attribute attribute = result.getAttributes().getContextAttributes().get(Constants.PARTIAL_ATTRIBUTES);
+
+        return attribute != null ? attribute.getValue() : null;
+    }
+
+    private static Object accessTokenOf(AuthenticationResult result)
+    {
+        return result.getAttributes().getContextAttributes().get(Constants.OAUTH_TOKEN).getValue();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class OAuthServiceRegistryTest
+{
+    private static final String CALLBACK_URI = "https://login.example.com/authn/authentication/twitter/callback";
+
+    private final List<TwitterAuthenticatorPluginConfig> _retained = new ArrayList<>();
+
+    @AfterEach
+    void releaseConfigs()
+    {
+        _retained.forEach(OAuthServiceRegistry::release);
+    }
+
+    @Test
+    void sharesServiceOfConfigurationsWithEqualValues()
+    {
+        TwitterAuthenticatorPluginConfig config = retain(testConfig().with("getHttpClient",
+                Optional.of(Stubs.httpClient("https"))));
+        TwitterAuthenticatorPluginConfig sameValues = testConfig().with("getHttpClient",
+                Optional.of(Stubs.httpClient("https"))).build();
+
+        assertSame(OAuthServiceRegistry.getService(config, CALLBACK_URI),
+                OAuthServiceRegistry.getService(sameValues, CALLBACK_URI));
+    }
+
+    @Test
+    void replacesServiceWhenConfigurationIsLoadedWithAnotherHttpClient()
+    {
+        TwitterAuthenticatorPluginConfig config = retain(testConfig().with("getHttpClient",
+                Optional.of(Stubs.httpClient("https"))));
+        TwitterService service = OAuthServiceRegistry.getService(config, CALLBACK_URI);
+        TwitterAuthenticatorPluginConfig reloaded = retain(testConfig().with("getHttpClient",
+                Optional.of(Stubs.httpClient("https"))));
+
+        assertNotSame(service, OAuthServiceRegistry.getService(reloaded, CALLBACK_URI));
+    }
+
+    @Test
+    void evictsOnlyOldestServiceOfConfigurationWhenFull() throws Exception
+    {
+        TwitterAuthenticatorPluginConfig config = retain(testConfig());
+        TwitterService oldest = OAuthServiceRegistry.getService(config, CALLBACK_URI + "/0");
+        TwitterService newest = oldest;
+
+        for (int i = 1; i <= OAuthServiceRegistry.MAX_SERVICES_PER_CONFIGURATION; i++)
+        {
+            newest = OAuthServiceRegistry.getService(config, CALLBACK_URI + "/" + i);
+        }
+
+        assertSame(newest, OAuthServiceRegistry.getService(config,
+                CALLBACK_URI + "/" + OAuthServiceRegistry.MAX_SERVICES_PER_CONFIGURATION));
+        assertNotSame(oldest, OAuthServiceRegistry.getService(config, CALLBACK_URI + "/0"));
+
+        // Not closed yet, since logins may still be using it
+        assertEquals("called", oldest.getExecutor().submit(() -> "called").get());
+    }
+
+    @Test
+    void keepsServicesOfOtherConfigurationsWhenCallbackUrisChange()
+    {
+        TwitterAuthenticatorPluginConfig config = retain(testConfig());
+        TwitterService service = OAuthServiceRegistry.getService(config, CALLBACK_URI);
+        TwitterAuthenticatorPluginConfig otherConfig = retain(testConfig().with("id", "other-registry-test"));
+
+        for (int i = 0; i <= OAuthServiceRegistry.MAX_SERVICES_PER_CONFIGURATION; i++)
+        {
+            OAuthServiceRegistry.getService(otherConfig, CALLBACK_URI + "/" + i);
+        }
+
+        assertSame(service, OAuthServiceRegistry.getService(config, CALLBACK_URI));
+    }
+
+    @Test
+    void keepsServicesOfConfigurationsInUseWhenFull()
+    {
+        TwitterAuthenticatorPluginConfig config = retain(testConfig());
+        TwitterService service = OAuthServiceRegistry.getService(config, CALLBACK_URI);
+
+        for (int i = 0; i <= OAuthServiceRegistry.MAX_CONFIGURATIONS; i++)
+        {
+            OAuthServiceRegistry.getService(testConfig().with("id", "unused-registry-test-" + i).build(),
+                    CALLBACK_URI);
+        }
+
+        assertSame(service, OAuthServiceRegistry.getService(config, CALLBACK_URI));
+    }
+
+    private static TestConfig testConfig()
+    {
+        return new TestConfig()
+                .with("id", "registry-test")
+                .with("getWebServiceClientFactory", Stubs.urlWebServiceClientFactory(url ->
+                        Stubs.httpResponse(200, Collections.emptyMap(), "")));
+    }
+
+    private TwitterAuthenticatorPluginConfig retain(TestConfig testConfig)
+    {
+        TwitterAuthenticatorPluginConfig config = testConfig.build();
+
+        OAuthServiceRegistry.retain(config);
+        _retained.add(config);
+
+        return config;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.model.OAuth1RequestToken;
+import com.github.scribejava.core.oauth.OAuth10aService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.http.HttpResponse;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestTokenHedgeTest
+{
+    /**
+     * Calls answered at once, so that the hedge delay drops to its minimum.
+     */
+    private static final int WARM_UP_CALLS = 32;
+
+    private final TwitterExecutor _executor = new TwitterExecutor("twitter-test", 4, 16);
+    private final AtomicInteger _calls = new AtomicInteger();
+    private final CountDownLatch _slowCallsStarted = new CountDownLatch(2);
+    private final AtomicInteger _slowCallsInterrupted = new AtomicInteger();
+    private final CountDownLatch _slowCallReleased = new CountDownLatch(1);
+
+    /**
+     * Whether calls after the warm-up other than the first are slow too.
+     */
+    private volatile boolean _hedgesAreSlow;
+
+    @AfterEach
+    void shutDownExecutor()
+    {
+        _slowCallReleased.countDown();
+        _executor.shutdown();
+    }
+
+    @Test
+    void hedgeTakesPermitOfRateLimiter() throws Exception
+    {
+        RequestTokenRateLimiter rateLimiter = RequestTokenRateLimiter.forApiKey(UUID.randomUUID().toString(), 600,
+                0, 0);
+        RequestTokenHedge hedge = warmedUpHedge(rateLimiter);
+
+        assertEquals("token-" + (WARM_UP_CALLS + 2), hedge.getRequestTokenAsync().get(5, TimeUnit.SECONDS)
+                .getToken());
+        assertEquals(1, hedge.getHedges());
+        assertEquals(1, rateLimiter.getAdmitted());
+        awaitSlowCallsInterrupted(1);
+    }
+
+    @Test
+    void callIsNotHedgedWithoutPermit() throws Exception
+    {
+        RequestTokenRateLimiter rateLimiter = RequestTokenRateLimiter.forApiKey(UUID.randomUUID().toString(), 1, 0,
+                0);
+        RequestTokenHedge hedge = warmedUpHedge(rateLimiter);
+
+        assertTrue(rateLimiter.tryAcquire());
+
+        Future<OAuth1RequestToken> requestToken = hedge.getRequestTokenAsync();
+
+        Thread.sleep(hedge.getDelayMillis() * 5);
+        _slowCallReleased.countDown();
+
+        assertEquals("token-" + (WARM_UP_CALLS + 1), requestToken.get(5, TimeUnit.SECONDS).getToken());
+        assertEquals(0, hedge.getHedges());
+        assertEquals(WARM_UP_CALLS + 1, _calls.get());
+    }
+
+    @Test
+    void cancellingInterruptsAllCalls() throws Exception
+    {
+        RequestTokenHedge hedge = warmedUpHedge(null);
+
+        _hedgesAreSlow = true;
+
+        Future<OAuth1RequestToken> requestToken = hedge.getRequestTokenAsync();
+
+        assertTrue(_slowCallsStarted.await(5, TimeUnit.SECONDS), "The call should be hedged");
+
+        requestToken.cancel(true);
+
+        awaitSlowCallsInterrupted(2);
+        assertEquals(WARM_UP_CALLS + 2, _calls.get());
+    }
+
+    private RequestTokenHedge warmedUpHedge(RequestTokenRateLimiter rateLimiter) throws Exception
+    {
+        RequestTokenHedge hedge = new RequestTokenHedge(oauthService(), rateLimiter, 100, 50);
+
+        for (int i = 0; i < WARM_UP_CALLS; i++)
+        {
+            hedge.getRequestTokenAsync().get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(20, hedge.getDelayMillis());
+
+        return hedge;
+    }
+
+    private void awaitSlowCallsInterrupted(int count) throws InterruptedException
+    {
+        for (int i = 0; i < 100 && _slowCallsInterrupted.get() < count; i++)
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals(count, _slowCallsInterrupted.get());
+    }
+
+    private OAuth10aService oauthService()
+    {
+        return new ServiceBuilder("test-api-key")
+                .apiSecret("test-api-secret-key")
+                .callback("https://localhost/authn/authentication/twitter/callback")
+                .httpClient(ScribeJavaHttpClientAdapter.from(TwitterEndpoints.direct(
+                        Stubs.webServiceClientFactory(this::respond), null, URI.create(TwitterApi.DEFAULT_BASE_URL)),
+                        null, _executor))
+                .build(TwitterApi.instance());
+    }
+
+    private HttpResponse respond(String target)
+    {
+        int call = _calls.incrementAndGet();
+
+        if (call == WARM_UP_CALLS + 1 || (call > WARM_UP_CALLS && _hedgesAreSlow))
+        {
+            _slowCallsStarted.countDown();
+
+            try
+            {
+                _slowCallReleased.await();
+            }
+            catch (InterruptedException e)
+            {
+                _slowCallsInterrupted.incrementAndGet();
+                Thread.currentThread().interrupt();
+
+                throw new IllegalStateException("Interrupted");
+            }
+        }
+
+        return Stubs.httpResponse(200, Collections.emptyMap(),
+                "oauth_token=token-" + call + "&oauth_token_secret=secret&oauth_callback_confirmed=true");
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.model.OAuth1RequestToken;
+import io.curity.identityserver.plugin.twitter.metrics.TwitterMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RequestTokenPoolTest
+{
+    private final AtomicInteger _fetches = new AtomicInteger();
+    private final RecordingMetrics _metrics = new RecordingMetrics();
+    private final List<RequestTokenPool> _pools = new ArrayList<>();
+
+    @AfterEach
+    void closePools()
+    {
+        _pools.forEach(RequestTokenPool::close);
+    }
+
+    @Test
+    void isFilledBeforeFirstTokenIsTaken() throws Exception
+    {
+        RequestTokenPool pool = pool(this::fetch, 2, 60);
+
+        pool.fill();
+        awaitDepth(pool, 2);
+
+        assertEquals(2, _fetches.get());
+        assertEquals(2, _metrics._depth.get());
+        assertNotNull(pool.poll());
+        assertEquals(1, _metrics._hits.get());
+        assertEquals(0, _metrics._misses.get());
+    }
+
+    @Test
+    void publishesExpiredTokensAndMissesThroughMetrics() throws Exception
+    {
+        RequestTokenPool pool = pool(() -> _fetches.get() == 0 ? fetch() : null, 1, 0);
+
+        pool.fill();
+        awaitDepth(pool, 1);
+
+        assertNull(pool.poll());
+        assertEquals(1, _metrics._expired.get());
+        assertEquals(1, _metrics._misses.get());
+        assertEquals(0, _metrics._depth.get());
+        assertEquals(0, _metrics._hits.get());
+    }
+
+    @Test
+    void slowRefillOfOnePoolDoesNotHoldUpAnother() throws Exception
+    {
+        CountDownLatch released = new CountDownLatch(1);
+        RequestTokenPool slowPool = pool(() -> {
+            released.await();
+
+            return null;
+        }, 1, 60);
+        RequestTokenPool pool = pool(this::fetch, 1, 60);
+
+        try
+        {
+            slowPool.fill();
+            pool.fill();
+
+            awaitDepth(pool, 1);
+        }
+        finally
+        {
+            released.countDown();
+        }
+    }
+
+    private RequestTokenPool pool(RequestTokenPool.Source source, int size, int maxAgeSeconds)
+    {
+        RequestTokenPool pool = new RequestTokenPool("request-token-pool-test", source, size, maxAgeSeconds,
+                _metrics);
+
+        _pools.add(pool);
+
+        return pool;
+    }
+
+    private OAuth1RequestToken fetch()
+    {
+        return new OAuth1RequestToken("pooled-token-" + _fetches.incrementAndGet(), "secret");
+    }
+
+    private static void awaitDepth(RequestTokenPool pool, int depth) throws InterruptedException
+    {
+        for (int i = 0; i < 500 && pool.getDepth() < depth; i++)
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals(depth, pool.getDepth());
+    }
+
+    private static final class RecordingMetrics implements TwitterMetrics
+    {
+        private final AtomicInteger _hits = new AtomicInteger();
+        private final AtomicInteger _misses = new AtomicInteger();
+        private final AtomicInteger _expired = new AtomicInteger();
+        private final AtomicInteger _depth = new AtomicInteger();
+
+        @Override
+        public void recordRequestTokenPoolHit()
+        {
+            _hits.incrementAndGet();
+        }
+
+        @Override
+        public void recordRequestTokenPoolMiss()
+        {
+            _misses.incrementAndGet();
+        }
+
+        @Override
+        public void recordRequestTokenPoolExpired()
+        {
+            _expired.incrementAndGet();
+        }
+
+        @Override
+        public void recordRequestTokenPoolDepth(int depth)
+        {
+            _depth.set(depth);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.model.OAuth1RequestToken;
+import org.junit.jupiter.api.Test;
+
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestTokenStateTest
+{
+    private static final OAuth1RequestToken REQUEST_TOKEN = new OAuth1RequestToken(
+            "NPcudxy0yU5T3tBzho7iCotZ3cnetKwcTIRlX0iwRl0", "veNRnAWe6inFuo8o2u8SLLZLjolYDmDP7SzL0YfYI");
+
+    private final RequestTokenState _state = new RequestTokenState("api-secret-key", 600);
+
+    @Test
+    void readsWhatWasSealed()
+    {
+        OAuth1RequestToken requestToken = _state.read(REQUEST_TOKEN.getToken(), _state.seal(REQUEST_TOKEN));
+
+        assertNotNull(requestToken);
+        assertEquals(REQUEST_TOKEN.getToken(), requestToken.getToken());
+        assertEquals(REQUEST_TOKEN.getTokenSecret(), requestToken.getTokenSecret());
+    }
+
+    @Test
+    void sealsDifferentlyEachTime()
+    {
+        assertNotEquals(_state.seal(REQUEST_TOKEN), _state.seal(REQUEST_TOKEN));
+    }
+
+    @Test
+    void refusesTamperedCiphertext()
+    {
+        byte[] sealed = decode(_state.seal(REQUEST_TOKEN));
+
+        // Past the IV and into the encrypted expiry and secret
+        sealed[16] ^= 1;
+
+        assertNull(_state.read(REQUEST_TOKEN.getToken(), encode(sealed)));
+    }
+
+    @Test
+    void refusesTamperedIv()
+    {
+        byte[] sealed = decode(_state.seal(REQUEST_TOKEN));
+
+        sealed[0] ^= 1;
+
+        assertNull(_state.read(REQUEST_TOKEN.getToken(), encode(sealed)));
+    }
+
+    @Test
+    void refusesTamperedTag()
+    {
+        byte[] sealed = decode(_state.seal(REQUEST_TOKEN));
+
+        sealed[sealed.length - 1] ^= 1;
+
+        assertNull(_state.read(REQUEST_TOKEN.getToken(), encode(sealed)));
+    }
+
+    @Test
+    void refusesStateSealedForAnotherRequestToken()
+    {
+        String sealed = _state.seal(REQUEST_TOKEN);
+
+        assertNull(_state.read("another-request-token", sealed));
+        assertNull(_state.read(REQUEST_TOKEN.getToken() + "x", sealed));
+    }
+
+    @Test
+    void refusesStateSealedWithAnotherApiSecretKey()
+    {
+        String sealed = new RequestTokenState("another-api-secret-key", 600).seal(REQUEST_TOKEN);
+
+        assertNull(_state.read(REQUEST_TOKEN.getToken(), sealed));
+    }
+
+    @Test
+    void refusesExpiredState()
+    {
+        RequestTokenState state = new RequestTokenState("api-secret-key", 0);
+
+        assertNull(state.read(REQUEST_TOKEN.getToken(), state.seal(REQUEST_TOKEN)));
+    }
+
+    @Test
+    void refusesMalformedState()
+    {
+        assertNull(_state.read(REQUEST_TOKEN.getToken(), ""));
+        assertNull(_state.read(REQUEST_TOKEN.getToken(), "not base64!"));
+        assertNull(_state.read(REQUEST_TOKEN.getToken(), encode(new byte[35])));
+        assertNull(_state.read(REQUEST_TOKEN.getToken(), encode(new byte[64])));
+    }
+
+    @Test
+    void readingDoesNotConsume()
+    {
+        String sealed = _state.seal(REQUEST_TOKEN);
+
+        assertNotNull(_state.read(REQUEST_TOKEN.getToken(), sealed));
+        assertNotNull(_state.read(REQUEST_TOKEN.getToken(), sealed));
+        assertTrue(_state.consume(REQUEST_TOKEN.getToken()));
+    }
+
+    @Test
+    void consumesOnlyOnce()
+    {
+        assertTrue(_state.consume(REQUEST_TOKEN.getToken()));
+        assertFalse(_state.consume(REQUEST_TOKEN.getToken()));
+        assertTrue(_state.consume("another-request-token"));
+    }
+
+    private static byte[] decode(String sealed)
+    {
+        return Base64.getUrlDecoder().decode(sealed);
+    }
+
+    private static String encode(byte[] sealed)
+    {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sealed);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.httpclient.HttpClient;
+import com.github.scribejava.core.model.Response;
+import com.github.scribejava.core.model.Verb;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.curity.identityserver.sdk.http.HttpRequest;
+import se.curity.identityserver.sdk.http.HttpResponse;
+import se.curity.identityserver.sdk.service.WebServiceClient;
+import se.curity.identityserver.sdk.service.WebServiceClientFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Sending a request token request through the SDK's HTTP client and adapting its response to a ScribeJava response,
+ * as {@link ScribeJavaHttpClientAdapter#execute(String, Map, Verb, String, byte[])} does it, compared to the way it
+ * was adapted before, with a stream of map entries and a boxed status code lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ResponseAdaptationBenchmark
+{
+    private static final String REQUEST_TOKEN_URL = TwitterApi.DEFAULT_BASE_URL + TwitterApi.REQUEST_TOKEN_PATH;
+    private static final byte[] NO_BODY = new byte[0];
+
+    private static final Map<Integer, String> _baselineStatusMessages = new HashMap<>();
+
+    static
+    {
+        _baselineStatusMessages.put(200, "OK");
+        _baselineStatusMessages.put(401, "Unauthorized");
+        _baselineStatusMessages.put(429, "Too Many Requests");
+    }
+
+    private final Map<String, String> _requestHeaders = Collections.singletonMap("Authorization",
+            "OAuth oauth_consumer_key=\"key\", oauth_nonce=\"nonce\", oauth_signature=\"signature\"");
+
+    private HttpResponse _response;
+    private HttpClient _adapter;
+    private WebServiceClient _webServiceClient;
+
+    @Setup
+    public void setUp()
+    {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+
+        headers.put("content-type", Collections.singletonList("application/x-www-form-urlencoded"));
+        headers.put("cache-control", Arrays.asList("no-cache", "no-store", "must-revalidate"));
+        headers.put("x-rate-limit-limit", Collections.singletonList("15"));
+        headers.put("x-rate-limit-remaining", Collections.singletonList("14"));
+        headers.put("x-rate-limit-reset", Collections.singletonList("1600000000"));
+        headers.put("x-transaction-id", Collections.singletonList("0123456789abcdef"));
+
+        _response = Stubs.httpResponse(200, headers, "oauth_token=Z6eEdO8MOmk394WozF5oKyuAv855l4Mlqo7hhlSLik" +
+                "&oauth_token_secret=Kd75W4OQfb2oJTV0vzGzeXftVAwgMnEK9MumzYcM&oauth_callback_confirmed=true");
+        WebServiceClientFactory webServiceClientFactory = Stubs.webServiceClientFactory(target -> _response);
+
+        _adapter = ScribeJavaHttpClientAdapter.from(webServiceClientFactory);
+        _webServiceClient = webServiceClientFactory.create(URI.create(TwitterApi.DEFAULT_BASE_URL));
+    }
+
+    @Benchmark
+    public Response execute() throws InterruptedException, ExecutionException, IOException
+    {
+        return _adapter.execute(null, _requestHeaders, Verb.POST, REQUEST_TOKEN_URL, NO_BODY);
+    }
+
+    @Benchmark
+    public Response baseline()
+    {
+        HttpRequest.Builder builder = _webServiceClient.withPath(TwitterApi.REQUEST_TOKEN_PATH).request();
+
+        _requestHeaders.forEach(builder::header);
+        builder.accept("application/json");
+        builder.body(HttpRequest.fromByteArray(NO_BODY));
+
+        HttpResponse response = builder.method(Verb.POST.name()).response();
+        Map<String, String> adaptedHeaders = response.headers()
+                .map()
+                .entrySet()
+                .stream()
+                .map(it -> new AbstractMap.SimpleEntry<>(it.getKey(), String.join(",", it.getValue())))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        String body = response.body(HttpResponse.asString());
+        String message = _baselineStatusMessages.get(response.statusCode());
+
+        return new Response(response.statusCode(), message, adaptedHeaders, body);
+    }
+}
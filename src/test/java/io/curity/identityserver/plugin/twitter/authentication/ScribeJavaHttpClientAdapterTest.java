@@ -0,0 +1,290 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.httpclient.HttpClient;
+import com.github.scribejava.core.model.OAuth1RequestToken;
+import com.github.scribejava.core.model.OAuthAsyncRequestCallback;
+import com.github.scribejava.core.model.Response;
+import com.github.scribejava.core.model.Verb;
+import com.github.scribejava.core.oauth.OAuth10aService;
+import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.http.HttpResponse;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ScribeJavaHttpClientAdapterTest
+{
+    private final TwitterExecutor _executor = new TwitterExecutor("twitter-test", 2, 16);
+    private final List<String> _urls = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    void shutDownExecutor()
+    {
+        _executor.shutdown();
+    }
+
+    @Test
+    void sendsToHttpApiBaseUrlWithPortAndPath() throws Exception
+    {
+        OAuth10aService service = oauthService(new TestConfig()
+                .with("getApiBaseUrl", "http://localhost:8080/twitter"));
+
+        OAuth1RequestToken requestToken = service.getRequestToken();
+
+        service.getAccessToken(requestToken, "verifier");
+
+        assertEquals("http://localhost:8080/twitter/oauth/request_token", _urls.get(0));
+        assertEquals("http://localhost:8080/twitter/oauth/access_token", _urls.get(1));
+    }
+
+    @Test
+    void sendsWithHttpClientToHostAndPortOfApiBaseUrl() throws Exception
+    {
+        OAuth10aService service = oauthService(new TestConfig()
+                .with("getHttpClient", Optional.of(Stubs.httpClient("https")))
+                .with("getApiBaseUrl", "https://twitter.example.com:8443/"));
+
+        service.getRequestToken();
+
+        assertEquals("https://twitter.example.com:8443/oauth/request_token", _urls.get(0));
+    }
+
+    @Test
+    void sendsAsyncRequestsToEgressEndpoint() throws Exception
+    {
+        OAuth10aService service = oauthService(new TestConfig()
+                .with("getApiBaseUrl", "https://api.twitter.com/api")
+                .with("getApiEgressEndpoints", Collections.singletonList("http://egress.example.com:3128/eu")));
+
+        service.getRequestTokenAsync().get();
+
+        assertEquals("http://egress.example.com:3128/eu/oauth/request_token", _urls.get(0));
+    }
+
+    @Test
+    void adaptsStatusCodeToReasonPhrase() throws Exception
+    {
+        assertEquals("OK", execute(respondWith(200, Collections.emptyMap(), "")).getMessage());
+        assertEquals("Enhance Your Calm", execute(respondWith(420, Collections.emptyMap(), "")).getMessage());
+        assertEquals("Too Many Requests", execute(respondWith(429, Collections.emptyMap(), "")).getMessage());
+        assertEquals("Service Unavailable", execute(respondWith(503, Collections.emptyMap(), "")).getMessage());
+        assertNull(execute(respondWith(299, Collections.emptyMap(), "")).getMessage());
+        assertNull(execute(respondWith(999, Collections.emptyMap(), "")).getMessage());
+    }
+
+    @Test
+    void adaptsBody() throws Exception
+    {
+        Response response = execute(respondWith(200, Collections.emptyMap(), "screen_name=\u00e9&user_id=1"));
+
+        assertEquals(200, response.getCode());
+        assertEquals("screen_name=\u00e9&user_id=1", response.getBody());
+    }
+
+    @Test
+    void joinsValuesOfRepeatedHeaders() throws Exception
+    {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+
+        headers.put("content-type", Collections.singletonList("application/x-www-form-urlencoded"));
+        headers.put("set-cookie", Arrays.asList("guest_id=v1", "personalization_id=v1"));
+
+        Response response = execute(respondWith(200, headers, ""));
+
+        assertEquals("application/x-www-form-urlencoded", response.getHeader("content-type"));
+        assertEquals("guest_id=v1,personalization_id=v1", response.getHeader("set-cookie"));
+        assertEquals(2, response.getHeaders().size());
+    }
+
+    @Test
+    void looksUpHeadersWhateverTheirCase() throws Exception
+    {
+        Response response = execute(respondWith(429, Collections.singletonMap("x-rate-limit-reset",
+                Collections.singletonList("1700000000")), ""));
+
+        assertEquals("1700000000", response.getHeader("X-Rate-Limit-Reset"));
+        assertTrue(response.getHeaders().containsKey("X-RATE-LIMIT-RESET"));
+        assertNull(response.getHeader("Retry-After"));
+        assertFalse(response.getHeaders().containsKey("Retry-After"));
+    }
+
+    /**
+     * Random multi-valued headers are adapted to the same map as the stream of joined entries that the adapter used
+     * to build.
+     */
+    @Test
+    void adaptsRandomHeadersLikeBefore() throws Exception
+    {
+        Random random = new Random(5);
+        List<String> names = Arrays.asList("content-type", "Content-Length", "set-cookie", "x-rate-limit-limit",
+                "x-rate-limit-remaining", "x-rate-limit-reset", "Retry-After", "x-connection-hash");
+
+        for (int i = 0; i < 2_000; i++)
+        {
+            Map<String, List<String>> headers = new HashMap<>();
+
+            for (int j = random.nextInt(names.size() + 1); j > 0; j--)
+            {
+                List<String> values = new ArrayList<>();
+
+                for (int k = random.nextInt(3); k >= 0; k--)
+                {
+                    values.add(Long.toString(random.nextLong(), 36));
+                }
+
+                headers.put(names.get(random.nextInt(names.size())), values);
+            }
+
+            Map<String, String> before = headers.entrySet().stream()
+                    .map(it -> new AbstractMap.SimpleEntry<>(it.getKey(), String.join(",", it.getValue())))
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+            Map<String, String> adapted = execute(respondWith(200, headers, "")).getHeaders();
+
+            assertEquals(before, adapted, headers::toString);
+            assertEquals(adapted, before, headers::toString);
+            assertEquals(before.hashCode(), adapted.hashCode(), headers::toString);
+
+            for (String name : names)
+            {
+                assertEquals(before.get(name), adapted.get(name), () -> name + " of " + headers);
+            }
+        }
+    }
+
+    @Test
+    void notifiesCallbackBeforeAsyncResponseCompletes() throws Exception
+    {
+        List<String> events = new CopyOnWriteArrayList<>();
+        HttpClient adapter = adapter(respondWith(200, Collections.emptyMap(), "body"));
+
+        Future<String> result = adapter.executeAsync(null, Collections.emptyMap(), Verb.GET,
+                TwitterApi.DEFAULT_BASE_URL + TwitterApi.VERIFY_CREDENTIALS_PATH, new byte[0],
+                new OAuthAsyncRequestCallback<String>()
+                {
+                    @Override
+                    public void onCompleted(String response)
+                    {
+                        events.add("completed " + response);
+                    }
+
+                    @Override
+                    public void onThrowable(Throwable t)
+                    {
+                        events.add("failed " + t);
+                    }
+                },
+                response -> response.getCode() + " " + response.getBody());
+
+        assertEquals("200 body", result.get());
+        assertEquals(Collections.singletonList("completed 200 body"), events);
+    }
+
+    @Test
+    void notifiesCallbackOfFailedConversion()
+    {
+        List<Throwable> failures = new CopyOnWriteArrayList<>();
+        HttpClient adapter = adapter(respondWith(200, Collections.emptyMap(), "body"));
+
+        Future<String> result = adapter.executeAsync(null, Collections.emptyMap(), Verb.GET,
+                TwitterApi.DEFAULT_BASE_URL + TwitterApi.VERIFY_CREDENTIALS_PATH, new byte[0],
+                new OAuthAsyncRequestCallback<String>()
+                {
+                    @Override
+                    public void onCompleted(String response)
+                    {
+                        throw new AssertionError("completed with " + response);
+                    }
+
+                    @Override
+                    public void onThrowable(Throwable t)
+                    {
+                        failures.add(t);
+                    }
+                },
+                response -> {
+                    throw new IOException("not a token response");
+                });
+
+        ExecutionException e = assertThrows(ExecutionException.class, result::get);
+
+        assertInstanceOf(IOException.class, e.getCause());
+        assertEquals(Collections.singletonList(e.getCause()), failures);
+    }
+
+    private Response execute(Function<String, HttpResponse> respond) throws Exception
+    {
+        return adapter(respond).execute(null, Collections.emptyMap(), Verb.GET,
+                TwitterApi.DEFAULT_BASE_URL + TwitterApi.VERIFY_CREDENTIALS_PATH, new byte[0]);
+    }
+
+    private HttpClient adapter(Function<String, HttpResponse> respond)
+    {
+        return ScribeJavaHttpClientAdapter.from(TwitterEndpoints.direct(Stubs.urlWebServiceClientFactory(respond),
+                null, URI.create(TwitterApi.DEFAULT_BASE_URL)), null, _executor);
+    }
+
+    private static Function<String, HttpResponse> respondWith(int statusCode, Map<String, List<String>> headers,
+                                                              String body)
+    {
+        return url -> Stubs.httpResponse(statusCode, headers, body);
+    }
+
+    private OAuth10aService oauthService(TestConfig testConfig)
+    {
+        TwitterAuthenticatorPluginConfig config = testConfig
+                .with("getWebServiceClientFactory", Stubs.urlWebServiceClientFactory(url -> {
+                    _urls.add(url);
+
+                    return Stubs.httpResponse(200, Collections.emptyMap(),
+                            "oauth_token=token&oauth_token_secret=secret&oauth_callback_confirmed=true");
+                }))
+                .build();
+
+        return new ServiceBuilder(config.getApiKey())
+                .apiSecret(config.getApiSecretKey())
+                .callback("https://localhost/authn/authentication/twitter/callback")
+                .httpClient(ScribeJavaHttpClientAdapter.from(TwitterEndpoints.from(config), null, _executor))
+                .build(TwitterApi.from(config));
+    }
+}
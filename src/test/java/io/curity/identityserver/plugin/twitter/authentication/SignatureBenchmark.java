@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.builder.api.DefaultApi10a;
+import com.github.scribejava.core.model.OAuth1AccessToken;
+import com.github.scribejava.core.model.OAuthRequest;
+import com.github.scribejava.core.model.Verb;
+import com.github.scribejava.core.oauth.OAuth10aService;
+import com.github.scribejava.core.services.HMACSha1SignatureService;
+import com.github.scribejava.core.services.SignatureService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signing Twitter requests with {@link HmacSha1Signer} compared to ScribeJava's {@link HMACSha1SignatureService}, on
+ * its own and as part of signing a whole request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SignatureBenchmark
+{
+    private static final String API_SECRET = "kAcSOqF21Fu85e7zjz7ZN2U4ZRhfV3WpwPAoE3Z7kBw";
+    private static final String TOKEN_SECRET = "LswwdoUaIvS8ltyTt5jkRh4J50vUPVVHtR2YPi5kE";
+    private static final String BASE_STRING = "POST&https%3A%2F%2Fapi.twitter.com%2Foauth%2Faccess_token&" +
+            "oauth_consumer_key%3Dxvz1evFS4wEEPTGEFPHBog%26oauth_nonce%3DkYjzVBB8Y0ZFabxSWbWovY3uYSQ2pTgmZeNu2VS4cg" +
+            "%26oauth_signature_method%3DHMAC-SHA1%26oauth_timestamp%3D1318622958%26oauth_token%3D370773112-GmHxMA" +
+            "gYfnXvGUx8%26oauth_verifier%3Dw9pNHTrs7qoRYeuYo9hlGiQjC5ZCh2l2%26oauth_version%3D1.0";
+
+    private final SignatureService _signer = new HmacSha1Signer();
+    private final SignatureService _baselineSigner = new HMACSha1SignatureService();
+    private final OAuth1AccessToken _accessToken = new OAuth1AccessToken("370773112-GmHxMAgYfnXvGUx8", TOKEN_SECRET);
+
+    private OAuth10aService _service;
+    private OAuth10aService _baselineService;
+
+    @Setup
+    public void setUp()
+    {
+        _service = new ServiceBuilder("xvz1evFS4wEEPTGEFPHBog").apiSecret(API_SECRET).build(TwitterApi.instance());
+        _baselineService = new ServiceBuilder("xvz1evFS4wEEPTGEFPHBog").apiSecret(API_SECRET)
+                .build(new BaselineTwitterApi());
+    }
+
+    @Benchmark
+    public String signature()
+    {
+        return _signer.getSignature(BASE_STRING, API_SECRET, TOKEN_SECRET);
+    }
+
+    @Benchmark
+    public String baselineSignature()
+    {
+        return _baselineSigner.getSignature(BASE_STRING, API_SECRET, TOKEN_SECRET);
+    }
+
+    @Benchmark
+    public OAuthRequest signRequest()
+    {
+        return sign(_service);
+    }
+
+    @Benchmark
+    public OAuthRequest baselineSignRequest()
+    {
+        return sign(_baselineService);
+    }
+
+    private OAuthRequest sign(OAuth10aService service)
+    {
+        OAuthRequest request = new OAuthRequest(Verb.GET,
+                TwitterApi.DEFAULT_BASE_URL + TwitterApi.VERIFY_CREDENTIALS_PATH);
+
+        request.addQuerystringParameter("skip_status", "true");
+        service.signRequest(_accessToken, request);
+
+        return request;
+    }
+
+    /**
+     * The Twitter API with ScribeJava's own signature service.
+     */
+    private static final class BaselineTwitterApi extends DefaultApi10a
+    {
+        @Override
+        public String getRequestTokenEndpoint()
+        {
+            return TwitterApi.DEFAULT_BASE_URL + TwitterApi.REQUEST_TOKEN_PATH;
+        }
+
+        @Override
+        public String getAccessTokenEndpoint()
+        {
+            return TwitterApi.DEFAULT_BASE_URL + TwitterApi.ACCESS_TOKEN_PATH;
+        }
+
+        @Override
+        protected String getAuthorizationBaseUrl()
+        {
+            return TwitterApi.DEFAULT_AUTHORIZE_URL;
+        }
+    }
+}
@@ -0,0 +1,467 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.services.HMACSha1SignatureService;
+import com.github.scribejava.core.services.SignatureService;
+import com.github.scribejava.core.utils.OAuthEncoder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the OAuth 1.0a endpoints of Twitter, for tests and load tests that must not call
+ * Twitter.
+ *
+ * <p>It serves {@code oauth/request_token}, {@code oauth/authorize} and {@code oauth/access_token} like Twitter does,
+ * and refuses requests whose HMAC-SHA1 signature does not match the one it computes with ScribeJava's own signature
+ * service. A latency can be added to the token endpoints, and a share of their requests can be answered with 503 or
+ * with 429 and a {@code Retry-After} header instead.
+ *
+ * <p>Point the authenticator at it by setting its API base URL and authorize URL to {@link #getBaseUrl()} and
+ * {@link #getAuthorizeUrl()}.
+ */
+final class StubTwitterServer implements AutoCloseable
+{
+    private static final SignatureService _signatureService = new HMACSha1SignatureService();
+
+    static
+    {
+        // The server writes the headers and the body of a response apart, which without this waits for the
+        // delayed ACK of the client, adding 40 ms to most requests. Read when the server is first used.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final String _apiKey;
+    private final String _apiSecretKey;
+    private final HttpServer _server;
+    private final ExecutorService _executor;
+    private final ConcurrentMap<String, PendingLogin> _pendingLogins = new ConcurrentHashMap<>();
+    private final AtomicLong _userIds = new AtomicLong(1000);
+    private final AtomicInteger _requests = new AtomicInteger();
+    private final AtomicInteger _signatureFailures = new AtomicInteger();
+
+    private volatile long _latencyMillis;
+    private volatile double _errorRate;
+    private volatile double _rateLimitRate;
+
+    private StubTwitterServer(String apiKey, String apiSecretKey) throws IOException
+    {
+        _apiKey = apiKey;
+        _apiSecretKey = apiSecretKey;
+        _server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        _executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "stub-twitter");
+
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        _server.setExecutor(_executor);
+        _server.createContext(TwitterApi.REQUEST_TOKEN_PATH, exchange -> handle(exchange, this::requestToken));
+        _server.createContext("/oauth/authorize", exchange -> handle(exchange, this::authorize));
+        _server.createContext(TwitterApi.ACCESS_TOKEN_PATH, exchange -> handle(exchange, this::accessToken));
+    }
+
+    /**
+     * Start a server on a free port of the loopback interface, which accepts requests signed with the given app
+     * credentials.
+     */
+    static StubTwitterServer start(String apiKey, String apiSecretKey) throws IOException
+    {
+        StubTwitterServer server = new StubTwitterServer(apiKey, apiSecretKey);
+
+        server._server.start();
+
+        return server;
+    }
+
+    String getBaseUrl()
+    {
+        return "http://" + _server.getAddress().getHostString() + ":" + _server.getAddress().getPort();
+    }
+
+    String getAuthorizeUrl()
+    {
+        return getBaseUrl() + "/oauth/authorize";
+    }
+
+    /**
+     * @param latencyMillis how long the token endpoints take to answer
+     */
+    StubTwitterServer withLatency(long latencyMillis)
+    {
+        _latencyMillis = latencyMillis;
+
+        return this;
+    }
+
+    /**
+     * @param errorRate the share of requests to the token endpoints that are answered with 503
+     */
+    StubTwitterServer withErrorRate(double errorRate)
+    {
+        _errorRate = errorRate;
+
+        return this;
+    }
+
+    /**
+     * @param rateLimitRate the share of requests to the token endpoints that are answered with 429
+     */
+    StubTwitterServer withRateLimitRate(double rateLimitRate)
+    {
+        _rateLimitRate = rateLimitRate;
+
+        return this;
+    }
+
+    /**
+     * @return the number of requests received by the token endpoints
+     */
+    int getRequests()
+    {
+        return _requests.get();
+    }
+
+    int getSignatureFailures()
+    {
+        return _signatureFailures.get();
+    }
+
+    @Override
+    public void close()
+    {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    private StubResponse requestToken(HttpExchange exchange, Map<String, String> oauthParameters)
+            throws InterruptedException
+    {
+        StubResponse failure = checkTokenRequest(exchange, oauthParameters, "");
+
+        if (failure != null)
+        {
+            return failure;
+        }
+
+        String callback = oauthParameters.get("oauth_callback");
+
+        if (callback == null)
+        {
+            return StubResponse.error(400, 214, "Missing oauth_callback");
+        }
+
+        String token = UUID.randomUUID().toString();
+        String secret = UUID.randomUUID().toString();
+
+        _pendingLogins.put(token, new PendingLogin(secret, callback));
+
+        return StubResponse.form(200, "oauth_token=" + token + "&oauth_token_secret=" + secret +
+                "&oauth_callback_confirmed=true");
+    }
+
+    /**
+     * Stands in for the page the user logs in on, and approves the app right away.
+     */
+    private StubResponse authorize(HttpExchange exchange, Map<String, String> oauthParameters)
+    {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String token = query.get("oauth_token");
+        PendingLogin pendingLogin = token == null ? null : _pendingLogins.get(token);
+
+        if (pendingLogin == null)
+        {
+            return StubResponse.error(404, 89, "Invalid or expired token");
+        }
+
+        String verifier = UUID.randomUUID().toString();
+
+        pendingLogin._verifier = verifier;
+
+        return StubResponse.redirect(pendingLogin._callback + (pendingLogin._callback.contains("?") ? "&" : "?") +
+                "oauth_token=" + OAuthEncoder.encode(token) + "&oauth_verifier=" + OAuthEncoder.encode(verifier));
+    }
+
+    private StubResponse accessToken(HttpExchange exchange, Map<String, String> oauthParameters)
+            throws InterruptedException
+    {
+        String token = oauthParameters.get("oauth_token");
+        PendingLogin pendingLogin = token == null ? null : _pendingLogins.get(token);
+
+        if (pendingLogin == null)
+        {
+            return StubResponse.error(401, 89, "Invalid or expired token");
+        }
+
+        StubResponse failure = checkTokenRequest(exchange, oauthParameters, pendingLogin._secret);
+
+        if (failure != null)
+        {
+            return failure;
+        }
+
+        String verifier = pendingLogin._verifier;
+
+        if (verifier == null || !verifier.equals(oauthParameters.get("oauth_verifier")) ||
+                !_pendingLogins.remove(token, pendingLogin))
+        {
+            return StubResponse.error(401, 89, "Invalid or expired token");
+        }
+
+        long userId = _userIds.incrementAndGet();
+
+        return StubResponse.form(200, "oauth_token=" + userId + "-" + UUID.randomUUID() +
+                "&oauth_token_secret=" + UUID.randomUUID() + "&user_id=" + userId + "&screen_name=user" + userId);
+    }
+
+    /**
+     * Add the latency, inject any failure and check the signature of a request to a token endpoint.
+     *
+     * @return the response to send instead of the regular one, or null if there is none
+     */
+    private StubResponse checkTokenRequest(HttpExchange exchange, Map<String, String> oauthParameters,
+                                           String tokenSecret) throws InterruptedException
+    {
+        _requests.incrementAndGet();
+
+        long latencyMillis = _latencyMillis;
+
+        if (latencyMillis > 0)
+        {
+            TimeUnit.MILLISECONDS.sleep(latencyMillis);
+        }
+
+        double draw = ThreadLocalRandom.current().nextDouble();
+
+        if (draw < _rateLimitRate)
+        {
+            return StubResponse.error(429, 88, "Rate limit exceeded").withHeader("Retry-After", "1");
+        }
+
+        if (draw < _rateLimitRate + _errorRate)
+        {
+            return StubResponse.error(503, 130, "Over capacity");
+        }
+
+        if (!_apiKey.equals(oauthParameters.get("oauth_consumer_key")) ||
+                !"HMAC-SHA1".equals(oauthParameters.get("oauth_signature_method")))
+        {
+            _signatureFailures.incrementAndGet();
+
+            return StubResponse.error(401, 32, "Could not authenticate you.");
+        }
+
+        String signature = _signatureService.getSignature(baseStringOf(exchange, oauthParameters), _apiSecretKey,
+                tokenSecret);
+
+        if (!signature.equals(oauthParameters.get("oauth_signature")))
+        {
+            _signatureFailures.incrementAndGet();
+
+            return StubResponse.error(401, 32, "Could not authenticate you.");
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the signature base string of RFC 5849, section 3.4.1, of a request whose parameters are all in the
+     * Authorization header and query
+     */
+    private static String baseStringOf(HttpExchange exchange, Map<String, String> oauthParameters)
+    {
+        List<String[]> parameters = new ArrayList<>();
+
+        oauthParameters.forEach((name, value) -> {
+            if (!"oauth_signature".equals(name) && !"realm".equals(name))
+            {
+                parameters.add(new String[] { OAuthEncoder.encode(name), OAuthEncoder.encode(value) });
+            }
+        });
+        parseQuery(exchange.getRequestURI().getRawQuery()).forEach((name, value) ->
+                parameters.add(new String[] { OAuthEncoder.encode(name), OAuthEncoder.encode(value) }));
+        parameters.sort(Comparator.<String[], String>comparing(parameter -> parameter[0])
+                .thenComparing(parameter -> parameter[1]));
+
+        StringJoiner normalizedParameters = new StringJoiner("&");
+
+        parameters.forEach(parameter -> normalizedParameters.add(parameter[0] + "=" + parameter[1]));
+
+        String url = "http://" + exchange.getRequestHeaders().getFirst("Host") + exchange.getRequestURI().getRawPath();
+
+        return exchange.getRequestMethod() + "&" + OAuthEncoder.encode(url) + "&" +
+                OAuthEncoder.encode(normalizedParameters.toString());
+    }
+
+    private void handle(HttpExchange exchange, Endpoint endpoint) throws IOException
+    {
+        StubResponse response;
+
+        try
+        {
+            response = endpoint.respond(exchange, parseAuthorization(
+                    exchange.getRequestHeaders().getFirst("Authorization")));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            response = StubResponse.error(503, 130, "Over capacity");
+        }
+
+        byte[] body = response._body.getBytes(StandardCharsets.UTF_8);
+
+        response._headers.forEach((name, value) -> exchange.getResponseHeaders().add(name, value));
+        exchange.sendResponseHeaders(response._statusCode, body.length == 0 ? -1 : body.length);
+
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parseAuthorization(String authorization)
+    {
+        Map<String, String> parameters = new HashMap<>();
+
+        if (authorization == null || !authorization.startsWith("OAuth "))
+        {
+            return parameters;
+        }
+
+        for (String parameter : authorization.substring("OAuth ".length()).split(","))
+        {
+            int equals = parameter.indexOf('=');
+
+            if (equals > 0)
+            {
+                String value = parameter.substring(equals + 1).trim();
+
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+                {
+                    value = value.substring(1, value.length() - 1);
+                }
+
+                parameters.put(parameter.substring(0, equals).trim(), OAuthEncoder.decode(value));
+            }
+        }
+
+        return parameters;
+    }
+
+    private static Map<String, String> parseQuery(String query)
+    {
+        Map<String, String> parameters = new HashMap<>();
+
+        if (query == null || query.isEmpty())
+        {
+            return parameters;
+        }
+
+        for (String parameter : query.split("&"))
+        {
+            int equals = parameter.indexOf('=');
+
+            parameters.put(OAuthEncoder.decode(equals < 0 ? parameter : parameter.substring(0, equals)),
+                    equals < 0 ? "" : OAuthEncoder.decode(parameter.substring(equals + 1)));
+        }
+
+        return parameters;
+    }
+
+    private interface Endpoint
+    {
+        StubResponse respond(HttpExchange exchange, Map<String, String> oauthParameters) throws InterruptedException;
+    }
+
+    private static final class PendingLogin
+    {
+        private final String _secret;
+        private final String _callback;
+
+        private volatile String _verifier;
+
+        private PendingLogin(String secret, String callback)
+        {
+            _secret = secret;
+            _callback = callback;
+        }
+    }
+
+    private static final class StubResponse
+    {
+        private final int _statusCode;
+        private final String _body;
+        private final Map<String, String> _headers = new HashMap<>();
+
+        private StubResponse(int statusCode, String contentType, String body)
+        {
+            _statusCode = statusCode;
+            _body = body;
+
+            if (contentType != null)
+            {
+                _headers.put("Content-Type", contentType);
+            }
+        }
+
+        private static StubResponse form(int statusCode, String body)
+        {
+            return new StubResponse(statusCode, "application/x-www-form-urlencoded", body);
+        }
+
+        private static StubResponse error(int statusCode, int code, String message)
+        {
+            return new StubResponse(statusCode, "application/json",
+                    "{\"errors\":[{\"code\":" + code + ",\"message\":\"" + message + "\"}]}");
+        }
+
+        private static StubResponse redirect(String location)
+        {
+            return new StubResponse(302, null, "").withHeader("Location", location);
+        }
+
+        private StubResponse withHeader(String name, String value)
+        {
+            _headers.put(name, value);
+
+            return this;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import se.curity.identityserver.sdk.http.Cookie;
+import se.curity.identityserver.sdk.http.Cookies;
+import se.curity.identityserver.sdk.http.HttpHeaders;
+import se.curity.identityserver.sdk.http.HttpRequest;
+import se.curity.identityserver.sdk.http.HttpResponse;
+import se.curity.identityserver.sdk.service.HttpClient;
+import se.curity.identityserver.sdk.service.WebServiceClient;
+import se.curity.identityserver.sdk.service.WebServiceClientFactory;
+import se.curity.identityserver.sdk.web.Request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Stand-ins for the interfaces of the SDK, which are implemented by the server.
+ */
+final class Stubs
+{
+    private Stubs() { }
+
+    /**
+     * Answers a call to a stubbed method.
+     */
+    interface Answer
+    {
+        Object answer(String methodName, Object[] arguments) throws Throwable;
+    }
+
+    /**
+     * @return an implementation of the given interface that answers every call with the given answer
+     */
+    static <T> T stub(Class<T> type, Answer answer)
+    {
+        return type.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, arguments) -> {
+                    if (method.getDeclaringClass() == Object.class)
+                    {
+                        switch (method.getName())
+                        {
+                            case "equals":
+                                return proxy == arguments[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            default:
+                                return type.getSimpleName() + " stub";
+                        }
+                    }
+
+                    return answer.answer(method.getName(), arguments == null ? new Object[0] : arguments);
+                }));
+    }
+
+    /**
+     * @return a factory of web service clients that answer every request by applying the given function to the path
+     * and query it was sent to
+     */
+    static WebServiceClientFactory webServiceClientFactory(Function<String, HttpResponse> respond)
+    {
+        return urlWebServiceClientFactory(url -> {
+            URI uri = URI.create(url);
+
+            return respond.apply(uri.getRawQuery() == null
+                    ? uri.getRawPath()
+                    : uri.getRawPath() + '?' + uri.getRawQuery());
+        });
+    }
+
+    /**
+     * @return a factory of web service clients that answer every request by applying the given function to the URL
+     * it was sent to, which has the scheme of the HTTP client or URI the web service client was created from
+     */
+    static WebServiceClientFactory urlWebServiceClientFactory(Function<String, HttpResponse> respond)
+    {
+        return webServiceClientFactory((method, url, headers) -> respond.apply(url));
+    }
+
+    /**
+     * @return a factory of web service clients that send requests over HTTP, without following redirects
+     */
+    static WebServiceClientFactory httpWebServiceClientFactory()
+    {
+        return webServiceClientFactory(Stubs::send);
+    }
+
+    /**
+     * @return a factory of web service clients that send every request with the given transport
+     */
+    static WebServiceClientFactory webServiceClientFactory(Transport transport)
+    {
+        return stub(WebServiceClientFactory.class, (name, arguments) -> {
+            if (arguments[0] instanceof URI)
+            {
+                URI uri = (URI) arguments[0];
+
+                return webServiceClient(new Target(uri.getScheme(), uri.getHost(), uri.getPort(), "", null),
+                        transport);
+            }
+
+            return webServiceClient(new Target(((HttpClient) arguments[0]).getScheme(), "localhost", -1, "", null),
+                    transport);
+        });
+    }
+
+    static HttpClient httpClient(String scheme)
+    {
+        return stub(HttpClient.class, (name, arguments) -> {
+            if ("getScheme".equals(name))
+            {
+                return scheme;
+            }
+
+            throw new UnsupportedOperationException(name);
+        });
+    }
+
+    /**
+     * @return a GET request with the given query parameters and cookies
+     */
+    static Request getRequest(Map<String, String> queryParameters, Map<String, String> cookies)
+    {
+        return getRequest(queryParameters, cookies, Collections.emptyMap());
+    }
+
+    /**
+     * @return a GET request with the given query parameters, cookies and headers
+     */
+    static Request getRequest(Map<String, String> queryParameters, Map<String, String> cookies,
+                              Map<String, String> headers)
+    {
+        HttpHeaders requestHeaders = stub(HttpHeaders.class, (name, arguments) -> {
+            if ("firstValue".equals(name))
+            {
+                return Optional.ofNullable(headers.get((String) arguments[0]));
+            }
+
+            throw new UnsupportedOperationException(name);
+        });
+        Cookies requestCookies = stub(Cookies.class, (name, arguments) -> {
+            if ("getFirst".equals(name))
+            {
+                String value = cookies.get((String) arguments[0]);
+
+                return value == null ? Optional.empty() : Optional.of(new Cookie((String) arguments[0], value));
+            }
+
+            throw new UnsupportedOperationException(name);
+        });
+
+        return stub(Request.class, (name, arguments) -> {
+            switch (name)
+            {
+                case "isGetRequest":
+                    return true;
+                case "getParameterValueOrError":
+                case "getQueryParameterValueOrError":
+                    return queryParameters.get((String) arguments[0]);
+                case "getCookies":
+                    return requestCookies;
+                case "getHeaders":
+                    return requestHeaders;
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    static HttpResponse httpResponse(int statusCode, Map<String, List<String>> headers, String body)
+    {
+        HttpHeaders httpHeaders = stub(HttpHeaders.class, (name, arguments) -> {
+            if ("firstValue".equals(name))
+            {
+                List<String> values = headers.get((String) arguments[0]);
+
+                return values == null || values.isEmpty() ? Optional.empty() : Optional.of(values.get(0));
+            }
+
+            return headers;
+        });
+
+        return stub(HttpResponse.class, (name, arguments) -> {
+            switch (name)
+            {
+                case "statusCode":
+                    return statusCode;
+                case "headers":
+                    return httpHeaders;
+                default:
+                    return body;
+            }
+        });
+    }
+
+    private static WebServiceClient webServiceClient(Target target, Transport transport)
+    {
+        return stub(WebServiceClient.class, (name, arguments) -> {
+            switch (name)
+            {
+                case "withHost":
+                    return webServiceClient(new Target(target._scheme, (String) arguments[0], target._port,
+                            target._path, target._query), transport);
+                case "withPort":
+                    return webServiceClient(new Target(target._scheme, target._host, (Integer) arguments[0],
+                            target._path, target._query), transport);
+                case "withPath":
+                    return webServiceClient(new Target(target._scheme, target._host, target._port,
+                            (String) arguments[0], target._query), transport);
+                case "withQuery":
+                    return webServiceClient(new Target(target._scheme, target._host, target._port, target._path,
+                            (String) arguments[0]), transport);
+                case "request":
+                    return requestBuilder(target.toUrl(), transport);
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private static HttpRequest.Builder requestBuilder(String url, Transport transport)
+    {
+        Map<String, String> headers = new LinkedHashMap<>();
+        HttpRequest.Builder[] builder = new HttpRequest.Builder[1];
+
+        builder[0] = stub(HttpRequest.Builder.class, (name, arguments) -> {
+            switch (name)
+            {
+                case "header":
+                    headers.put((String) arguments[0], (String) arguments[1]);
+
+                    return builder[0];
+                case "accept":
+                    headers.put("Accept", (String) arguments[0]);
+
+                    return builder[0];
+                case "method":
+                    String method = (String) arguments[0];
+
+                    return stub(HttpRequest.class, (requestName, requestArguments) -> {
+                        try
+                        {
+                            return transport.send(method, url, headers);
+                        }
+                        catch (IOException e)
+                        {
+                            // As the server's HTTP client does
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                default:
+                    // Bodies are not sent; the requests to Twitter have their parameters in the Authorization header
+                    return builder[0];
+            }
+        });
+
+        return builder[0];
+    }
+
+    private static HttpResponse send(String method, String url, Map<String, String> headers) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+
+        connection.setRequestMethod(method);
+        connection.setInstanceFollowRedirects(false);
+        headers.forEach(connection::setRequestProperty);
+
+        if ("POST".equals(method))
+        {
+            connection.setDoOutput(true);
+            connection.getOutputStream().close();
+        }
+
+        int statusCode = connection.getResponseCode();
+        Map<String, List<String>> responseHeaders = new LinkedHashMap<>();
+
+        connection.getHeaderFields().forEach((name, values) -> {
+            // The status line has no name
+            if (name != null)
+            {
+                responseHeaders.put(name.toLowerCase(Locale.ROOT), values);
+            }
+        });
+
+        InputStream body = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+
+        return httpResponse(statusCode, responseHeaders, body == null ? "" : readFully(body));
+    }
+
+    private static String readFully(InputStream inputStream) throws IOException
+    {
+        try (InputStream in = inputStream)
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+
+            while ((read = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, read);
+            }
+
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Sends the requests of web service client stubs.
+     */
+    interface Transport
+    {
+        HttpResponse send(String method, String url, Map<String, String> headers) throws IOException;
+    }
+
+    /**
+     * Where a request of a web service client stub is sent.
+     */
+    private static final class Target
+    {
+        private final String _scheme;
+        private final String _host;
+        private final int _port;
+        private final String _path;
+        private final String _query;
+
+        private Target(String scheme, String host, int port, String path, String query)
+        {
+            _scheme = scheme;
+            _host = host;
+            _port = port;
+            _path = path;
+            _query = query;
+        }
+
+        private String toUrl()
+        {
+            return _scheme + "://" + _host + (_port == -1 ? "" : ":" + _port) + _path +
+                    (_query == null ? "" : "?" + _query);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
+import se.curity.identityserver.sdk.config.annotation.DefaultBooleanValue;
+import se.curity.identityserver.sdk.config.annotation.DefaultIntegerValue;
+import se.curity.identityserver.sdk.config.annotation.DefaultString;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Builds a configuration of the plugin that has the defaults of its settings, except for the ones that are given.
+ * Services of the server are null unless they are given.
+ */
+final class TestConfig
+{
+    private final Map<String, Object> _values = new HashMap<>();
+
+    TestConfig()
+    {
+        _values.put("id", "twitter-test");
+        _values.put("getApiKey", "test-api-key");
+        _values.put("getApiSecretKey", "test-api-secret-key");
+    }
+
+    /**
+     * @param methodName the name of the getter of the setting, such as {@code getRequestTokenTimeout}
+     */
+    TestConfig with(String methodName, Object value)
+    {
+        _values.put(methodName, value);
+
+        return this;
+    }
+
+    TwitterAuthenticatorPluginConfig build()
+    {
+        Map<String, Object> values = new HashMap<>(_values);
+
+        return Stubs.stub(TwitterAuthenticatorPluginConfig.class, (name, arguments) -> {
+            if (values.containsKey(name))
+            {
+                return values.get(name);
+            }
+
+            return defaultOf(TwitterAuthenticatorPluginConfig.class.getMethod(name));
+        });
+    }
+
+    private static Object defaultOf(Method method)
+    {
+        if (method.isAnnotationPresent(DefaultIntegerValue.class))
+        {
+            return method.getAnnotation(DefaultIntegerValue.class).value();
+        }
+
+        if (method.isAnnotationPresent(DefaultBooleanValue.class))
+        {
+            return method.getAnnotation(DefaultBooleanValue.class).value();
+        }
+
+        if (method.isAnnotationPresent(DefaultString.class))
+        {
+            return method.getAnnotation(DefaultString.class).value();
+        }
+
+        if (method.getReturnType() == Optional.class)
+        {
+            return Optional.empty();
+        }
+
+        if (method.getReturnType() == List.class)
+        {
+            return Collections.emptyList();
+        }
+
+        // Services of the server, which a test sets when it needs them
+        return null;
+    }
+}
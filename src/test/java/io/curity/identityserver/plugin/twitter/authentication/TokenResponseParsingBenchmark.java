@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.extractors.OAuth1AccessTokenExtractor;
+import com.github.scribejava.core.model.OAuth1AccessToken;
+import com.github.scribejava.core.model.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracting the access token from Twitter's access token response with {@link FormUrlEncodedTokenExtractor}
+ * compared to ScribeJava's {@link OAuth1AccessTokenExtractor}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TokenResponseParsingBenchmark
+{
+    private Response _response;
+
+    @Setup
+    public void setUp()
+    {
+        _response = new Response(200, "OK", Collections.emptyMap(),
+                "oauth_token=6253282-eWudHldSbIaelX7swmsiHImEL4KinwaGloHANdrY" +
+                        "&oauth_token_secret=2EEfA6BG3ly3sR3RjE0IBSnlQu4ZrUzPiYKmrkVU&user_id=6253282" +
+                        "&screen_name=twitterapi");
+    }
+
+    @Benchmark
+    public OAuth1AccessToken extract() throws IOException
+    {
+        return FormUrlEncodedTokenExtractor.ACCESS_TOKEN.extract(_response);
+    }
+
+    @Benchmark
+    public OAuth1AccessToken baseline() throws IOException
+    {
+        return OAuth1AccessTokenExtractor.instance().extract(_response);
+    }
+}
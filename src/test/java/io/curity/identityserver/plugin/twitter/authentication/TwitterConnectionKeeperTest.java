@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TwitterConnectionKeeperTest
+{
+    private final List<String> _requests = new CopyOnWriteArrayList<>();
+
+    @Test
+    void isOffByDefault()
+    {
+        assertEquals(0, new TestConfig().build().getConnectionKeepAliveInterval());
+    }
+
+    @Test
+    void keepsConnectionToApiBaseUrlOpen()
+    {
+        keepAlive("https://api.twitter.com");
+
+        assertEquals(Collections.singletonList("HEAD https://api.twitter.com/"), _requests);
+    }
+
+    @Test
+    void keepsConnectionOpenWithPathOfApiBaseUrl()
+    {
+        keepAlive("https://gateway.example.com:8443/twitter/");
+
+        assertEquals(Collections.singletonList("HEAD https://gateway.example.com:8443/twitter/"), _requests);
+    }
+
+    @Test
+    void keepsConnectionsOpenWithPathOfEachEgressEndpoint()
+    {
+        keepAlive("https://api.twitter.com/api", "https://egress.example.com/eu/twitter",
+                "http://egress.example.com:3128");
+
+        assertEquals(Arrays.asList("HEAD https://egress.example.com/eu/twitter/",
+                "HEAD http://egress.example.com:3128/"), _requests);
+    }
+
+    private void keepAlive(String apiBaseUrl, String... egressEndpoints)
+    {
+        TwitterEndpoints endpoints = TwitterEndpoints.from(new TestConfig()
+                .with("getWebServiceClientFactory", Stubs.webServiceClientFactory((method, url, headers) -> {
+                    _requests.add(method + " " + url);
+
+                    return Stubs.httpResponse(404, Collections.emptyMap(), "");
+                }))
+                .with("getApiBaseUrl", apiBaseUrl)
+                .with("getApiEgressEndpoints", Arrays.asList(egressEndpoints))
+                .build());
+
+        endpoints.getAll().forEach(TwitterConnectionKeeper::keepAlive);
+    }
+}
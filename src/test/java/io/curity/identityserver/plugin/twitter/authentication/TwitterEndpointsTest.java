@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.http.HttpResponse;
+import se.curity.identityserver.sdk.service.HttpClient;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TwitterEndpointsTest
+{
+    @Test
+    void sendsToApiBaseUrl()
+    {
+        assertEquals("https://api.twitter.com/oauth/request_token",
+                urlOf(endpoints(null, "https://api.twitter.com"), "/oauth/request_token"));
+    }
+
+    @Test
+    void sendsToHttpApiBaseUrlOnNonDefaultPort()
+    {
+        assertEquals("http://localhost:8080/oauth/request_token",
+                urlOf(endpoints(null, "http://localhost:8080"), "/oauth/request_token"));
+    }
+
+    @Test
+    void sendsToApiBaseUrlWithPath()
+    {
+        assertEquals("https://gateway.example.com:8443/twitter/oauth/request_token",
+                urlOf(endpoints(null, "https://gateway.example.com:8443/twitter/"), "/twitter/oauth/request_token"));
+    }
+
+    @Test
+    void sendsWithSchemeAndPortOfHttpClient()
+    {
+        assertEquals("http://localhost:8080/oauth/access_token",
+                urlOf(endpoints(Stubs.httpClient("http"), "http://localhost:8080"), "/oauth/access_token"));
+        assertEquals("https://api.twitter.com/oauth/access_token",
+                urlOf(endpoints(Stubs.httpClient("https"), "https://api.twitter.com"), "/oauth/access_token"));
+    }
+
+    @Test
+    void replacesPathOfApiBaseUrlWithThatOfEgressEndpoint()
+    {
+        TwitterEndpoints endpoints = endpoints(null, "https://api.twitter.com/api",
+                "http://egress.example.com:3128/eu/twitter");
+
+        assertEquals("http://egress.example.com:3128/eu/twitter/oauth/request_token",
+                urlOf(endpoints, "/api/oauth/request_token"));
+    }
+
+    @Test
+    void sendsToEgressEndpointWithoutPath()
+    {
+        TwitterEndpoints endpoints = endpoints(null, "https://api.twitter.com/api", "https://egress.example.com 2");
+
+        assertEquals("https://egress.example.com/oauth/request_token", urlOf(endpoints, "/api/oauth/request_token"));
+    }
+
+    @Test
+    void refusesApiBaseUrlWithOtherSchemeThanHttpClient()
+    {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> endpoints(Stubs.httpClient("http"), "https://api.twitter.com"));
+
+        assertEquals("The scheme of https://api.twitter.com does not match the scheme http of the configured " +
+                "HTTP client", e.getMessage());
+    }
+
+    @Test
+    void refusesEgressEndpointWithOtherSchemeThanHttpClient()
+    {
+        assertThrows(IllegalArgumentException.class, () -> endpoints(Stubs.httpClient("https"),
+                "https://api.twitter.com", "https://egress.example.com", "http://egress.example.com:3128"));
+    }
+
+    @Test
+    void refusesInvalidEgressEndpoints()
+    {
+        assertThrows(IllegalArgumentException.class,
+                () -> endpoints(null, "https://api.twitter.com", "egress.example.com"));
+        assertThrows(IllegalArgumentException.class,
+                () -> endpoints(null, "https://api.twitter.com", "https://egress.example.com 0"));
+        assertThrows(IllegalArgumentException.class,
+                () -> endpoints(null, "https://api.twitter.com", "https://egress.example.com 1 2"));
+    }
+
+    private static TwitterEndpoints endpoints(HttpClient httpClient, String apiBaseUrl, String... egressEndpoints)
+    {
+        List<String> egressEndpointList = Arrays.asList(egressEndpoints);
+
+        return TwitterEndpoints.from(new TestConfig()
+                .with("getWebServiceClientFactory", Stubs.urlWebServiceClientFactory(url ->
+                        Stubs.httpResponse(200, Collections.emptyMap(), url)))
+                .with("getHttpClient", Optional.ofNullable(httpClient))
+                .with("getApiBaseUrl", apiBaseUrl)
+                .with("getApiEgressEndpoints", egressEndpointList)
+                .build());
+    }
+
+    /**
+     * @return the URL a request with the given path of the API is sent to
+     */
+    private static String urlOf(TwitterEndpoints endpoints, String path)
+    {
+        TwitterEndpoints.Endpoint endpoint = endpoints.select();
+
+        return endpoint.getWebServiceClient().withPath(endpoints.toEndpointPath(endpoint, path)).request()
+                .method("GET").response().body(HttpResponse.asString());
+    }
+}
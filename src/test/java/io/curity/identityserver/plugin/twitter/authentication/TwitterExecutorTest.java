@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TwitterExecutorTest
+{
+    private final TwitterExecutor _executor = new TwitterExecutor("twitter-test", 1, 2);
+
+    @AfterEach
+    void shutDownExecutor()
+    {
+        _executor.shutdown();
+    }
+
+    @Test
+    void cancellingFutureInterruptsTaskAndFreesItsSlot() throws InterruptedException
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        CompletableFuture<Object> future = _executor.submit(() -> sleepUntilInterrupted(started, interrupted));
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        future.cancel(true);
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS), "The task should have been interrupted");
+        awaitInFlight(0);
+    }
+
+    @Test
+    void timingOutFutureInterruptsTask() throws InterruptedException
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        TwitterExecutor.withTimeout(_executor.submit(() -> sleepUntilInterrupted(started, interrupted)), 50);
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS), "The task should have been interrupted");
+        awaitInFlight(0);
+    }
+
+    @Test
+    void cancellingWaitingTaskFreesItsSlot() throws InterruptedException
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        CompletableFuture<Object> running = _executor.submit(() -> sleepUntilInterrupted(started, interrupted));
+        // Waits for a thread, unless virtual threads are used
+        CompletableFuture<Object> waiting = _executor.submit(() -> sleepUntilInterrupted(new CountDownLatch(1),
+                new CountDownLatch(1)));
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertThrows(RejectedExecutionException.class, () -> _executor.submit(() -> null));
+
+        waiting.cancel(true);
+        awaitInFlight(1);
+
+        running.cancel(true);
+        awaitInFlight(0);
+    }
+
+    @Test
+    void shutDownExecutorRejectsTasks()
+    {
+        _executor.shutdown();
+
+        assertThrows(RejectedExecutionException.class, () -> _executor.submit(() -> null));
+        assertEquals(0, _executor.getInFlight());
+    }
+
+    private static Object sleepUntilInterrupted(CountDownLatch started, CountDownLatch interrupted)
+    {
+        started.countDown();
+
+        try
+        {
+            Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+        }
+        catch (InterruptedException e)
+        {
+            interrupted.countDown();
+        }
+
+        return null;
+    }
+
+    private void awaitInFlight(int inFlight) throws InterruptedException
+    {
+        for (int i = 0; i < 500 && _executor.getInFlight() != inFlight; i++)
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals(inFlight, _executor.getInFlight());
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import com.github.scribejava.core.builder.ServiceBuilder;
+import com.github.scribejava.core.model.OAuth1AccessToken;
+import com.github.scribejava.core.model.OAuth1RequestToken;
+import com.github.scribejava.core.oauth.OAuth10aService;
+import io.curity.identityserver.plugin.twitter.config.TwitterAuthenticatorPluginConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.http.HttpResponse;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TwitterServiceTest
+{
+    private final AtomicInteger _requestTokenCalls = new AtomicInteger();
+    private final TwitterExecutor _executor = new TwitterExecutor("twitter-test", 2, 16);
+
+    private final CountDownLatch _profileReleased = new CountDownLatch(1);
+
+    private volatile IntFunction<HttpResponse> _twitter = call -> Stubs.httpResponse(200, Collections.emptyMap(),
+            "oauth_token=pooled-token-" + call + "&oauth_token_secret=secret&oauth_callback_confirmed=true");
+
+    @AfterEach
+    void shutDownExecutor()
+    {
+        _executor.shutdown();
+    }
+
+    @Test
+    void requestTokenFromPoolDoesNotTakeProbeOfHalfOpenBreaker() throws Exception
+    {
+        TwitterAuthenticatorPluginConfig config = new TestConfig()
+                .with("getRequestTokenPoolSize", 1)
+                .build();
+        TwitterService service = new TwitterService(oauthService(config), _executor, null, null, null, config);
+
+        fillPool(service);
+
+        int callsBefore = _requestTokenCalls.get();
+
+        halfOpen(service.getCircuitBreaker());
+
+        assertTrue(service.getRequestToken().getToken().startsWith("pooled-token"));
+
+        // Long enough for a refill to have called Twitter, if one was started
+        Thread.sleep(100);
+
+        assertEquals(callsBefore, _requestTokenCalls.get());
+        assertEquals(0, service.getRequestTokenPool().getDepth());
+        assertTrue(service.getCircuitBreaker().checkAllowed(), "The next call to Twitter should probe");
+    }
+
+    @Test
+    void poolIsFilledWhenServiceStarts() throws Exception
+    {
+        TwitterAuthenticatorPluginConfig config = new TestConfig()
+                .with("getRequestTokenPoolSize", 2)
+                .build();
+        TwitterService service = new TwitterService(oauthService(config), _executor, null, null, null, config);
+
+        service.start();
+        awaitDepth(service.getRequestTokenPool(), 2);
+
+        assertEquals(2, _requestTokenCalls.get());
+        assertTrue(service.getRequestToken().getToken().startsWith("pooled-token"));
+        assertEquals(0, service.getRequestTokenPool().getMisses());
+    }
+
+    @Test
+    void failedPoolRefillCountsTowardsBreaker() throws Exception
+    {
+        TwitterAuthenticatorPluginConfig config = new TestConfig()
+                .with("getRequestTokenPoolSize", 1)
+                .with("getCircuitBreakerFailureThreshold", 1)
+                .build();
+        TwitterService service = new TwitterService(oauthService(config), _executor, null, null, null, config);
+
+        fillPool(service);
+
+        _twitter = call -> Stubs.httpResponse(503, Collections.emptyMap(), "Over capacity");
+
+        assertTrue(service.getRequestToken().getToken().startsWith("pooled-token"));
+
+        for (int i = 0; i < 100 && !service.getCircuitBreaker().isOpen(); i++)
+        {
+            Thread.sleep(10);
+        }
+
+        assertTrue(service.getCircuitBreaker().isOpen());
+    }
+
+    @Test
+    void shedCallDoesNotTakeProbeOfHalfOpenBreaker() throws Exception
+    {
+        TwitterAuthenticatorPluginConfig config = new TestConfig().build();
+        RequestTokenRateLimiter rateLimiter = RequestTokenRateLimiter.forApiKey(UUID.randomUUID().toString(), 1, 0,
+                0);
+        TwitterService service = new TwitterService(oauthService(config), _executor, rateLimiter, null, null,
+                config);
+
+        assertTrue(rateLimiter.tryAcquire());
+        halfOpen(service.getCircuitBreaker());
+
+        assertThrows(TwitterUnavailableException.class, service::getRequestToken);
+        assertEquals(0, _requestTokenCalls.get());
+        assertTrue(service.getCircuitBreaker().checkAllowed(), "The next call to Twitter should probe");
+    }
+
+    @Test
+    void callRefusedByBreakerDoesNotTakePermit() throws Exception
+    {
+        TwitterAuthenticatorPluginConfig config = new TestConfig().build();
+        RequestTokenRateLimiter rateLimiter = RequestTokenRateLimiter.forApiKey(UUID.randomUUID().toString(), 600,
+                1000, 10);
+        TwitterService service = new TwitterService(oauthService(config), _executor, rateLimiter, null, null,
+                config);
+
+        halfOpen(service.getCircuitBreaker());
+        assertTrue(service.getCircuitBreaker().checkAllowed(), "Another call should be probing");
+
+        assertThrows(TwitterUnavailableException.class, service::getRequestToken);
+        assertEquals(0, _requestTokenCalls.get());
+        assertEquals(0, rateLimiter.getAdmitted());
+    }
+
+    @Test
+    void probeThatSucceedsClosesBreaker() throws Exception
+    {
+        TwitterAuthenticatorPluginConfig config = new TestConfig().build();
+        TwitterService service = new TwitterService(oauthService(config), _executor, null, null, null, config);
+
+        halfOpen(service.getCircuitBreaker());
+
+        OAuth1RequestToken requestToken = service.getRequestToken();
+
+        assertTrue(requestToken.getToken().startsWith("pooled-token"));
+        assertEquals(1, _requestTokenCalls.get());
+        assertFalse(service.getCircuitBreaker().checkAllowed(), "The breaker should be closed");
+    }
+
+    @Test
+    void holdOffAskedForByTwitterIsLimitedToConfiguredMaximum() throws Exception
+    {
+        TwitterAuthenticatorPluginConfig config = new TestConfig()
+                .with("getRateLimitMaxHoldOff", 1)
+                .build();
+        TwitterService service = new TwitterService(oauthService(config), _executor, null, null, null, config);
+
+        _twitter = call -> Stubs.httpResponse(429, Collections.singletonMap("Retry-After",
+                Collections.singletonList("86400")), "Rate limit exceeded");
+
+        assertThrows(TwitterResponseException.class, service::getRequestToken);
+        assertTrue(service.getCircuitBreaker().isOpen());
+
+        Thread.sleep(1100);
+
+        assertFalse(service.getCircuitBreaker().isOpen());
+    }
+
+    @Test
+    void everyAttemptTakesPermit() throws Exception
+    {
+        TwitterAuthenticatorPluginConfig config = new TestConfig()
+                .with("getRequestTokenRetries", 2)
+                .with("getCircuitBreakerFailureThreshold", 10)
+                .build();
+        RequestTokenRateLimiter rateLimiter = RequestTokenRateLimiter.forApiKey(UUID.randomUUID().toString(), 600,
+                1000, 10);
+        TwitterService service = new TwitterService(oauthService(config), _executor, rateLimiter, null, null,
+                config);
+
+        _twitter = call -> Stubs.httpResponse(503, Collections.emptyMap(), "Over capacity");
+
+        assertThrows(TwitterResponseException.class, service::getRequestToken);
+        assertEquals(3, _requestTokenCalls.get());
+        assertEquals(3, rateLimiter.getAdmitted());
+    }
+
+    @Test
+    void retryWithoutPermitFailsWithErrorOfLastAttempt() throws Exception
+    {
+        TwitterAuthenticatorPluginConfig config = new TestConfig()
+                .with("getRequestTokenRetries", 2)
+                .with("getCircuitBreakerFailureThreshold", 10)
+                .build();
+        RequestTokenRateLimiter rateLimiter = RequestTokenRateLimiter.forApiKey(UUID.randomUUID().toString(), 1, 0,
+                0);
+        TwitterService service = new TwitterService(oauthService(config), _executor, rateLimiter, null, null,
+                config);
+
+        _twitter = call -> Stubs.httpResponse(503, Collections.emptyMap(), "Over capacity");
+
+        TwitterResponseException e = assertThrows(TwitterResponseException.class, service::getRequestToken);
+
+        assertTrue(e.isServerError());
+        assertEquals(1, _requestTokenCalls.get());
+        assertEquals(1, rateLimiter.getShed());
+    }
+
+    @Test
+    void profileFetchesBeyondTheirLimitDoNotHoldUpLogins() throws Exception
+    {
+        TwitterAuthenticatorPluginConfig config = new TestConfig()
+                .with("isFetchProfile", true)
+                .with("getMaxConcurrentProfileFetches", 1)
+                .build();
+        TwitterService service = new TwitterService(oauthService(config), _executor, null,
+                new UserProfileCache(10, 60, 60), null, config);
+
+        try
+        {
+            CompletableFuture<TwitterProfile> slowProfile = service.getProfile(accessToken("1"));
+            CompletableFuture<TwitterProfile> shedProfile = service.getProfile(accessToken("2"));
+
+            assertNull(shedProfile.get(1, TimeUnit.SECONDS));
+            assertFalse(slowProfile.isDone());
+            assertTrue(service.getRequestToken().getToken().startsWith("pooled-token"));
+        }
+        finally
+        {
+            _profileReleased.countDown();
+            service.close();
+        }
+    }
+
+    private OAuth10aService oauthService(TwitterAuthenticatorPluginConfig config)
+    {
+        return new ServiceBuilder(config.getApiKey())
+                .apiSecret(config.getApiSecretKey())
+                .callback("https://localhost/authn/authentication/twitter/callback")
+                .httpClient(ScribeJavaHttpClientAdapter.from(TwitterEndpoints.direct(
+                        Stubs.webServiceClientFactory(this::respond), null, URI.create(TwitterApi.DEFAULT_BASE_URL)),
+                        null, _executor))
+                .build(TwitterApi.instance());
+    }
+
+    private HttpResponse respond(String target)
+    {
+        if (target.contains("verify_credentials"))
+        {
+            try
+            {
+                _profileReleased.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            return Stubs.httpResponse(503, Collections.emptyMap(), "");
+        }
+
+        return _twitter.apply(_requestTokenCalls.incrementAndGet());
+    }
+
+    private static OAuth1AccessToken accessToken(String userId)
+    {
+        return new OAuth1AccessToken("token-" + userId, "secret",
+                "oauth_token=token-" + userId + "&oauth_token_secret=secret&user_id=" + userId);
+    }
+
+    private static void halfOpen(CircuitBreaker circuitBreaker) throws InterruptedException
+    {
+        circuitBreaker.openFor(10);
+        Thread.sleep(20);
+    }
+
+    /**
+     * Get a request token, which the empty pool misses, and wait for the refill that starts.
+     */
+    private static void fillPool(TwitterService service) throws Exception
+    {
+        service.getRequestToken();
+        awaitDepth(service.getRequestTokenPool(), 1);
+    }
+
+    private static void awaitDepth(RequestTokenPool pool, int depth) throws InterruptedException
+    {
+        for (int i = 0; i < 500 && pool.getDepth() < depth; i++)
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals(depth, pool.getDepth());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.twitter.authentication;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserProfileCacheTest
+{
+    private final AtomicInteger _loads = new AtomicInteger();
+
+    @Test
+    void remembersLoaderThatThrowsForNegativeTtl()
+    {
+        UserProfileCache cache = new UserProfileCache(10, 60, 60);
+        Supplier<CompletableFuture<TwitterProfile>> loader = () -> {
+            _loads.incrementAndGet();
+
+            throw new IllegalStateException("no profile");
+        };
+
+        CompletableFuture<TwitterProfile> profile = cache.get("1", loader);
+
+        assertTrue(profile.isDone());
+        assertNull(profile.join());
+        assertNull(cache.get("1", loader).join());
+        assertEquals(1, _loads.get());
+    }
+
+    @Test
+    void evictsEntryOfLoaderThatThrowsWhenFull()
+    {
+        UserProfileCache cache = new UserProfileCache(1, 60, 60);
+
+        cache.get("1", () -> {
+            throw new IllegalStateException("no profile");
+        });
+        cache.get("2", () -> new CompletableFuture<>());
+        cache.get("3", () -> new CompletableFuture<>());
+
+        // Only the entry of the first user has completed, so only that one could be evicted
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    void fetchesAgainAfterRejectedLoader()
+    {
+        UserProfileCache cache = new UserProfileCache(10, 60, 60);
+
+        assertNull(cache.get("1", () -> {
+            _loads.incrementAndGet();
+
+            throw new RejectedExecutionException("busy");
+        }).join());
+        cache.get("1", () -> {
+            _loads.incrementAndGet();
+
+            return CompletableFuture.completedFuture(null);
+        });
+
+        assertEquals(2, _loads.get());
+    }
+}